@@ -0,0 +1,140 @@
+// Benchmarks FileSystemManager directly, without the network in between.
+
+// every trial formats a fresh volume in a temp directory and fills it with fileCount files of
+// fileSize bytes. The same benchmarks run with 1, 4 and 16 threads (the nested classes), so
+// lock contention shows up next to the single threaded cost. e.g. only reads, 4 KB blocks:
+//   java -jar target/benchmarks.jar "FileSystemBenchmark.*read" -p blockSize=4096
+
+package ca.concordia.benchmarks;
+
+import ca.concordia.filesystem.FileSystemManager;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class FileSystemBenchmark {
+
+    private static final int MAX_THREADS = 16; // the most threads any of the classes below runs with
+
+    @Param({"128", "4096"})
+    public int blockSize;
+
+    @Param({"16", "1024"})
+    public int fileCount;
+
+    @Param({"1024", "65536"})
+    public int fileSize;
+
+    private Path directory;
+    private FileSystemManager fsManager;
+    private String[] names;
+    private byte[] contents;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("fsbench");
+        int blocksPerFile = (fileSize + blockSize - 1) / blockSize;
+        // room for every file twice (a write allocates the new chain before the old one is freed)
+        // plus the files the create/delete benchmark makes
+        int blockCount = 2 * (fileCount + MAX_THREADS) * blocksPerFile + 1024;
+        fsManager = new FileSystemManager(directory.resolve("bench.dat").toString(), blockSize, blockCount,
+                fileCount + MAX_THREADS);
+
+        contents = new byte[fileSize];
+        new SplittableRandom(42).nextBytes(contents);
+        names = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "f" + i;
+            fsManager.createFile(names[i]);
+            fsManager.writeFile(names[i], contents);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fsManager.close(); // also frees the singleton for the next trial in this JVM
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // what one benchmark thread works on
+    @State(Scope.Thread)
+    public static class Worker {
+        private static final AtomicInteger nextId = new AtomicInteger();
+
+        SplittableRandom random;
+        String ownFile; // only this thread creates and deletes it
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            int id = nextId.getAndIncrement();
+            random = new SplittableRandom(id);
+            ownFile = "t" + id;
+        }
+    }
+
+    @Benchmark
+    public byte[] readFile(Worker worker) throws Exception {
+        return fsManager.readFile(names[worker.random.nextInt(fileCount)]);
+    }
+
+    @Benchmark
+    public void writeFile(Worker worker) throws Exception {
+        fsManager.writeFile(names[worker.random.nextInt(fileCount)], contents);
+    }
+
+    @Benchmark
+    public String[] listFiles() {
+        return fsManager.listFiles();
+    }
+
+    // a whole file's life: create, write, read back, delete. Leaves the volume as it found it
+    @Benchmark
+    public byte[] createWriteReadDelete(Worker worker) throws Exception {
+        fsManager.createFile(worker.ownFile);
+        fsManager.writeFile(worker.ownFile, contents);
+        byte[] read = fsManager.readFile(worker.ownFile);
+        fsManager.deleteFile(worker.ownFile);
+        return read;
+    }
+
+    @Threads(1)
+    public static class OneThread extends FileSystemBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends FileSystemBenchmark {
+    }
+
+    @Threads(MAX_THREADS)
+    public static class SixteenThreads extends FileSystemBenchmark {
+    }
+}
@@ -0,0 +1,262 @@
+// Benchmarks whole requests through FileServer and ClientHandler over loopback, the way clients see them.
+
+// every trial starts a server on a free port with a fresh volume of fileCount files, and every
+// benchmark thread is one client connection. The text benchmarks speak the line protocol, the
+// binary ones BinaryProtocol frames; binaryReadPipelined keeps depth requests in flight at once.
+// the nested classes run everything with 1 and 16 clients.
+
+package ca.concordia.benchmarks;
+
+import ca.concordia.server.BinaryProtocol;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerConfig;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class ServerBenchmark {
+
+    private static final int FILE_COUNT = 64;
+    private static final int MAX_CLIENTS = 16; // the most threads any of the classes below runs with
+
+    // the server and its volume, shared by all the clients
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1024", "65536"})
+        public int fileSize;
+
+        @Param({"16"})
+        public int depth; // requests in flight for binaryReadPipelined
+
+        private Path directory;
+        private FileServer fileServer;
+        private Thread serverThread;
+        private int port;
+        String[] names;
+        String text; // the contents of every file, printable so READ answers with one line
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            directory = Files.createTempDirectory("serverbench");
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            int blocks = 2 * (FILE_COUNT + MAX_CLIENTS) * (fileSize / 4096 + 1) + 1024;
+            fileServer = new FileServer(ServerConfig.fromArgs(new String[]{
+                    "--port=" + port,
+                    "--file=" + directory.resolve("bench.dat"),
+                    "--block-size=4K",
+                    "--blocks=" + blocks,
+                    "--max-files=" + (FILE_COUNT + MAX_CLIENTS)}));
+            serverThread = new Thread(fileServer::start, "bench-server");
+            serverThread.start();
+
+            StringBuilder contents = new StringBuilder(fileSize);
+            SplittableRandom random = new SplittableRandom(42);
+            while (contents.length() < fileSize) {
+                contents.append((char) ('a' + random.nextInt(26)));
+            }
+            text = contents.toString();
+
+            names = new String[FILE_COUNT];
+            try (TextClient client = connect()) {
+                for (int i = 0; i < FILE_COUNT; i++) {
+                    names[i] = "f" + i;
+                    client.call("CREATE " + names[i]);
+                    client.call("WRITE " + names[i] + " " + text);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            fileServer.stop();
+            serverThread.join();
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        // the server is started on another thread, wait until it accepts
+        private TextClient connect() throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new TextClient(new Socket("localhost", port));
+                } catch (IOException e) {
+                    if (attempt == 100) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+    }
+
+    // one connection in the line protocol
+    static class TextClient implements AutoCloseable {
+        final Socket socket;
+        final PrintWriter out;
+        final BufferedReader in;
+
+        TextClient(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        // send one command and wait for its one line answer
+        String call(String command) throws IOException {
+            out.print(command + "\n");
+            out.flush();
+            String answer = in.readLine();
+            if (answer == null || answer.startsWith("ERROR")) {
+                throw new IOException(command.split(" ")[0] + " failed: " + answer);
+            }
+            return answer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // one text and one binary connection per benchmark thread
+    @State(Scope.Thread)
+    public static class Client {
+        TextClient text;
+        Socket binarySocket;
+        DataOutputStream binaryOut;
+        DataInputStream binaryIn;
+        SplittableRandom random;
+        int nextRequestId;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws Exception {
+            random = new SplittableRandom(System.identityHashCode(this));
+            text = server.connect();
+
+            TextClient binary = server.connect();
+            binary.call("BINARY");
+            binarySocket = binary.socket;
+            binaryOut = new DataOutputStream(new BufferedOutputStream(binarySocket.getOutputStream()));
+            binaryIn = new DataInputStream(new BufferedInputStream(binarySocket.getInputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            text.close();
+            binarySocket.close();
+        }
+
+        void send(byte opcode, byte[] payload) throws IOException {
+            BinaryProtocol.writeFrame(binaryOut, opcode, nextRequestId++, payload, 0, payload.length);
+        }
+
+        byte[] receive() throws IOException {
+            BinaryProtocol.Frame response = BinaryProtocol.readFrame(binaryIn, BinaryProtocol.MAX_PAYLOAD);
+            if (response == null || response.opcode != BinaryProtocol.OK) {
+                throw new IOException("Request failed: "
+                        + (response == null ? "connection closed" : new String(response.payload, StandardCharsets.UTF_8)));
+            }
+            return response.payload;
+        }
+    }
+
+    private static String anyFile(Server server, Client client) {
+        return server.names[client.random.nextInt(FILE_COUNT)];
+    }
+
+    @Benchmark
+    public String textRead(Server server, Client client) throws IOException {
+        return client.text.call("READ " + anyFile(server, client));
+    }
+
+    @Benchmark
+    public String textWrite(Server server, Client client) throws IOException {
+        return client.text.call("WRITE " + anyFile(server, client) + " " + server.text);
+    }
+
+    @Benchmark
+    public String textList(Server server, Client client) throws IOException {
+        return client.text.call("LIST");
+    }
+
+    @Benchmark
+    public byte[] binaryRead(Server server, Client client) throws IOException {
+        client.send(BinaryProtocol.READ, anyFile(server, client).getBytes(StandardCharsets.UTF_8));
+        client.binaryOut.flush();
+        return client.receive();
+    }
+
+    @Benchmark
+    public byte[] binaryWrite(Server server, Client client) throws IOException {
+        byte[] name = anyFile(server, client).getBytes(StandardCharsets.UTF_8);
+        byte[] contents = server.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + name.length + contents.length);
+        payload.put((byte) name.length).put(name).put(contents);
+        client.send(BinaryProtocol.WRITE, payload.array());
+        client.binaryOut.flush();
+        return client.receive();
+    }
+
+    // depth reads sent back to back, then all the answers collected; one operation is the whole round
+    @Benchmark
+    public int binaryReadPipelined(Server server, Client client) throws IOException {
+        for (int i = 0; i < server.depth; i++) {
+            client.send(BinaryProtocol.READ, anyFile(server, client).getBytes(StandardCharsets.UTF_8));
+        }
+        client.binaryOut.flush();
+        int bytes = 0;
+        for (int i = 0; i < server.depth; i++) {
+            bytes += client.receive().length;
+        }
+        return bytes;
+    }
+
+    @Threads(1)
+    public static class OneClient extends ServerBenchmark {
+    }
+
+    @Threads(MAX_CLIENTS)
+    public static class SixteenClients extends ServerBenchmark {
+    }
+}
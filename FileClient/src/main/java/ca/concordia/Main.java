@@ -25,11 +25,18 @@ public class Main {
                     PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
             ) {
                 while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
-                    writer.println(userInput);
+                    // several commands separated by ';' are pipelined: all sent first, then all responses read
+                    String[] commands = userInput.split(";");
+                    for (String command : commands) {
+                        writer.print(command.trim() + "\n");
+                    }
+                    writer.flush();
                     System.out.println("Message sent to the server: " + userInput);
-                    //get response
-                    String response = reader.readLine();
-                    System.out.println("Response from server: " + response);
+                    //get responses, they come back in the order the commands were sent
+                    for (int i = 0; i < commands.length; i++) {
+                        String response = reader.readLine();
+                        System.out.println("Response from server: " + response);
+                    }
 
                     userInput = scanner.nextLine(); // Read next line
                 }
@@ -0,0 +1,240 @@
+// Talks to the server in binary mode and pipelines requests: send() returns right away
+// with a future, and a reader thread completes the futures as responses come back
+// (possibly out of order, they are matched by request id).
+
+package ca.concordia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class PipelinedClient implements AutoCloseable {
+
+    // same values as the server's BinaryProtocol
+    static final byte CREATE = 1;
+    static final byte WRITE = 2;
+    static final byte READ = 3;
+    static final byte DELETE = 4;
+    static final byte LIST = 5;
+    static final byte QUIT = 6;
+    static final byte READ_AT = 7;
+    static final byte WRITE_AT = 8;
+    static final byte APPEND = 9;
+    static final byte BATCH = 10;
+    static final byte STATS = 11;
+    static final byte MKDIR = 12;
+    static final byte RMDIR = 13;
+    static final byte OK = 0;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Map<Integer, CompletableFuture<byte[]>> waiting = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private int nextId;
+
+    public PipelinedClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // switch the connection to binary frames
+        out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String reply = readLine();
+        if (!reply.startsWith("SUCCESS")) {
+            socket.close();
+            throw new IOException("Server refused binary mode: " + reply);
+        }
+
+        this.reader = new Thread(this::readResponses, "pipelined-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<byte[]> create(String name) throws IOException {
+        return send(CREATE, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<byte[]> write(String name, byte[] contents) throws IOException {
+        return send(WRITE, nameAndData(new byte[0], name, contents));
+    }
+
+    // length bytes from offset, fewer at the end of the file
+    public CompletableFuture<byte[]> readAt(String name, long offset, int length) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + nameBytes.length);
+        payload.putLong(offset).putInt(length).put(nameBytes);
+        return send(READ_AT, payload.array());
+    }
+
+    public CompletableFuture<byte[]> writeAt(String name, long offset, byte[] bytes) throws IOException {
+        return send(WRITE_AT, nameAndData(ByteBuffer.allocate(Long.BYTES).putLong(offset).array(), name, bytes));
+    }
+
+    public CompletableFuture<byte[]> append(String name, byte[] bytes) throws IOException {
+        return send(APPEND, nameAndData(new byte[0], name, bytes));
+    }
+
+    public CompletableFuture<byte[]> read(String name) throws IOException {
+        return send(READ, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<byte[]> delete(String name) throws IOException {
+        return send(DELETE, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<byte[]> list() throws IOException {
+        return send(LIST, new byte[0]);
+    }
+
+    // one page of a directory: the first line of the answer is the after for the next page
+    // (empty if this was the last one), then one name per line, directories ending in '/'
+    public CompletableFuture<byte[]> list(String dir, String prefix, String after, int limit) throws IOException {
+        byte[] dirBytes = dir.getBytes(StandardCharsets.UTF_8);
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] afterBytes = after != null ? after.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + 2 + dirBytes.length + prefixBytes.length + afterBytes.length);
+        payload.putInt(limit).put((byte) dirBytes.length).put(dirBytes).put((byte) prefixBytes.length).put(prefixBytes).put(afterBytes);
+        return send(LIST, payload.array());
+    }
+
+    public CompletableFuture<byte[]> mkdir(String path) throws IOException {
+        return send(MKDIR, path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<byte[]> rmdir(String path) throws IOException {
+        return send(RMDIR, path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the server's metrics, one "name=value" line each
+    public CompletableFuture<byte[]> stats() throws IOException {
+        return send(STATS, new byte[0]);
+    }
+
+    // run the operations built with batchOp together, the answer has one line per operation
+    // (empty if it succeeded, else why not); an atomic batch that fails completes exceptionally
+    public CompletableFuture<byte[]> batch(boolean atomic, List<byte[]> ops) throws IOException {
+        int length = 1;
+        for (byte[] op : ops) {
+            length += op.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length).put((byte) (atomic ? 1 : 0));
+        for (byte[] op : ops) {
+            payload.put(op);
+        }
+        return send(BATCH, payload.array());
+    }
+
+    // one CREATE, WRITE or DELETE for batch, contents is only used for WRITE
+    public static byte[] batchOp(byte opcode, String name, byte[] contents) {
+        byte[] payload = opcode == WRITE ? nameAndData(new byte[0], name, contents) : name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + Integer.BYTES + payload.length).put(opcode).putInt(payload.length).put(payload).array();
+    }
+
+    // send one request without waiting for the answer
+    public CompletableFuture<byte[]> send(byte opcode, byte[] payload) throws IOException {
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        sendLock.lock();
+        try {
+            int id = nextId++;
+            waiting.put(id, response);
+            out.writeByte(opcode);
+            out.writeInt(id);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        } finally {
+            sendLock.unlock();
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            send(QUIT, new byte[0]).join();
+        } catch (Exception e) {
+            // already closed
+        }
+        socket.close();
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int status = in.read();
+                if (status < 0) {
+                    break;
+                }
+                int id = in.readInt();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                CompletableFuture<byte[]> response = waiting.remove(id);
+                if (response == null) {
+                    continue;
+                }
+                if (status == OK) {
+                    response.complete(payload);
+                } else {
+                    response.completeExceptionally(new IOException(new String(payload, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+        for (CompletableFuture<byte[]> response : waiting.values()) {
+            response.completeExceptionally(new IOException("Connection closed."));
+        }
+    }
+
+    // [prefix][name length: 1 byte][name][data]
+    private static byte[] nameAndData(byte[] prefix, String name, byte[] data) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(prefix.length + 1 + nameBytes.length + data.length);
+        payload.put(prefix).put((byte) nameBytes.length).put(nameBytes).put(data);
+        return payload.array();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed.");
+            }
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+
+    // pipelines a few thousand READs of one file over a single connection and reports the rate
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        try (PipelinedClient client = new PipelinedClient("localhost", 12345)) {
+            client.create("pipeline").exceptionally(e -> null).join(); // may already exist
+            client.write("pipeline", "pipelined hello".getBytes(StandardCharsets.UTF_8)).join();
+
+            long start = System.nanoTime();
+            List<CompletableFuture<byte[]>> responses = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                responses.add(client.read("pipeline"));
+            }
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d pipelined READs in %.3f s (%.0f ops/sec)%n", requests, seconds, requests / seconds);
+        }
+    }
+}
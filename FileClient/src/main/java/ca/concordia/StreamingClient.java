@@ -0,0 +1,117 @@
+// Uploads or downloads one file with the UPLOAD/DOWNLOAD commands, in chunks,
+// so files larger than memory work on both ends.
+
+// usage: StreamingClient upload <name> <local file> [--resume]
+//        StreamingClient download <name> <local file> [--resume]
+// with --resume an interrupted transfer continues where it stopped instead of starting over:
+// an upload from where the server says it got to (UPLOADED, the file itself is only replaced once
+// all of it is there), a download from the size of the local file.
+
+package ca.concordia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class StreamingClient {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: StreamingClient upload|download <name> <local file> [--resume]");
+            return;
+        }
+        boolean resume = args.length > 3 && args[3].equals("--resume");
+        try (Socket socket = new Socket("localhost", 12345)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            if (args[0].equalsIgnoreCase("upload")) {
+                upload(args[1], args[2], resume, in, out);
+            } else {
+                download(args[1], args[2], resume, in, out);
+            }
+        }
+    }
+
+    private static void upload(String name, String localFile, boolean resume, DataInputStream in, OutputStream out) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(localFile, "r")) {
+            long offset = 0;
+            String reply = command("SIZE " + name, in, out);
+            if (reply.startsWith("ERROR")) {
+                System.out.println(command("CREATE " + name, in, out));
+            } else if (resume) {
+                reply = command("UPLOADED " + name, in, out);
+                if (reply.startsWith("UPLOADED: ")) {
+                    long end = Long.parseLong(reply.substring("UPLOADED: ".length()));
+                    offset = end <= file.length() ? end : 0; // else the local file changed, start over
+                }
+            }
+
+            long length = file.length() - offset;
+            reply = command("UPLOAD " + name + " " + offset + " " + length, in, out);
+            if (!reply.startsWith("READY")) {
+                System.out.println(reply);
+                return;
+            }
+            file.seek(offset);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = file.read(chunk)) > 0) {
+                out.write(chunk, 0, n);
+            }
+            out.flush();
+            System.out.println(readLine(in) + (offset > 0 ? " Resumed at " + offset + "." : ""));
+        }
+    }
+
+    private static void download(String name, String localFile, boolean resume, DataInputStream in, OutputStream out) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(localFile, "rw")) {
+            long offset = resume ? file.length() : 0;
+            String reply = command("DOWNLOAD " + name + " " + offset, in, out);
+            if (!reply.startsWith("DOWNLOAD")) {
+                System.out.println(reply);
+                return;
+            }
+            long remaining = Long.parseLong(reply.substring("DOWNLOAD: ".length()));
+            file.setLength(offset);
+            file.seek(offset);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (remaining > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n < 0) {
+                    System.out.println("Connection lost, run again with --resume to continue.");
+                    return;
+                }
+                file.write(chunk, 0, n);
+                remaining -= n;
+            }
+            System.out.println("Downloaded " + name + " (" + file.length() + " bytes).");
+        }
+    }
+
+    // send one command line and read the one line answer
+    private static String command(String line, DataInputStream in, OutputStream out) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return readLine(in);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed.");
+            }
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+}
@@ -1,13 +1,26 @@
 package ca.concordia;
 
 import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerConfig;
 import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) throws IOException{
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // e.g. --port=12345 --file=filesystem.dat --block-size=4K --blocks=16384 --max-files=4096 --io=auto
+        //      --cache=64M --cache-mode=write-through --dedupe=off --compression=off (or deflate, deflate:1 .. deflate:9)
+        //      (a compressed file is stored uncompressed once it gets a WRITEAT or APPEND)
+        //      --directories=off (on formats new volumes with nested directories, off keeps flat names)
+        //      --log-level=info (error, warn, info or debug, debug logs every command)
+        //      --file=/mnt/a/fs.dat,/mnt/b/fs.dat spreads the files over one volume per disk, a volume
+        //      added at the end later gets its share of the files moved over in the background
+        //      --replica-of=host:12345 keeps a read-only copy of that server, updated as it changes
+        //      --replicas=host,... lets those hosts be replicas of this server (nobody without it)
+        //      --compact-rate=16M defragments the volumes in the background at up to 16 MiB/s (off without it),
+        //      and gives the free space at their end back to the disk unless they are memory mapped
+        //      --snapshot-dir=/var/backups/fs lets clients SNAPSHOT <name> into that directory (off without it)
+        FileServer server = new FileServer(ServerConfig.fromArgs(args));
         // Start the file server
         server.start();
     }
@@ -0,0 +1,89 @@
+// Batch collects CREATE, WRITE and DELETE operations for FileSystemManager.apply, which runs them
+// in order as one unit: each file's lock is taken once, and all the metadata changes go to the
+// journal as one record with one wait for the disk.
+// an atomic batch is applied completely or not at all. Otherwise the operations that fail are
+// skipped, the others still happen, and getError tells which ones failed and why.
+
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Batch {
+
+    // operation kinds
+    public static final int CREATE = 1;
+    public static final int WRITE = 2;
+    public static final int DELETE = 3;
+
+    private final boolean atomic;
+    private final List<Op> ops = new ArrayList<>();
+
+    public Batch(boolean atomic) {
+        this.atomic = atomic;
+    }
+
+    public Batch create(String fileName) {
+        ops.add(new Op(CREATE, fileName, null));
+        return this;
+    }
+
+    public Batch write(String fileName, byte[] contents) {
+        ops.add(new Op(WRITE, fileName, contents));
+        return this;
+    }
+
+    public Batch delete(String fileName) {
+        ops.add(new Op(DELETE, fileName, null));
+        return this;
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    // why operation i failed, null if it succeeded (or never ran because an atomic batch failed)
+    public String getError(int i) {
+        return ops.get(i).error;
+    }
+
+    // operation i as a client would have sent it, e.g. "DELETE notes"
+    public String describe(int i) {
+        Op op = ops.get(i);
+        String kind = op.kind == CREATE ? "CREATE" : op.kind == WRITE ? "WRITE" : "DELETE";
+        return kind + " " + op.fileName;
+    }
+
+    // bytes of the WRITE operations that went through
+    public long getBytesWritten() {
+        long bytes = 0;
+        for (Op op : ops) {
+            if (op.kind == WRITE && op.error == null) {
+                bytes += op.contents.length;
+            }
+        }
+        return bytes;
+    }
+
+    List<Op> getOps() {
+        return ops;
+    }
+
+    // one operation, error is filled in by FileSystemManager.apply
+    static final class Op {
+        final int kind;
+        final String fileName;
+        final byte[] contents; // WRITE only
+        String error;
+
+        Op(int kind, String fileName, byte[] contents) {
+            this.kind = kind;
+            this.fileName = fileName;
+            this.contents = contents;
+        }
+    }
+}
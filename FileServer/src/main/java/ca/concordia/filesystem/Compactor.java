@@ -0,0 +1,90 @@
+// Compactor keeps the volumes of a server defragmented while it runs.
+
+// every PAUSE_MILLIS it makes one pass over each volume (see FileSystemManager.compact): files
+// in pieces are put back in one piece and the files are packed at the start of the volume, then
+// the free space left at the end is given back to the disk (releaseFreeTail, on volumes that are
+// not memory mapped). The copying is
+// paced by one IoBudget for all volumes, so a pass takes longer on a busy volume rather than
+// taking the disk away from clients. A pass over a volume that is in order already only reads
+// the tables.
+
+package ca.concordia.filesystem;
+
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Compactor {
+
+    private static final long PAUSE_MILLIS = 60_000; // between passes
+
+    private final FileSystemManager[] shards;
+    private final IoBudget budget;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicLong blocksMoved = new AtomicLong();
+    private final AtomicLong bytesReleased = new AtomicLong();
+    private Thread thread;
+
+    public Compactor(FileSystemManager[] shards, long bytesPerSecond) {
+        this.shards = shards;
+        this.budget = new IoBudget(bytesPerSecond);
+    }
+
+    public void start() {
+        Metrics.get().registerGauge("compaction.blocks_moved", blocksMoved::get);
+        Metrics.get().registerGauge("compaction.bytes_released", bytesReleased::get);
+        // never interrupted: an interrupt during channel I/O would close the volume's channel
+        thread = Thread.ofVirtual().name("compactor").start(this::run);
+    }
+
+    // stop after the chunk being copied, the file being moved stays where it was
+    public void stop() {
+        stopped.countDown();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Metrics.get().removeGauge("compaction.blocks_moved");
+        Metrics.get().removeGauge("compaction.bytes_released");
+    }
+
+    private boolean isStopped() {
+        return stopped.getCount() == 0;
+    }
+
+    private void run() {
+        try {
+            while (!stopped.await(PAUSE_MILLIS, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < shards.length && !isStopped(); i++) {
+                    compact(i);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compact(int shard) {
+        try {
+            long started = System.currentTimeMillis();
+            int moved = shards[shard].compact(budget, this::isStopped);
+            long released = isStopped() ? 0 : shards[shard].releaseFreeTail();
+            blocksMoved.addAndGet(moved);
+            bytesReleased.addAndGet(released);
+            if (moved > 0 || released > 0) {
+                Log.info("Compacted " + (shards.length == 1 ? "the volume" : "shard " + shard) + ": " + moved
+                        + " blocks moved, " + released + " bytes given back to the disk in "
+                        + (System.currentTimeMillis() - started) + " ms.");
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Compaction of " + (shards.length == 1 ? "the volume" : "shard " + shard) + " failed: " + e);
+        }
+    }
+}
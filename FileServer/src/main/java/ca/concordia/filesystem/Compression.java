@@ -0,0 +1,135 @@
+// Compression is the codec writeFile packs file contents with before they get blocks.
+// every file records the codec its blocks were written with (in its inode), so files written
+// with compression on and off live side by side and are always read back the way they were stored.
+
+// codecs: NONE (as is) and DEFLATE (java.util.zip, zlib format) at a level from 1 (fastest) to 9.
+
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public final class Compression {
+
+    // codec ids as stored in the inodes, never renumber them
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    public static final Compression OFF = new Compression(NONE, 0);
+
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024; // compressed bytes read from the blocks at a time
+
+    private final int codec;
+    private final int level;
+
+    private Compression(int codec, int level) {
+        this.codec = codec;
+        this.level = level;
+    }
+
+    // "off", "deflate" (level 6) or "deflate:1" to "deflate:9"
+    public static Compression parse(String value) {
+        if (value.equals("off")) {
+            return OFF;
+        }
+        if (value.equals("deflate")) {
+            return new Compression(DEFLATE, 6);
+        }
+        if (value.startsWith("deflate:")) {
+            try {
+                int level = Integer.parseInt(value.substring("deflate:".length()));
+                if (level >= 1 && level <= 9) {
+                    return new Compression(DEFLATE, level);
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        throw new IllegalArgumentException("Compression must be off, deflate or deflate:<level 1-9>, got: " + value);
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public boolean isOff() {
+        return codec == NONE;
+    }
+
+    @Override
+    public String toString() {
+        return codec == NONE ? "off" : "deflate:" + level;
+    }
+
+    // data packed into at most limit bytes, null if it does not fit (then it is stored as is)
+    byte[] compress(byte[] data, int limit) {
+        if (codec == NONE || limit <= 0) {
+            return null;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] packed = new byte[limit];
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(packed, length, limit - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(packed, length) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // the size bytes of a file from what is stored in its blocks
+    static byte[] decompress(int codec, byte[] stored, int size) throws IOException {
+        if (codec == NONE) {
+            return stored;
+        }
+        checkCodec(codec);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] data = new byte[size];
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int n = inflater.inflate(data, length, size - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break; // ran out of stored bytes
+                }
+                length += n;
+            }
+            if (length != size) {
+                throw new IOException("ERROR: Compressed contents are damaged.");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("ERROR: Compressed contents are damaged.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // the contents of a file, inflated while the stored bytes are read from stored
+    static InputStream decoder(int codec, InputStream stored) throws IOException {
+        checkCodec(codec);
+        return new InflaterInputStream(stored, new Inflater(), INFLATE_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end(); // not done by InflaterInputStream for an Inflater passed in
+            }
+        };
+    }
+
+    private static void checkCodec(int codec) throws IOException {
+        if (codec != DEFLATE) {
+            throw new IOException("ERROR: Unknown compression codec " + codec + ".");
+        }
+    }
+}
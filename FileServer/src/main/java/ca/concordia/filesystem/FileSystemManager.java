@@ -1,88 +1,337 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockHashIndex;
+import ca.concordia.filesystem.datastructures.DirectoryTree;
 import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FileIndex;
+import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.FreeBitmap;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.io.BlockDevice;
+import ca.concordia.filesystem.io.CachedBlockDevice;
+import ca.concordia.filesystem.io.MappedBlockDevice;
+import ca.concordia.metrics.Metrics;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class FileSystemManager {
 
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    // locking: every operation holds the lock of the file it works on (striped by name, so
+    // operations on different files do not wait for each other) for its whole duration.
+    // the shared tables (index or directory tree, inodes, bitmap, next-block table) are only
+    // changed inside short write sections of metaLock, which never do data I/O. Lookups use
+    // optimistic reads.
+    private static final int LOCK_STRIPES = 256; // power of two
+    private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private final StampedLock metaLock = new TimedStampedLock(Metrics.get().getMetaLockWait(), Metrics.get().getMetaLockHold());
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-    private static final int METADATA_SIZE = 90; // 80 bytes for inode table + 10 bytes for free block list
-    private static FileSystemManager instance = null;
+    // geometry of the original assignment volume, used by the (filename, totalSize) constructor
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    public static final int DEFAULT_MAXFILES = 5;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024; // buffer for loading/saving metadata
+    private static final int MAX_EXTENT_BYTES = 1 << 30; // longest single read/write/transfer
+
+    private final Path volumePath;
     private final RandomAccessFile disk;
+    private final FileChannel channel;
+    private final BlockDevice device; // all volume I/O after startup, positional so threads never share a file pointer
+    private final CachedBlockDevice blockCache; // the cache in front of the volume, null if there is none
+    private final boolean mapped; // the volume is memory mapped, its file must keep its length while open
+    private final Journal journal; // write-ahead log for metadata, <filename>.journal
 
-    private static final int BLOCK_SIZE = 128; // Example block size
+    private final Superblock superblock; // geometry read from (or written to) offset 0
+    private final int maxFiles;
+    private final int maxBlocks;
+    private final int blockSize;
 
     private final FEntry[] inodeTable; // Array of inodes
-    private final boolean[] freeBlockList; // Bitmap for free blocks
+    private final FreeBitmap freeBlockList; // Bitmap for free blocks
+    private final FNode[] fnodeTable; // next-block table, one FNode per block (like a FAT)
+
+    private final FileIndex fileIndex; // filename -> inode index, rebuilt on load (null with directories)
+    private final int[] freeInodes; // stack of unused inode indexes
+    private final long[] fileVersions; // bumped whenever an inode changes, lets open streams notice
+    private final long[] fileLayouts; // bumped when the compactor moves a file's blocks, its contents stay the same
+    private int freeInodeCount;
+
+    // snapshots: every block remembers the epoch it was allocated in, taking a snapshot starts a
+    // new epoch, so the snapshot can see exactly the blocks allocated before it (see snapshot())
+    private final int[] blockEpochs;
+    private int currentEpoch;
+    private volatile Snapshot snapshot; // the open snapshot, null if there is none
+
+    // deduplication, on volumes formatted with it: identical blocks are stored once. A block is
+    // shared together with the rest of its chain (the chains form a tree of common endings), its
+    // reference count is the number of files whose chain runs through it. Null arrays without it.
+    private final boolean dedupe;
+    private final long[] blockHashes; // content hash of every block, two longs each
+    private final int[] blockRefs; // files using each block
+    private final BlockHashIndex hashIndex; // (content hash, next block) -> block
+
+    private volatile Compression compression = Compression.OFF; // codec writeFile packs contents with
+
+    // directories, on volumes formatted with them: a file is named by its path ("docs/2024/notes"),
+    // every inode records the directory it is in and the tree maps (directory, name) to inodes, so
+    // a lookup is one tree descent per part of the path and a directory is listed a page at a time.
+    // volumes from before have one flat namespace looked up in fileIndex, and a '/' is just a character.
+    private final boolean directories;
+    private final DirectoryTree tree; // null without directories
+
+    public static final int MAX_LIST_LIMIT = 1000; // names one list() call returns at most
 
+    private volatile Consumer<String> changeListener; // told every changed path once it is durable, may be null
+
+    // blocks from here on were given back to the disk by releaseFreeTail and not written since, -1 = none
+    private int releasedTail = -1;
+
+    // totalSize is the size of the data area, split into 128 byte blocks with room for 5 files
     public FileSystemManager(String filename, int totalSize) throws IOException {
-        if (instance != null) {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
-        }
+        this(filename, DEFAULT_BLOCK_SIZE, totalSize / DEFAULT_BLOCK_SIZE, DEFAULT_MAXFILES);
+    }
+
+    // open the volume in filename, or create it with the given geometry if it is empty
+    // an existing volume always keeps the geometry stored in its superblock
+    public FileSystemManager(String filename, int blockSize, int blockCount, int inodeCount) throws IOException {
+        this(filename, blockSize, blockCount, inodeCount, "auto");
+    }
+
+    // ioMode picks the BlockDevice: "mmap", "channel" or "auto"
+    public FileSystemManager(String filename, int blockSize, int blockCount, int inodeCount, String ioMode) throws IOException {
+        this(filename, blockSize, blockCount, inodeCount, ioMode, 0, false);
+    }
 
-        instance = this; // set the singleton instance
+    // cacheSize bytes of blocks are kept in memory in front of the volume (0 = no cache),
+    // written back lazily instead of right away if writeBack is set
+    public FileSystemManager(String filename, int blockSize, int blockCount, int inodeCount, String ioMode,
+                             long cacheSize, boolean writeBack) throws IOException {
+        this(filename, blockSize, blockCount, inodeCount, ioMode, cacheSize, writeBack, false);
+    }
+
+    // dedupe formats a new volume with deduplication, an existing volume keeps what it was formatted with
+    public FileSystemManager(String filename, int blockSize, int blockCount, int inodeCount, String ioMode,
+                             long cacheSize, boolean writeBack, boolean dedupe) throws IOException {
+        this(filename, blockSize, blockCount, inodeCount, ioMode, cacheSize, writeBack, dedupe, false);
+    }
+
+    // directories formats a new volume with directories (a tree lookup per path part) instead of
+    // one flat namespace (a FileIndex lookup); an existing volume keeps what it was formatted with
+    public FileSystemManager(String filename, int blockSize, int blockCount, int inodeCount, String ioMode,
+                             long cacheSize, boolean writeBack, boolean dedupe, boolean directories) throws IOException {
+        this.volumePath = Path.of(filename).toAbsolutePath().normalize();
         this.disk = new RandomAccessFile(filename, "rw");
-        this.inodeTable = new FEntry[MAXFILES];
-        this.freeBlockList = new boolean[MAXBLOCKS];
-        
-        if (disk.length() == 0) {
-            // if new disk initialize and save
-            initializeFileSystem(totalSize);
+        this.channel = disk.getChannel();
+        boolean newDisk = disk.length() == 0;
+        try {
+            if (newDisk) {
+                this.superblock = new Superblock(blockSize, blockCount, inodeCount,
+                        (dedupe ? Superblock.FEATURE_DEDUPE : 0) | Superblock.FEATURE_COMPRESSION
+                                | (directories ? Superblock.FEATURE_DIRECTORIES : 0));
+                // write the superblock and set the file size (sparse, blocks are only stored once written)
+                superblock.write(disk);
+                disk.setLength(superblock.getVolumeSize());
+            } else {
+                disk.seek(0);
+                this.superblock = Superblock.read(disk);
+                if (disk.length() < superblock.getVolumeSize()) {
+                    disk.setLength(superblock.getVolumeSize());
+                }
+            }
+            BlockDevice volume = BlockDevice.open(channel, superblock.getVolumeSize(), ioMode);
+            this.blockCache = cacheSize > 0
+                    ? new CachedBlockDevice(volume, superblock.getBlockSize(), cacheSize, writeBack) : null;
+            this.device = blockCache != null ? blockCache : volume;
+            this.mapped = volume instanceof MappedBlockDevice;
+            this.journal = new Journal(Path.of(filename + ".journal"), device);
+        } catch (IOException | IllegalArgumentException e) {
+            disk.close();
+            throw e;
+        }
+        this.maxFiles = superblock.getInodeCount();
+        this.maxBlocks = superblock.getBlockCount();
+        this.blockSize = superblock.getBlockSize();
+        this.inodeTable = new FEntry[maxFiles];
+        this.freeBlockList = new FreeBitmap(maxBlocks); // all free
+        this.fnodeTable = new FNode[maxBlocks];
+        this.directories = superblock.isDirectoriesSupported();
+        this.fileIndex = this.directories ? null : new FileIndex(inodeTable);
+        this.tree = this.directories ? new DirectoryTree(superblock.getTreePageCount()) : null;
+        this.freeInodes = new int[maxFiles];
+        this.fileVersions = new long[maxFiles];
+        this.fileLayouts = new long[maxFiles];
+        this.blockEpochs = new int[maxBlocks];
+        this.dedupe = superblock.isDedupe();
+        this.blockHashes = this.dedupe ? new long[2 * maxBlocks] : null;
+        this.blockRefs = this.dedupe ? new int[maxBlocks] : null;
+        this.hashIndex = this.dedupe ? new BlockHashIndex(blockHashes, fnodeTable) : null;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new TimedReadWriteLock(Metrics.get().getFileLockWait(), Metrics.get().getFileLockHold());
+        }
+
+        if (newDisk) {
+            // if new disk initialize and save, a journal left over from another volume is discarded
+            initializeFileSystem();
             saveMetadata(); // save initial state
+            journal.reset();
         } else {
-            // else: existing disk, reload saved metadata
+            // else: existing disk, finish any operation that was committed before a crash, then reload
+            journal.replay();
             loadMetadata();
+            reclaimLeakedBlocks();
         }
     }
 
     // initialize the file system structures 
-    private void initializeFileSystem(int totalSize) throws IOException {
-        // mark all blocks as free
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            freeBlockList[i] = true;  // false = used, true = free
+    private void initializeFileSystem() throws IOException {
+        // all blocks are free already, none is linked to anything yet
+        for (int i = 0; i < maxBlocks; i++) {
+            fnodeTable[i] = new FNode(i);
         }
 
         // initialize file entries
-        for (int i = 0; i < MAXFILES; i++) {
+        for (int i = 0; i < maxFiles; i++) {
             inodeTable[i] = new FEntry();
         }
+        rebuildIndex();
+    }
+
+    // commit everything still in the journal and close the volume
+    public void close() throws IOException {
+        // wait for every running operation
+        for (ReentrantReadWriteLock lock : fileLocks) {
+            lock.writeLock().lock();
+        }
+        long stamp = metaLock.writeLock();
+        try {
+            journal.close();
+            device.close();
+            disk.close();
+        } finally {
+            metaLock.unlockWrite(stamp);
+            for (ReentrantReadWriteLock lock : fileLocks) {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public Path getVolumePath() {
+        return volumePath;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return maxBlocks;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    // read without a lock, for the metrics: may be a moment old
+    public int getFreeBlockCount() {
+        return freeBlockList.getFreeCount();
+    }
+
+    public int getFileCount() {
+        return maxFiles - freeInodeCount;
+    }
+
+    public boolean isDedupe() {
+        return dedupe;
+    }
 
-        // Set the file size
-        if (disk.length() < totalSize) {
-            disk.setLength(totalSize);
+    public boolean isDirectoriesSupported() {
+        return directories;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    // codec writeFile packs contents with from now on, files already written keep theirs
+    // volumes formatted before compression existed have no room to record it in their inodes
+    public void setCompression(Compression compression) {
+        if (!compression.isOff() && !superblock.isCompressionSupported()) {
+            throw new IllegalArgumentException("This volume was formatted without support for compression.");
         }
+        this.compression = compression;
+    }
+
+    // listener is called with the path of every file or directory created, deleted or written,
+    // right after the change is durable, on the thread that made it (so it must be quick).
+    // a path can be reported again for a later change before an earlier report is handled
+    public void setChangeListener(Consumer<String> listener) {
+        this.changeListener = listener;
+    }
+
+    // hit/miss/eviction counters live here, null if the volume runs without a cache
+    public CachedBlockDevice getBlockCache() {
+        return blockCache;
     }
 
-    // create a singleton empty file system
+    // create an empty file
     public void createFile(String fileName) throws Exception {
-        rwLock.writeLock().lock();
+        createEntry(fileName, false);
+    }
+
+    // an empty file or directory at path, in a directory that exists already
+    private void createEntry(String path, boolean directory) throws Exception {
+        // check filename length
+        String name = entryName(path);
+        if (name.length() > 11) {
+            throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+        }
+        if (directories && (name.isEmpty() || name.equals(".") || name.equals(".."))) {
+            throw new IllegalArgumentException("Filename cannot be empty, . or ..");
+        }
+        MetadataTx tx = new MetadataTx();
+        ReentrantReadWriteLock fileLock = fileLock(path);
+        fileLock.writeLock().lock();
+        long stamp = metaLock.writeLock();
         try {
-            // check filename length
-            if (fileName.length() > 11) {
-                throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+            int parent = parentInode(path);
+            if (parent == MISSING) {
+                throw new Exception("ERROR: Directory " + parentPath(path) + " does not exist.");
             }
             // Check for no duplicates
-            for (FEntry entry : inodeTable) {
-                if (entry.isInUse() && entry.getFilename().equals(fileName)) {
-                    throw new Exception("File already exists.");
-                }
+            if (lookup(path) >= 0) {
+                throw new Exception(directory ? "Directory already exists." : "File already exists.");
             }
 
             // Find a free FEntry
             FEntry freeEntry = null;
-            for (FEntry entry : inodeTable) {
-                if (!entry.isInUse()) {
-                    freeEntry = entry;
-                    break;
-                }
+            int freeInode = -1;
+            if (freeInodeCount > 0) {
+                freeInode = freeInodes[--freeInodeCount];
+                freeEntry = inodeTable[freeInode];
             }
 
             if (freeEntry == null) { // add this to handle case if user creates more than 5 files
@@ -91,142 +340,374 @@ public class FileSystemManager {
 
             // initialize the new file 
             if (freeEntry != null) { //Unnecessary null check but just in case
-                freeEntry.setFilename(fileName);
-                freeEntry.setFilesize((short) 0);
-                freeEntry.setFirstBlock((short) -1); // No blocks assigned yet
+                preserveInode(freeInode);
+                freeEntry.setFilename(name);
+                freeEntry.setFilesize(0);
+                freeEntry.setFirstBlock(-1); // No blocks assigned yet
+                freeEntry.setParent(parent);
+                freeEntry.setDirectory(directory);
                 freeEntry.setInUse(true);
-                saveMetadata(); // persist changes
+                fileVersions[freeInode]++;
+                link(freeInode, tx);
+
+                tx.addInode(freeInode);
+                tx.addChangedPath(normalize(path));
+                logMetadata(tx); // persist changes
             }
             } finally {
-                rwLock.writeLock().unlock();
+                metaLock.unlockWrite(stamp);
+                fileLock.writeLock().unlock();
             }
+            commit(tx); // wait for the journal outside the locks so commits can be grouped
         }
 
         // Deletes existing file by overwriting data with zeros
     public void deleteFile(String fileName) throws Exception {
-        rwLock.writeLock().lock();
+        MetadataTx tx = new MetadataTx();
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.writeLock().lock();
+        long stamp = metaLock.writeLock();
         try {
-            FEntry targetEntry = null;
-            for (FEntry entry : inodeTable) {
-                if (entry.isInUse() && entry.getFilename().equals(fileName)) {
-                    targetEntry = entry;
-                    break;
-                }
-            }
+            int targetInode = lookup(fileName);
+            FEntry targetEntry = targetInode >= 0 ? inodeTable[targetInode] : null;
 
             if (targetEntry == null) {
                 throw new IllegalArgumentException("File " + fileName + " not found.");
             }
+            if (targetEntry.isDirectory()) {
+                throw new IllegalArgumentException(fileName + " is a directory, use RMDIR.");
+            }
 
-            // Free up blocks
-            int blockIndex = targetEntry.getFirstBlock();
-            if (blockIndex >= 0 && blockIndex < MAXBLOCKS) {
-                try {
-                    zeroOutBlock(blockIndex); // this throws IOException
-                } catch (IOException e) { // handle it
-                    throw new RuntimeException("Failed to zero out block " + blockIndex, e);
-                }
-                freeBlockList[blockIndex] = true;
-        }
+            // Free up every block in the chain, they are zeroed once the delete is durable
+            releaseChain(targetEntry.getFirstBlock(), tx);
+            tx.setZeroReleased(true);
 
             // reset data
+            unlink(targetInode, tx);
+            preserveInode(targetInode);
             targetEntry.clear();
-            saveMetadata(); // persist changes
+            fileVersions[targetInode]++;
+            freeInodes[freeInodeCount++] = targetInode;
+            tx.addInode(targetInode);
+            tx.addChangedPath(normalize(fileName));
+            logMetadata(tx); // persist changes
 
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlockWrite(stamp);
+            fileLock.writeLock().unlock();
+        }
+        try {
+            commit(tx); // this throws IOException
+        } catch (IOException e) { // handle it
+            throw new RuntimeException("Failed to zero out blocks of " + fileName, e);
         }
     }
 
-    // List all files in use
-    public String[] listFiles() {
-        rwLock.readLock().lock();
+    // DIRECTORY METHODS
+    // an empty directory at path, in a directory that exists already
+    public void createDirectory(String path) throws Exception {
+        checkDirectories();
+        createEntry(path, true);
+    }
+
+    // remove a directory, only once it is empty
+    public void deleteDirectory(String path) throws Exception {
+        checkDirectories();
+        MetadataTx tx = new MetadataTx();
+        ReentrantReadWriteLock fileLock = fileLock(path);
+        fileLock.writeLock().lock();
+        long stamp = metaLock.writeLock();
+        try {
+            int inode = lookup(path);
+            if (inode < 0 || !inodeTable[inode].isDirectory()) {
+                throw new IllegalArgumentException("Directory " + path + " not found.");
+            }
+            if (!tree.isEmpty(inode)) {
+                throw new Exception("ERROR: Directory " + path + " is not empty.");
+            }
+            unlink(inode, tx);
+            preserveInode(inode);
+            inodeTable[inode].clear();
+            fileVersions[inode]++;
+            freeInodes[freeInodeCount++] = inode;
+            tx.addInode(inode);
+            tx.addChangedPath(normalize(path));
+            logMetadata(tx);
+        } finally {
+            metaLock.unlockWrite(stamp);
+            fileLock.writeLock().unlock();
+        }
+        commit(tx);
+    }
+
+    private void checkDirectories() throws Exception {
+        if (!directories) {
+            throw new Exception("ERROR: This volume was formatted without support for directories.");
+        }
+    }
+
+    // one page of a directory listing, see list()
+    public static class Listing {
+        private final String[] names;
+        private final String next;
+
+        Listing(String[] names, String next) {
+            this.names = names;
+            this.next = next;
+        }
+
+        // names in order, directories end in '/'
+        public String[] getNames() {
+            return names;
+        }
+
+        // what to pass as after for the next page, null if this was the last one
+        public String getNext() {
+            return next;
+        }
+    }
+
+    // the entries of directory dir ("" = the top level) whose name starts with prefix, in name
+    // order, beginning after the name after (null = from the start), at most limit of them.
+    // with directories this is one tree descent to the first name wanted and a walk along the
+    // leaves from there, so it costs the same in a directory of ten names as in one of a million.
+    // a flat volume has only the top level and is searched as a whole.
+    public Listing list(String dir, String prefix, String after, int limit) throws Exception {
+        if (limit < 1 || limit > MAX_LIST_LIMIT) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIST_LIMIT + ".");
+        }
+        if (!directories && !dir.isEmpty() && !dir.equals("/")) {
+            throw new Exception("ERROR: This volume was formatted without support for directories.");
+        }
+        // optimistic first like listFiles, a half changed tree may throw: then it is read again locked
+        long stamp = metaLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Listing listing = collectListing(dir, prefix, after, limit);
+                if (metaLock.validate(stamp)) {
+                    return listing;
+                }
+            } catch (Exception e) {
+                if (metaLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = metaLock.readLock();
         try {
-            List<String> fileList = new ArrayList<>();
+            return collectListing(dir, prefix, after, limit);
+        } finally {
+            metaLock.unlockRead(stamp);
+        }
+    }
+
+    private Listing collectListing(String dir, String prefix, String after, int limit) throws Exception {
+        if (!directories) {
+            List<String> matches = new ArrayList<>();
             for (FEntry entry : inodeTable) {
-                if (entry.isInUse()) {
-                    fileList.add(entry.getFilename());
+                String name = entry.getFilename();
+                if (entry.isInUse() && name.startsWith(prefix) && (after == null || name.compareTo(after) > 0)) {
+                    matches.add(name);
                 }
             }
+            matches.sort(null);
+            List<String> names = matches.subList(0, Math.min(limit, matches.size()));
+            return new Listing(names.toArray(new String[0]), matches.size() > limit ? names.get(limit - 1) : null);
+        }
+        List<String> names = new ArrayList<>();
+        String[] last = {null};
+        boolean[] more = {false};
+        int parent = DirectoryTree.ROOT;
+        if (!normalize(dir).isEmpty()) {
+            parent = lookup(dir);
+            if (parent < 0 || !inodeTable[parent].isDirectory()) {
+                throw new Exception("ERROR: Directory " + dir + " does not exist.");
+            }
+        }
+        // the names with the prefix are next to each other, start at the first one still wanted
+        String from = after != null && after.compareTo(prefix) > 0 ? after : prefix;
+        tree.scan(parent, from, (name, inode) -> {
+            if (!name.startsWith(prefix)) {
+                return false;
+            }
+            if (after != null && name.compareTo(after) <= 0) {
+                return true; // the page before ended here
+            }
+            if (names.size() == limit) {
+                more[0] = true;
+                return false;
+            }
+            names.add(inodeTable[inode].isDirectory() ? name + "/" : name);
+            last[0] = name;
+            return true;
+        });
+        return new Listing(names.toArray(new String[0]), more[0] ? last[0] : null);
+    }
+
+    // List all files in use
+    public String[] listFiles() {
+        // optimistic first: no lock taken, the result is thrown away if anything changed meanwhile
+        long stamp = metaLock.tryOptimisticRead();
+        if (stamp != 0) {
+            String[] files = collectFiles();
+            if (metaLock.validate(stamp)) {
+                return files;
+            }
+        }
+        stamp = metaLock.readLock();
+        try {
             /* 
             //  debugging
             System.out.println("Free block list:");
-            for (int i = 0; i < freeBlockList.length; i++) {
-            System.out.println("Block " + i + ": " + freeBlockList[i]);
+            for (int i = 0; i < maxBlocks; i++) {
+            System.out.println("Block " + i + ": " + freeBlockList.isFree(i));
             }
             */
-            return fileList.toArray(new String[0]);
+            return collectFiles();
 
         } finally {
-            rwLock.readLock().unlock();
+            metaLock.unlockRead(stamp);
         }
     }
 
+    // every name on the volume, with directories as full paths (directories end in '/')
+    private String[] collectFiles() {
+        List<String> fileList = new ArrayList<>();
+        for (int i = 0; i < maxFiles; i++) {
+            FEntry entry = inodeTable[i];
+            if (entry.isInUse()) {
+                String path = pathOf(i, j -> inodeTable[j]);
+                fileList.add(entry.isDirectory() ? path + "/" : path);
+            }
+        }
+        return fileList.toArray(new String[0]);
+    }
+
     // method to write file
     public void writeFile(String fileName, byte[] contents) throws Exception {
-        rwLock.writeLock().lock();
+        writeFile(fileName, contents, compression);
+    }
+
+    // codec: what the contents are packed with, kept only if it saves at least one block
+    private void writeFile(String fileName, byte[] contents, Compression codec) throws Exception {
+        MetadataTx tx = new MetadataTx();
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.writeLock().lock();
         try {
 
             /* debugging
              * Thread.sleep(5000);
              */
 
-            // find the file
-            FEntry fileEntry = null;
-            for (FEntry entry : inodeTable) {
-                if (entry.isInUse() && entry.getFilename().equals(fileName)) {
-                    fileEntry = entry; // found it
-                    break;
-                }
-            }
-            if (fileEntry == null) {
-                throw new Exception("ERROR: File " + fileName + " does not exist.");
-            }
-    
             // make sure file size is within limits
-            if (contents.length > BLOCK_SIZE) {
-                throw new Exception("ERROR: File too large. Max size is " + BLOCK_SIZE + " bytes.");
+            if (contents.length > (long) maxBlocks * blockSize) {
+                throw new Exception("ERROR: File too large. Max size is " + ((long) maxBlocks * blockSize) + " bytes.");
             }
-    
-            // free old block if it exists
-            int oldBlock = fileEntry.getFirstBlock();
-            if (oldBlock >= 0) {
-                freeBlockList[oldBlock] = true; // mark old block free
+
+            // compress before taking any other lock
+            int rawBlocks = Math.max(1, (int) ((contents.length + (long) blockSize - 1) / blockSize));
+            byte[] packed = codec.compress(contents, (int) Math.min(Integer.MAX_VALUE, (long) (rawBlocks - 1) * blockSize));
+            byte[] stored = packed != null ? packed : contents; // what goes into the blocks
+            int storedCodec = packed != null ? codec.getCodec() : Compression.NONE;
+
+            int blocksNeeded = Math.max(1, (int) ((stored.length + (long) blockSize - 1) / blockSize));
+            long[] hashes = dedupe ? hashBlocks(stored, stored.length, blocksNeeded) : null;
+
+            // 1. pick the blocks under the metadata lock
+            int inode;
+            int[] oldBlocks;
+            int[] blocks;
+            int[] fresh; // blocks taken from the allocator, given back if the write fails
+            int[] shared = new int[0]; // dedupe: the end of the file, already stored
+            long stamp = metaLock.writeLock();
+            try {
+                // find the file
+                inode = lookupFile(fileName);
+                if (inode < 0) {
+                    throw new Exception("ERROR: File " + fileName + " does not exist.");
+                }
+
+                // find enough free blocks, contiguous if possible
+                oldBlocks = chainBlocks(inodeTable[inode].getFirstBlock());
+                if (dedupe) {
+                    // only the blocks in front of the stored ending are written; the old chain is
+                    // dropped in step 3, once nothing can fail any more
+                    shared = matchSuffix(hashes, blocksNeeded, tx);
+                    fresh = allocateBlocks(blocksNeeded - shared.length, tx);
+                    if (fresh == null) {
+                        for (int block : shared) {
+                            blockRefs[block]--; // still in this lock section, nobody dropped them meanwhile
+                        }
+                        throw new Exception("ERROR: No free blocks available.");
+                    }
+                    blocks = Arrays.copyOf(fresh, blocksNeeded);
+                    System.arraycopy(shared, 0, blocks, fresh.length, shared.length);
+                } else if (blocksNeeded <= freeBlockList.getFreeCount()) {
+                    // copy on write: the old chain stays intact until the new one is committed
+                    blocks = allocateBlocks(blocksNeeded, tx);
+                    fresh = blocks;
+                    for (int block : oldBlocks) {
+                        tx.release(block);
+                    }
+                } else {
+                    // no room for a second copy: refused, overwriting the live blocks would tear the
+                    // file if the server stopped halfway (the journal only covers the metadata)
+                    throw new Exception("ERROR: No free blocks available.");
+                }
+            } finally {
+                metaLock.unlockWrite(stamp);
             }
-    
-            // find a new free block
-            int newBlock = -1;
-            for (int i = 0; i < MAXBLOCKS; i++) {
-                if (freeBlockList[i]) { // true = free
-                    newBlock = i;
-                    freeBlockList[i] = false; // mark allocated
-                    break;
+
+            // 2. write contents one extent (run of consecutive blocks) at a time, only the file lock is held
+            try {
+                if (dedupe) {
+                    writeExtents(fresh, stored, (int) Math.min(stored.length, (long) fresh.length * blockSize));
+                } else {
+                    writeExtents(blocks, stored, stored.length);
                 }
+            } catch (IOException | RuntimeException e) {
+                freeBlocks(fresh);
+                dropBlocks(shared);
+                throw e;
             }
-            if (newBlock == -1) {
-                throw new Exception("ERROR: No free blocks available.");
+
+            // 3. point the file at its new chain
+            stamp = metaLock.writeLock();
+            try {
+                if (dedupe) {
+                    linkChain(fresh, tx);
+                    if (fresh.length > 0 && shared.length > 0) {
+                        fnodeTable[fresh[fresh.length - 1]].setNext(shared[0]);
+                    }
+                    addBlocks(fresh, hashes, tx);
+                    for (int block : oldBlocks) {
+                        dropBlock(block, tx);
+                    }
+                } else {
+                    linkChain(blocks, tx);
+                }
+                preserveInode(inode);
+                FEntry fileEntry = inodeTable[inode];
+                fileEntry.setFirstBlock(blocks[0]);
+                fileEntry.setFilesize(contents.length);
+                fileEntry.setStorage(storedCodec, stored.length);
+                fileVersions[inode]++;
+                tx.addInode(inode);
+                tx.addChangedPath(normalize(fileName));
+                logMetadata(tx);
+            } finally {
+                metaLock.unlockWrite(stamp);
             }
-    
-            // write contents to the new block
-            byte[] blockData = new byte[BLOCK_SIZE];
-            System.arraycopy(contents, 0, blockData, 0, contents.length);
-    
-            disk.seek(METADATA_SIZE + (long) newBlock * BLOCK_SIZE); // seek to block position
-            disk.write(blockData); //now that we have seeked, write the data
-    
-            // update FEntry
-            fileEntry.setFirstBlock((short) newBlock);
-            fileEntry.setFilesize((short) contents.length);
 
-            saveMetadata();
-    
         } finally {
-            rwLock.writeLock().unlock();
+            fileLock.writeLock().unlock();
         }
+        commit(tx);
     }
     
     public byte[] readFile(String fileName) throws Exception {
-        rwLock.readLock().lock(); // aquire lock
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.readLock().lock(); // aquire lock, only writers of this file are kept out
         try {
 
             /* 
@@ -234,109 +715,2277 @@ public class FileSystemManager {
             * Thread.sleep(5000);
             */
 
-            // find file in inode table
-            FEntry fileEntry = null;
-            for (FEntry entry : inodeTable) {
-                if (entry.isInUse() && entry.getFilename().equals(fileName)) {
-                    fileEntry = entry;
-                    break;
-                }
-            }
-            if (fileEntry == null) {
-                throw new Exception("ERROR: File " + fileName + " does not exist.");
+            FEntry fileEntry = readableEntry(fileName);
+
+            // determine how many bytes to read
+            if (fileEntry.getFilesize() > Integer.MAX_VALUE - 8) {
+                throw new Exception("ERROR: File " + fileName + " is too large to read in one piece.");
             }
+            byte[] data = new byte[(int) fileEntry.getPhysicalSize()];
+
+            // straight from the volume into the result, no intermediate buffer (unless it is compressed)
+            int[] offset = {0};
+            forEachExtent(fileEntry, (position, length) -> {
+                device.read(ByteBuffer.wrap(data, offset[0], length), position);
+                offset[0] += length;
+            });
+
+            return Compression.decompress(fileEntry.getCodec(), data, (int) fileEntry.getFilesize());
     
-            // check if file has data
-            int blockIndex = fileEntry.getFirstBlock();
-            if (blockIndex < 0 || blockIndex >= MAXBLOCKS || freeBlockList[blockIndex]) {
-                throw new Exception("ERROR: File " + fileName + " has no data stored.");
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // whether a file (not a directory) of this name is on the volume
+    public boolean fileExists(String fileName) {
+        return findInode(fileName) >= 0;
+    }
+
+    // whether a directory of this name is on the volume
+    public boolean directoryExists(String path) {
+        if (!directories) {
+            return false;
+        }
+        long stamp = metaLock.readLock();
+        try {
+            int inode = lookup(path);
+            return inode >= 0 && inodeTable[inode].isDirectory();
+        } finally {
+            metaLock.unlockRead(stamp);
+        }
+    }
+
+    // size of a file in bytes, throws if it does not exist
+    public long getFileSize(String fileName) throws Exception {
+        FEntry fileEntry = findEntry(fileName);
+        if (fileEntry == null) {
+            throw new Exception("ERROR: File " + fileName + " does not exist.");
+        }
+        return fileEntry.getFilesize();
+    }
+
+    // send a file to target extent by extent with FileChannel.transferTo (sendfile): the bytes go
+    // from the page cache to the socket without ever being copied into the heap.
+    // header is called first with the file size, while the file lock is already held, so the size
+    // announced always matches what follows. A slow target keeps writers of this file waiting.
+    public long transferFile(String fileName, WritableByteChannel target, SizeHeader header) throws Exception {
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.readLock().lock();
+        try {
+            FEntry fileEntry = readableEntry(fileName);
+            header.write(fileEntry.getFilesize());
+            if (fileEntry.getCodec() != Compression.NONE) {
+                // the blocks hold the compressed bytes, the contents have to be inflated on the heap
+                try (ReadStream in = openRead(fileName, 0)) {
+                    in.transferTo(Channels.newOutputStream(target));
+                }
+            } else {
+                forEachExtent(fileEntry, (position, length) -> device.transferTo(position, length, target));
             }
-    
-            // determine how many bytes to read
-            int size = fileEntry.getFilesize();
-            byte[] data = new byte[size];
-    
-            // read data from disk
-            disk.seek(METADATA_SIZE + (long) blockIndex * BLOCK_SIZE);
-            disk.read(data, 0, size);
-    
-            return data;
-    
+            return fileEntry.getFilesize();
         } finally {
-            rwLock.readLock().unlock();
+            fileLock.readLock().unlock();
         }
     }
-    
 
-    // Overwrite block with zeros
-    private void zeroOutBlock(int blockIndex) throws IOException {
-        byte[] zeros = new byte[BLOCK_SIZE];
-        long offset = (long) blockIndex * BLOCK_SIZE;
-        disk.seek(offset);
-        disk.write(zeros);
+    // what transferFile calls to announce the size before sending the contents
+    public interface SizeHeader {
+        void write(long size) throws IOException;
     }
 
-    // SAVING STATE METHODS
-    // helper to read fixed size string from disk file
-    private String readFixedString(int length) throws IOException {
-        // must read exactly 11 bytes
-        byte[] data = new byte[length];
-        disk.readFully(data);     
-        return new String(data).trim();
+    // PARTIAL READ/WRITE METHODS
+    // up to length bytes of a file starting at offset (fewer at the end of the file)
+    public byte[] read(String fileName, long offset, int length) throws Exception {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length cannot be negative.");
+        }
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.readLock().lock(); // held across the whole read so the stream never sees a change
+        try {
+            try (ReadStream in = openRead(fileName, offset)) {
+                return in.readNBytes((int) Math.min(length, in.getSize() - offset));
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // overwrite bytes at offset, growing the file if they go past its end. offset may be at most
+    // the file size (no holes). Only the blocks the bytes land in are written, each into a new
+    // block that replaces the old one in the chain (copy on write), so a crash leaves either the
+    // old or the new contents, and without room for the copies the write is refused. Two cases
+    // cost more: a compressed file is rewritten whole, once, and stored uncompressed from then on
+    // (see rewriteCompressed), and on a dedupe volume bytes landing behind an ending shared with
+    // other files copy the file up to there (see rewriteAt).
+    public void write(String fileName, long offset, byte[] bytes) throws Exception {
+        writeAt(fileName, offset, bytes);
+    }
+
+    // add bytes at the end of a file, only its last block and the new ones are written
+    public void append(String fileName, byte[] bytes) throws Exception {
+        writeAt(fileName, -1, bytes);
     }
 
-    void saveMetadata() throws IOException {
-        rwLock.writeLock().lock();
+    // offset -1 = the current end of the file
+    private void writeAt(String fileName, long offset, byte[] bytes) throws Exception {
+        MetadataTx tx = new MetadataTx();
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.writeLock().lock();
         try {
-            // save inode table
-            disk.seek(0);
+            // the codec of a file only changes under its write lock, which we hold
+            FEntry current = findEntry(fileName);
+            if (current != null && current.getCodec() != Compression.NONE) {
+                rewriteCompressed(fileName, offset, bytes);
+                return;
+            }
 
-            for (FEntry entry : inodeTable) {
-                String name = entry.getFilename();
-                if (name == null) {
-                    name = "";
+            // 1. find the blocks the bytes land in and get new ones for them
+            int inode;
+            long size;
+            long newSize;
+            int firstIndex; // index in the chain of the first block written
+            int prev = -1; // block before it, -1 if it is the first block of the file
+            int[] oldBlocks; // blocks of the chain being replaced
+            int successor; // block after the last replaced one, -1 if none
+            int[] targets = null; // new blocks that will hold the bytes, given back if they cannot be written
+            boolean behindShared; // dedupe: prev is shared with other files, its next pointer must not change
+            long stamp = metaLock.writeLock();
+            try {
+                inode = lookupFile(fileName);
+                if (inode < 0) {
+                    throw new Exception("ERROR: File " + fileName + " does not exist.");
+                }
+                FEntry entry = inodeTable[inode];
+                size = entry.getFilesize();
+                if (offset == -1) {
+                    offset = size;
+                }
+                if (offset < 0 || offset > size) {
+                    throw new IllegalArgumentException("Offset " + offset + " is outside of " + fileName
+                            + " (" + size + " bytes).");
+                }
+                newSize = Math.max(size, offset + bytes.length);
+                if (newSize > (long) maxBlocks * blockSize) {
+                    throw new Exception("ERROR: File too large. Max size is " + ((long) maxBlocks * blockSize) + " bytes.");
+                }
+                if (bytes.length == 0) {
+                    return;
+                }
+                firstIndex = (int) (offset / blockSize);
+                int count = (int) ((offset + bytes.length - 1) / blockSize) - firstIndex + 1;
+
+                // walk to the first block written, then over the ones it replaces
+                int block = entry.getFirstBlock();
+                for (int i = 0; i < firstIndex && block >= 0; i++) {
+                    prev = block;
+                    block = fnodeTable[block].getNext();
+                }
+                int[] replaced = new int[count];
+                int existing = 0;
+                while (existing < count && block >= 0) {
+                    replaced[existing++] = block;
+                    block = fnodeTable[block].getNext();
                 }
-                if (name.length() < 11){
-                    name = String.format("%-11s", name); // pad with spaces   
-                } 
-                disk.writeBytes(name); //write bytes, helper no longer needed
-                disk.writeShort(entry.getFilesize());
-                disk.writeShort(entry.getFirstBlock());
-                disk.writeBoolean(entry.isInUse());
+                oldBlocks = Arrays.copyOf(replaced, existing);
+                successor = block;
+
+                behindShared = dedupe && prev >= 0 && blockRefs[prev] > 1;
+                if (!behindShared) {
+                    // never in place, the old blocks must survive a crash until the new ones are linked
+                    if (count > freeBlockList.getFreeCount()) {
+                        throw new Exception("ERROR: No free blocks available.");
+                    }
+                    targets = allocateBlocks(count, tx);
+                }
+            } finally {
+                metaLock.unlockWrite(stamp);
+            }
+            if (behindShared) {
+                rewriteAt(fileName, offset, bytes);
+                return;
+            }
+
+            // 2. build the new contents of those blocks: old bytes around the edges, new bytes in between
+            long start = (long) firstIndex * blockSize; // file offset of targets[0]
+            int used = (int) Math.min((long) targets.length * blockSize, newSize - start);
+            long[] hashes;
+            try {
+                byte[] data = new byte[targets.length * blockSize];
+                int head = (int) (offset - start);
+                if (head > 0) {
+                    device.read(ByteBuffer.wrap(data, 0, head), superblock.getBlockOffset(oldBlocks[0]));
+                }
+                long end = offset + bytes.length; // old bytes after the written range, up to the old size
+                int tail = (int) Math.max(0, Math.min(size, start + (long) oldBlocks.length * blockSize) - end);
+                if (tail > 0) {
+                    int from = (int) (end - start);
+                    device.read(ByteBuffer.wrap(data, from, tail),
+                            superblock.getBlockOffset(oldBlocks[from / blockSize]) + from % blockSize);
+                }
+                System.arraycopy(bytes, 0, data, head, bytes.length);
+                hashes = dedupe ? hashBlocks(data, used, targets.length) : null;
+                writeExtents(targets, data, used);
+            } catch (IOException | RuntimeException e) {
+                // the file still points at its old blocks, the new ones go back to the free list
+                freeBlocks(targets);
+                throw e;
             }
-            // save free block list
-            for (boolean isFree : freeBlockList) {
-                disk.writeBoolean(isFree);
+
+            // 3. splice the blocks into the chain and commit
+            stamp = metaLock.writeLock();
+            try {
+                behindShared = dedupe && prev >= 0 && blockRefs[prev] > 1; // another file may have come to share it
+                if (!behindShared) {
+                    linkChain(targets, tx);
+                    fnodeTable[targets[targets.length - 1]].setNext(successor);
+                    preserveInode(inode);
+                    if (prev >= 0) {
+                        relink(prev, targets[0], tx);
+                    } else {
+                        inodeTable[inode].setFirstBlock(targets[0]);
+                    }
+                    for (int block : oldBlocks) {
+                        dropBlock(block, tx);
+                    }
+                    if (dedupe) {
+                        addBlocks(targets, hashes, tx);
+                    }
+                    inodeTable[inode].setFilesize(newSize);
+                    fileVersions[inode]++;
+                    tx.addInode(inode);
+                    tx.addChangedPath(normalize(fileName));
+                    logMetadata(tx);
+                }
+            } finally {
+                metaLock.unlockWrite(stamp);
+            }
+            if (behindShared) {
+                freeBlocks(targets);
+                rewriteAt(fileName, offset, bytes);
+                return;
             }
         } finally {
-            rwLock.writeLock().unlock();
+            fileLock.writeLock().unlock();
         }
+        commit(tx);
     }
 
-    private void loadMetadata() throws IOException {
-        rwLock.writeLock().lock();
+    // dedupe: write bytes at offset by streaming the whole file again, used when they land behind a
+    // block shared with other files (whose next pointer must not change). The unchanged end of the
+    // file is found again by the stream's dedupe pass, so only the blocks in front of it are new.
+    // caller holds the file's write lock
+    private void rewriteAt(String fileName, long offset, byte[] bytes) throws Exception {
+        long size = getFileSize(fileName);
+        WriteStream out = openWrite(fileName, 0);
+        try {
+            byte[] chunk = new byte[IO_BUFFER_SIZE];
+            try (ReadStream in = openRead(fileName, 0)) {
+                copy(in, out, offset, chunk);
+            }
+            out.write(bytes);
+            long end = offset + bytes.length;
+            if (end < size) {
+                try (ReadStream in = openRead(fileName, end)) {
+                    copy(in, out, size - end, chunk);
+                }
+            }
+        } catch (Exception e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+    }
+
+    // a compressed file is one packed stream, bytes in the middle of it cannot be replaced:
+    // inflate the whole file, patch it and write it again uncompressed, so that the next writes
+    // (an APPEND after another) only touch their own blocks instead of repacking it every time.
+    // caller holds the file's write lock
+    private void rewriteCompressed(String fileName, long offset, byte[] bytes) throws Exception {
+        byte[] contents = readFile(fileName);
+        if (offset == -1) {
+            offset = contents.length;
+        }
+        if (offset < 0 || offset > contents.length) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside of " + fileName
+                    + " (" + contents.length + " bytes).");
+        }
+        long newSize = Math.max(contents.length, offset + bytes.length);
+        if (newSize > Integer.MAX_VALUE - 8) {
+            throw new Exception("ERROR: File " + fileName + " is too large to rewrite in one piece.");
+        }
+        if (bytes.length == 0) {
+            return;
+        }
+        contents = Arrays.copyOf(contents, (int) newSize);
+        System.arraycopy(bytes, 0, contents, (int) offset, bytes.length);
+        writeFile(fileName, contents, Compression.OFF);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length, byte[] chunk) throws IOException {
+        while (length > 0) {
+            int n = in.read(chunk, 0, (int) Math.min(chunk.length, length));
+            if (n < 0) {
+                throw new IOException("ERROR: File ended early.");
+            }
+            out.write(chunk, 0, n);
+            length -= n;
+        }
+    }
+
+    // STREAMING METHODS
+    // stream new contents into a file without holding them in memory. The first offset bytes of
+    // the current contents are kept (0 replaces the file, its size appends or resumes an upload)
+    // and whatever is written to the stream follows them. Blocks are allocated and written as
+    // chunks arrive; the file itself only changes when the stream is closed.
+    public WriteStream openWrite(String fileName, long offset) throws Exception {
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.readLock().lock(); // no write of this file is half done while we look at it
         try {
-            disk.seek(0); // seek to start
+            int inode = findInode(fileName);
+            if (inode < 0) {
+                throw new Exception("ERROR: File " + fileName + " does not exist.");
+            }
+            FEntry entry = inodeTable[inode];
+            if (offset < 0 || offset > entry.getFilesize()) {
+                throw new IllegalArgumentException("Offset " + offset + " is outside of " + fileName
+                        + " (" + entry.getFilesize() + " bytes).");
+            }
+            int[] chain = chainBlocks(entry.getFirstBlock());
+            // dedupe: if the last kept block is shared with other files its next pointer cannot
+            // change, copy the kept part too (checked again in close, sharing can start any time)
+            // a compressed file has no blocks of plain contents to keep, its kept part is inflated
+            // and copied, the new contents are stored uncompressed
+            int kept = (int) (offset / blockSize);
+            boolean copyPrefix = entry.getCodec() != Compression.NONE
+                    || dedupe && kept > 0 && blockRefs[chain[kept - 1]] > 1;
+            return new WriteStream(fileName, inode, offset, chain, copyPrefix);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
 
-            for (int i = 0; i < MAXFILES; i++) {
-                String name = readFixedString(11).trim();
-                short size = disk.readShort();
-                short firstBlock = disk.readShort();
-                boolean inUse = disk.readBoolean();
-                FEntry e = new FEntry();
-                e.setFilename(name);
-                e.setFilesize(size);
-                e.setFirstBlock(firstBlock);
-                e.setInUse(inUse);
-                inodeTable[i] = e;
+    // stream the contents of a file from offset on, a chunk per read() call
+    public ReadStream openRead(String fileName, long offset) throws Exception {
+        ReentrantReadWriteLock fileLock = fileLock(fileName);
+        fileLock.readLock().lock();
+        try {
+            int inode = findInode(fileName);
+            if (inode < 0) {
+                throw new Exception("ERROR: File " + fileName + " does not exist.");
+            }
+            FEntry entry = inodeTable[inode];
+            if (offset < 0 || offset > entry.getFilesize()) {
+                throw new IllegalArgumentException("Offset " + offset + " is outside of " + fileName
+                        + " (" + entry.getFilesize() + " bytes).");
+            }
+            if (entry.getCodec() != Compression.NONE) {
+                // compressed: inflate from the start and throw away what comes before offset
+                ReadStream in = new ReadStream(fileName, inode, entry, 0, entry.getFirstBlock());
+                try {
+                    in.skipNBytes(offset);
+                } catch (IOException e) {
+                    in.close();
+                    throw e;
+                }
+                return in;
+            }
+            // walk to the block holding offset
+            int block = entry.getFirstBlock();
+            for (long skip = offset / blockSize; skip > 0 && block >= 0; skip--) {
+                block = fnodeTable[block].getNext();
+            }
+            return new ReadStream(fileName, inode, entry, offset, block);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // new contents of a file, see openWrite. Not locked while open, so a slow client costs
+    // nobody else anything; if the file is changed by someone else meanwhile, close() fails
+    // and the blocks written so far are given back. Use from one thread at a time.
+    public class WriteStream extends OutputStream {
+        private final String fileName;
+        private final int inode;
+        private final long version;
+        private final long offset;
+        private final long layout;
+        private int[] oldBlocks; // the file's chain when the stream was opened
+        private final int keptBlocks; // whole blocks of oldBlocks that stay part of the file
+        private final MetadataTx tx = new MetadataTx();
+        private final byte[] buffer; // one chunk, written out whenever it fills up
+        private int buffered;
+        private int[] newBlocks = new int[16];
+        private long[] newHashes = new long[dedupe ? 32 : 0]; // dedupe: content hash of each new block
+        private int newBlockCount;
+        private long written;
+        private boolean closed;
+
+        private WriteStream(String fileName, int inode, long offset, int[] oldBlocks, boolean copyPrefix) throws Exception {
+            this.fileName = fileName;
+            this.inode = inode;
+            this.version = fileVersions[inode];
+            this.layout = fileLayouts[inode];
+            this.offset = offset;
+            this.oldBlocks = oldBlocks;
+            this.keptBlocks = copyPrefix ? 0 : (int) (offset / blockSize);
+            this.buffer = new byte[Math.max(1, IO_BUFFER_SIZE / blockSize) * blockSize];
+
+            // what is kept but not as whole blocks is copied into the new blocks: normally only
+            // a block partly kept, with copyPrefix everything before offset. Read through a
+            // ReadStream so compressed files come out inflated (openWrite holds the file's lock)
+            long copied = (long) keptBlocks * blockSize;
+            if (copied < offset) {
+                try (ReadStream in = openRead(fileName, copied)) {
+                    while (copied < offset) {
+                        int n = in.read(buffer, buffered, (int) Math.min(buffer.length - buffered, offset - copied));
+                        if (n < 0) {
+                            throw new IOException("ERROR: File ended early.");
+                        }
+                        buffered += n;
+                        copied += n;
+                        if (buffered == buffer.length) {
+                            writeChunk();
+                        }
+                    }
+                } catch (Exception e) {
+                    abort();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            if (offset + written + len > (long) maxBlocks * blockSize) {
+                throw new IOException("ERROR: File too large. Max size is " + ((long) maxBlocks * blockSize) + " bytes.");
+            }
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - buffered);
+                System.arraycopy(b, off, buffer, buffered, n);
+                buffered += n;
+                written += n;
+                off += n;
+                len -= n;
+                if (buffered == buffer.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        // number of bytes written to the stream so far
+        public long getWritten() {
+            return written;
+        }
+
+        // put the buffered bytes in freshly allocated blocks, the last one padded with zeros
+        private void writeChunk() throws IOException {
+            int count = (int) ((buffered + (long) blockSize - 1) / blockSize);
+            int[] blocks;
+            long stamp = metaLock.writeLock();
+            try {
+                blocks = allocateBlocks(count, tx);
+            } finally {
+                metaLock.unlockWrite(stamp);
+            }
+            if (blocks == null) {
+                throw new IOException("ERROR: No free blocks available.");
+            }
+            if (newBlockCount + count > newBlocks.length) {
+                newBlocks = Arrays.copyOf(newBlocks, Math.max(newBlocks.length * 2, newBlockCount + count));
+            }
+            System.arraycopy(blocks, 0, newBlocks, newBlockCount, count);
+            if (dedupe) {
+                if (2 * (newBlockCount + count) > newHashes.length) {
+                    newHashes = Arrays.copyOf(newHashes, 2 * newBlocks.length);
+                }
+                System.arraycopy(hashBlocks(buffer, buffered, count), 0, newHashes, 2 * newBlockCount, 2 * count);
+            }
+            newBlockCount += count;
+            writeExtents(blocks, buffer, buffered);
+            buffered = 0;
+        }
+
+        // make the new contents the file's contents
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (buffered > 0) {
+                writeChunk();
+            }
+            closed = true;
+            int[] blocks = Arrays.copyOf(newBlocks, newBlockCount);
+
+            ReentrantReadWriteLock fileLock = fileLock(fileName);
+            fileLock.writeLock().lock();
+            long stamp = metaLock.writeLock();
+            if (fileVersions[inode] == version && fileLayouts[inode] != layout) {
+                oldBlocks = chainBlocks(inodeTable[inode].getFirstBlock()); // moved by the compactor meanwhile
+            }
+            int lastKept = keptBlocks > 0 ? oldBlocks[keptBlocks - 1] : -1;
+            boolean changed = fileVersions[inode] != version
+                    || (dedupe && lastKept >= 0 && blockRefs[lastKept] > 1); // another file came to share the kept part
+            int[] duplicates = new int[0]; // dedupe: new blocks whose contents turned out to be stored already
+            try {
+                if (!changed) {
+                    // kept prefix, then the new blocks
+                    int[] shared = new int[0];
+                    if (dedupe) {
+                        // the stored ending must not run through lastKept, whose next pointer changes below;
+                        // it is the only kept block a match could reach, so it is left out of the index
+                        if (lastKept >= 0) {
+                            hashIndex.remove(lastKept);
+                        }
+                        shared = matchSuffix(newHashes, blocks.length, tx);
+                        duplicates = Arrays.copyOfRange(blocks, blocks.length - shared.length, blocks.length);
+                        blocks = Arrays.copyOf(blocks, blocks.length - shared.length);
+                    }
+                    linkChain(blocks, tx);
+                    if (blocks.length > 0 && shared.length > 0) {
+                        fnodeTable[blocks[blocks.length - 1]].setNext(shared[0]);
+                    }
+                    int next = blocks.length > 0 ? blocks[0] : shared.length > 0 ? shared[0] : -1;
+                    if (lastKept >= 0) {
+                        relink(lastKept, next, tx);
+                    }
+                    for (int i = keptBlocks; i < oldBlocks.length; i++) {
+                        dropBlock(oldBlocks[i], tx);
+                    }
+                    if (dedupe) {
+                        addBlocks(blocks, newHashes, tx);
+                    }
+                    preserveInode(inode);
+                    FEntry entry = inodeTable[inode];
+                    entry.setFirstBlock(keptBlocks > 0 ? oldBlocks[0] : next);
+                    entry.setFilesize(offset + written);
+                    entry.setStorage(Compression.NONE, 0);
+                    fileVersions[inode]++;
+                    tx.addInode(inode);
+                    tx.addChangedPath(normalize(fileName));
+                    logMetadata(tx);
+                }
+            } finally {
+                metaLock.unlockWrite(stamp);
+                fileLock.writeLock().unlock();
+            }
+            if (changed) {
+                freeBlocks(blocks);
+                throw new IOException("ERROR: File " + fileName + " was changed while it was being written.");
+            }
+            freeBlocks(duplicates); // never part of any file, nothing to wait for
+            commit(tx);
+        }
+
+        // drop everything written, the file stays as it was
+        public void abort() {
+            if (!closed) {
+                closed = true;
+                freeBlocks(Arrays.copyOf(newBlocks, newBlockCount));
+            }
+        }
+    }
+
+    // contents of a file, see openRead. Each read() takes the file's read lock only for the
+    // copy itself; if the file was changed since the stream was opened it throws, and the
+    // caller can open a new stream at the position it got to.
+    // a compressed file is inflated on the way, position and size count the inflated bytes.
+    public class ReadStream extends InputStream {
+        private final String fileName;
+        private final int inode;
+        private final long version;
+        private long layout;
+        private final long size;
+        private long position;
+        private final long storedSize; // bytes in the blocks, fewer than size if compressed
+        private long storedPosition;
+        private int block; // block holding storedPosition
+        private final InputStream decoder; // compressed: inflates what readStored returns, null otherwise
+
+        // starts at position, which must be 0 for a compressed file
+        private ReadStream(String fileName, int inode, FEntry entry, long position, int block) throws IOException {
+            this.fileName = fileName;
+            this.inode = inode;
+            this.version = fileVersions[inode];
+            this.layout = fileLayouts[inode];
+            this.size = entry.getFilesize();
+            this.position = position;
+            this.storedSize = entry.getPhysicalSize();
+            this.storedPosition = position;
+            this.block = block;
+            if (entry.getCodec() == Compression.NONE) {
+                this.decoder = null;
+            } else {
+                this.decoder = Compression.decoder(entry.getCodec(), new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        byte[] b = new byte[1];
+                        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        return readStored(b, off, len);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int wanted = (int) Math.min(len, size - position);
+            int n = decoder != null ? decoder.read(b, off, wanted) : readStored(b, off, wanted);
+            if (n < 0) {
+                throw new IOException("ERROR: File " + fileName + " ended early.");
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (decoder != null) {
+                decoder.close();
+            }
+        }
+
+        // reads as much of the stored bytes as fits in len from the extent at the stored position
+        private int readStored(byte[] b, int off, int len) throws IOException {
+            if (storedPosition >= storedSize) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            ReentrantReadWriteLock fileLock = fileLock(fileName);
+            fileLock.readLock().lock();
+            try {
+                if (fileVersions[inode] != version) {
+                    throw new IOException("ERROR: File " + fileName + " was changed while it was being read.");
+                }
+                if (fileLayouts[inode] != layout) {
+                    // the compactor moved the blocks, same contents: find our place in the new chain
+                    block = inodeTable[inode].getFirstBlock();
+                    for (long i = storedPosition / blockSize; i > 0; i--) {
+                        block = fnodeTable[block].getNext();
+                    }
+                    layout = fileLayouts[inode];
+                }
+                // consecutive blocks from here, only as many as this read needs
+                int inBlock = (int) (storedPosition % blockSize);
+                long wanted = Math.min(len, storedSize - storedPosition);
+                int runLength = 1;
+                while ((long) runLength * blockSize - inBlock < wanted
+                        && fnodeTable[block + runLength - 1].getNext() == block + runLength) {
+                    runLength++;
+                }
+                int n = (int) Math.min(wanted, (long) runLength * blockSize - inBlock);
+                device.read(ByteBuffer.wrap(b, off, n), superblock.getBlockOffset(block) + inBlock);
+
+                // move to the block holding the new position
+                int advanced = (inBlock + n) / blockSize;
+                if (advanced == runLength) {
+                    block = fnodeTable[block + runLength - 1].getNext();
+                } else {
+                    block += advanced;
+                }
+                storedPosition += n;
+                return n;
+            } finally {
+                fileLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+
+    // BATCH METHODS
+    // run the operations of a batch as one unit. The locks of all the files it names are taken
+    // once (in stripe order, so two batches cannot deadlock each other) and held throughout.
+    // 1. the contents of every WRITE go to new blocks (a batch never overwrites in place)
+    // 2. in a single metaLock section every operation is checked against the tables as the
+    //    operations before it leave them, then all are applied and logged as one journal record
+    // 3. one wait until that record is durable
+    // atomic: if any operation fails nothing is applied and the error names the operation.
+    // otherwise failed operations are skipped and their errors are kept in the batch.
+    public void apply(Batch batch) throws Exception {
+        List<Batch.Op> ops = batch.getOps();
+        String[] paths = new String[ops.size()]; // the names the operations work on, as looked up
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (int i = 0; i < ops.size(); i++) {
+            ops.get(i).error = null;
+            paths[i] = normalize(ops.get(i).fileName);
+            stripes[lockStripe(paths[i])] = true;
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                fileLocks[i].writeLock().lock();
+            }
+        }
+        MetadataTx tx = new MetadataTx();
+        PreparedWrite[] writes = new PreparedWrite[ops.size()];
+        boolean applied = false;
+        try {
+            // 1. contents first, only the file locks are held
+            for (int i = 0; i < ops.size(); i++) {
+                Batch.Op op = ops.get(i);
+                if (op.kind == Batch.WRITE) {
+                    try {
+                        writes[i] = prepareWrite(op.contents, tx);
+                    } catch (IOException | RuntimeException e) {
+                        throw e; // the volume itself failed, not this operation
+                    } catch (Exception e) {
+                        op.error = e.getMessage().replaceFirst("^ERROR: ", ""); // the answer adds its own
+                        if (batch.isAtomic()) {
+                            throw batchFailed(batch, i);
+                        }
+                    }
+                }
+            }
+
+            // 2. check and apply everything under one metadata lock section
+            long stamp = metaLock.writeLock();
+            try {
+                int failed = checkBatch(ops, paths);
+                if (batch.isAtomic() && failed >= 0) {
+                    throw batchFailed(batch, failed);
+                }
+                for (int i = 0; i < ops.size(); i++) {
+                    if (ops.get(i).error == null) {
+                        applyBatchOp(ops.get(i), paths[i], writes[i], tx);
+                    }
+                }
+                logMetadata(tx);
+                applied = true;
+            } finally {
+                metaLock.unlockWrite(stamp);
+            }
+        } finally {
+            // blocks written for writes that did not happen go back
+            for (int i = 0; i < writes.length; i++) {
+                if (writes[i] != null && (!applied || ops.get(i).error != null)) {
+                    discardWrite(writes[i]);
+                }
+            }
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    fileLocks[i].writeLock().unlock();
+                }
+            }
+        }
+        commit(tx);
+    }
+
+    private static Exception batchFailed(Batch batch, int i) {
+        return new Exception("ERROR: Batch not applied, operation " + (i + 1) + " (" + batch.describe(i)
+                + ") failed: " + batch.getError(i));
+    }
+
+    // the contents of a batch WRITE in new blocks, packed like writeFile does it
+    private static class PreparedWrite {
+        long size; // of the contents
+        int codec;
+        long storedSize; // bytes in the blocks
+        long[] hashes; // dedupe: of the stored blocks
+        int[] fresh; // blocks written for this write
+        int[] shared = new int[0]; // dedupe: stored ending reused as it is
+    }
+
+    // compress, hash and write contents to new blocks. Caller holds the file's write lock
+    private PreparedWrite prepareWrite(byte[] contents, MetadataTx tx) throws Exception {
+        if (contents.length > (long) maxBlocks * blockSize) {
+            throw new Exception("ERROR: File too large. Max size is " + ((long) maxBlocks * blockSize) + " bytes.");
+        }
+        PreparedWrite write = new PreparedWrite();
+        Compression codec = compression;
+        int rawBlocks = Math.max(1, (int) ((contents.length + (long) blockSize - 1) / blockSize));
+        byte[] packed = codec.compress(contents, (int) Math.min(Integer.MAX_VALUE, (long) (rawBlocks - 1) * blockSize));
+        byte[] stored = packed != null ? packed : contents;
+        write.size = contents.length;
+        write.codec = packed != null ? codec.getCodec() : Compression.NONE;
+        write.storedSize = stored.length;
+        int blocksNeeded = Math.max(1, (int) ((stored.length + (long) blockSize - 1) / blockSize));
+        write.hashes = dedupe ? hashBlocks(stored, stored.length, blocksNeeded) : null;
+
+        long stamp = metaLock.writeLock();
+        try {
+            if (dedupe) {
+                write.shared = matchSuffix(write.hashes, blocksNeeded, tx);
+            }
+            write.fresh = allocateBlocks(blocksNeeded - write.shared.length, tx);
+            if (write.fresh == null) {
+                for (int block : write.shared) {
+                    blockRefs[block]--; // still in this lock section, nobody dropped them meanwhile
+                }
+                throw new Exception("ERROR: No free blocks available.");
+            }
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+        try {
+            writeExtents(write.fresh, stored, (int) Math.min(stored.length, (long) write.fresh.length * blockSize));
+        } catch (IOException | RuntimeException e) {
+            discardWrite(write);
+            throw e;
+        }
+        return write;
+    }
+
+    private void discardWrite(PreparedWrite write) throws IOException {
+        freeBlocks(write.fresh);
+        dropBlocks(write.shared);
+    }
+
+    // fill in the error of every operation that cannot run, given what the operations before it
+    // do; returns the first one, -1 if all can run. Caller holds the metaLock write lock
+    // a batch has no MKDIR or RMDIR, so the directories the operations need are the ones there now
+    private int checkBatch(List<Batch.Op> ops, String[] paths) {
+        Map<String, Boolean> exists = new HashMap<>(); // names the batch creates or deletes
+        int inodesLeft = freeInodeCount;
+        int first = -1;
+        for (int i = 0; i < ops.size(); i++) {
+            Batch.Op op = ops.get(i);
+            String path = paths[i];
+            if (op.error == null) {
+                Boolean known = exists.get(path);
+                int found = known != null ? -1 : lookup(path);
+                boolean present = known != null ? known : found >= 0;
+                String name = entryName(path);
+                if (op.kind == Batch.CREATE) {
+                    if (name.length() > 11) {
+                        op.error = "Filename cannot be longer than 11 characters.";
+                    } else if (directories && (name.isEmpty() || name.equals(".") || name.equals(".."))) {
+                        op.error = "Filename cannot be empty, . or ..";
+                    } else if (parentInode(path) == MISSING) {
+                        op.error = "Directory " + parentPath(path) + " does not exist.";
+                    } else if (present) {
+                        op.error = "File already exists.";
+                    } else if (inodesLeft == 0) {
+                        op.error = "Maximum number of files reached. Delete a file before creating a new one.";
+                    } else {
+                        exists.put(path, true);
+                        inodesLeft--;
+                    }
+                } else if (found >= 0 && inodeTable[found].isDirectory()) {
+                    op.error = op.fileName + " is a directory.";
+                } else if (op.kind == Batch.WRITE) {
+                    if (!present) {
+                        op.error = "File " + op.fileName + " does not exist.";
+                    }
+                } else if (!present) {
+                    op.error = "File " + op.fileName + " not found.";
+                } else {
+                    exists.put(path, false);
+                    inodesLeft++;
+                }
+            }
+            if (op.error != null && first < 0) {
+                first = i;
+            }
+        }
+        return first;
+    }
+
+    // the metadata part of one checked operation, same steps as createFile / writeFile / deleteFile
+    // caller holds the metaLock write lock
+    private void applyBatchOp(Batch.Op op, String path, PreparedWrite write, MetadataTx tx) {
+        tx.addChangedPath(path);
+        if (op.kind == Batch.CREATE) {
+            int inode = freeInodes[--freeInodeCount];
+            preserveInode(inode);
+            FEntry entry = inodeTable[inode];
+            entry.setFilename(entryName(path));
+            entry.setFilesize(0);
+            entry.setFirstBlock(-1);
+            entry.setParent(parentInode(path));
+            entry.setInUse(true);
+            fileVersions[inode]++;
+            link(inode, tx);
+            tx.addInode(inode);
+        } else if (op.kind == Batch.WRITE) {
+            int inode = lookup(path);
+            FEntry entry = inodeTable[inode];
+            int[] oldBlocks = chainBlocks(entry.getFirstBlock());
+            linkChain(write.fresh, tx);
+            if (write.fresh.length > 0 && write.shared.length > 0) {
+                fnodeTable[write.fresh[write.fresh.length - 1]].setNext(write.shared[0]);
+            }
+            if (dedupe) {
+                addBlocks(write.fresh, write.hashes, tx);
+            }
+            for (int block : oldBlocks) {
+                dropBlock(block, tx);
+            }
+            preserveInode(inode);
+            entry.setFirstBlock(write.fresh.length > 0 ? write.fresh[0] : write.shared[0]);
+            entry.setFilesize(write.size);
+            entry.setStorage(write.codec, write.storedSize);
+            fileVersions[inode]++;
+            tx.addInode(inode);
+        } else {
+            int inode = lookup(path);
+            FEntry entry = inodeTable[inode];
+            releaseChain(entry.getFirstBlock(), tx);
+            tx.setZeroReleased(true); // also zeroes the old blocks of the batch's writes, harmless
+            unlink(inode, tx);
+            preserveInode(inode);
+            entry.clear();
+            fileVersions[inode]++;
+            freeInodes[freeInodeCount++] = inode;
+            tx.addInode(inode);
+        }
+    }
+
+
+    // SNAPSHOT METHODS
+    // freeze the whole volume as it is right now, in O(1): nothing is copied, a new allocation
+    // epoch starts. From then on nothing the snapshot can see is overwritten: writes always go
+    // to new blocks (none is overwritten in place), blocks dropped by
+    // the live files are held by the snapshot instead of freed, and the first change of an inode
+    // or next pointer saves its old value in the snapshot. Reads and exports of the snapshot run
+    // alongside live traffic. One snapshot at a time; release it when done to free what it holds.
+    public Snapshot snapshot() throws Exception {
+        long stamp = metaLock.writeLock();
+        try {
+            if (snapshot != null) {
+                throw new Exception("ERROR: A snapshot is already open.");
+            }
+            snapshot = new Snapshot(++currentEpoch);
+            return snapshot;
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+    }
+
+    // caller holds the metaLock write lock and is about to change an inode / next pointer
+    private void preserveInode(int inode) {
+        if (snapshot != null) {
+            snapshot.saveInode(inode);
+        }
+    }
+
+    private void preserveNode(int block) {
+        if (snapshot != null) {
+            snapshot.saveNode(block);
+        }
+    }
+
+    // the volume as it was when snapshot() was called, see there. Its view is the live tables
+    // with the saved old values on top; both are read under the metaLock read lock, the blocks
+    // themselves need no lock since nothing writes them while the snapshot is open.
+    public class Snapshot {
+        private final int epoch; // blocks allocated in an earlier epoch belong to the snapshot
+        private final long createdAt = System.currentTimeMillis();
+        private final Map<Integer, FEntry> savedInodes = new HashMap<>(); // old values of inodes changed since
+        private final Map<Integer, Integer> savedNodes = new HashMap<>(); // old next pointers changed since
+        private final MetadataTx held = new MetadataTx(); // blocks the live files dropped, freed on release
+        private final MetadataTx heldZeroed = new MetadataTx(); // same, from deleted files (zeroed on release)
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // reads and exports vs release
+        private volatile Map<String, Integer> inodesByPath; // see paths()
+        private boolean released;
+
+        private Snapshot(int epoch) {
+            this.epoch = epoch;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        // names of the files in the snapshot, like listFiles
+        public String[] listFiles() throws IOException {
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                return paths().keySet().toArray(new String[0]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // contents of a file as it was when the snapshot was taken
+        public byte[] readFile(String fileName) throws Exception {
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                Integer inode = paths().get(normalize(fileName));
+                if (inode == null) {
+                    throw new Exception("ERROR: File " + fileName + " does not exist in the snapshot.");
+                }
+                FEntry found;
+                int[] blocks;
+                long stamp = metaLock.readLock();
+                try {
+                    found = new FEntry(inode(inode));
+                    blocks = chain(found.getFirstBlock());
+                } finally {
+                    metaLock.unlockRead(stamp);
+                }
+                if (found.getFilesize() > Integer.MAX_VALUE - 8) {
+                    throw new Exception("ERROR: File " + fileName + " is too large to read in one piece.");
+                }
+                long size = found.getPhysicalSize();
+                byte[] data = new byte[(int) size];
+                for (int i = 0; i < blocks.length && (long) i * blockSize < size; i++) {
+                    int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+                    device.read(ByteBuffer.wrap(data, i * blockSize, length), superblock.getBlockOffset(blocks[i]));
+                }
+                return Compression.decompress(found.getCodec(), data, (int) found.getFilesize());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // write the snapshot to fileName as a volume of its own, with the same geometry, that
+        // FileSystemManager can open. Written to fileName.tmp first and renamed when complete.
+        // existing files are never overwritten: fileName and fileName.tmp must not exist yet
+        public void export(String fileName) throws IOException {
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                Path target = Path.of(fileName).toAbsolutePath().normalize();
+                Path temp = Path.of(fileName + ".tmp").toAbsolutePath().normalize();
+                if (target.equals(volumePath) || temp.equals(volumePath)
+                        || target.toString().startsWith(volumePath + ".journal")) {
+                    throw new IOException("ERROR: A snapshot cannot be exported over the volume itself.");
+                }
+                if (Files.exists(target)) {
+                    throw new IOException("ERROR: " + target + " exists already.");
+                }
+                Files.createFile(temp); // fails if it exists, e.g. another export to the same name is running
+                try {
+                    try (RandomAccessFile out = new RandomAccessFile(temp.toFile(), "rw")) {
+                        superblock.write(out);
+                        out.setLength(superblock.getVolumeSize()); // sparse, only the data of the files is written
+                        BlockDevice image = BlockDevice.open(out.getChannel(), superblock.getVolumeSize(), "channel");
+                        exportTo(image);
+                        image.force();
+                    }
+                    Files.move(temp, target); // without REPLACE_EXISTING, fails if target appeared meanwhile
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // inodes and file data first (the metaLock is only held while one inode and its chain
+        // are looked up), then the bitmap and next-block table of the blocks they use
+        private void exportTo(BlockDevice image) throws IOException {
+            FreeBitmap used = new FreeBitmap(maxBlocks);
+            int[] next = new int[maxBlocks];
+            Arrays.fill(next, -1);
+            int[] refs = new int[dedupe ? maxBlocks : 0];
+            ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE);
+            ByteBuffer data = ByteBuffer.allocate(Math.max(1, IO_BUFFER_SIZE / blockSize) * blockSize);
+            DirectoryTree names = directories ? new DirectoryTree(superblock.getTreePageCount()) : null;
+
+            long position = superblock.getInodeTableOffset();
+            for (int i = 0; i < maxFiles; i++) {
+                FEntry entry;
+                int[] blocks = new int[0];
+                long stamp = metaLock.readLock();
+                try {
+                    FEntry e = inode(i);
+                    entry = e.isInUse() ? new FEntry(e) : new FEntry();
+                    if (entry.isInUse()) {
+                        blocks = chain(entry.getFirstBlock());
+                    }
+                } finally {
+                    metaLock.unlockRead(stamp);
+                }
+                if (buf.remaining() < superblock.getInodeSize()) {
+                    position += flushBuffer(image, buf, position);
+                }
+                putInode(buf, entry);
+                if (names != null && entry.isInUse()) {
+                    names.insert(entry.getParent(), entry.getFilename(), i, page -> { });
+                }
+                if (dedupe) {
+                    for (int block : blocks) {
+                        refs[block]++;
+                    }
+                }
+
+                // copy the chain run by run, each block keeps its index; with dedupe a chain can
+                // end in blocks another file already brought along, the rest is there already
+                int j = 0;
+                while (j < blocks.length && used.isFree(blocks[j])) {
+                    int runLength = 1;
+                    while (j + runLength < blocks.length && blocks[j + runLength] == blocks[j] + runLength
+                            && used.isFree(blocks[j + runLength])) {
+                        runLength++;
+                    }
+                    long from = superblock.getBlockOffset(blocks[j]);
+                    long remaining = (long) runLength * blockSize;
+                    while (remaining > 0) {
+                        data.clear().limit((int) Math.min(data.capacity(), remaining));
+                        device.read(data, from);
+                        data.flip();
+                        image.write(data, from);
+                        from += data.limit();
+                        remaining -= data.limit();
+                    }
+                    for (int k = j; k < j + runLength; k++) {
+                        used.setUsed(blocks[k]);
+                        next[blocks[k]] = k + 1 < blocks.length ? blocks[k + 1] : -1;
+                    }
+                    j += runLength;
+                }
+            }
+            flushBuffer(image, buf, position);
+
+            position = superblock.getFreeListOffset();
+            for (int i = 0; i < used.getWordCount(); i++) {
+                if (buf.remaining() < Long.BYTES) {
+                    position += flushBuffer(image, buf, position);
+                }
+                buf.putLong(used.getWord(i));
+            }
+            flushBuffer(image, buf, position);
+
+            position = superblock.getNodeTableOffset();
+            for (int block = 0; block < maxBlocks; block++) {
+                if (buf.remaining() < Superblock.NODE_SIZE) {
+                    position += flushBuffer(image, buf, position);
+                }
+                buf.putInt(next[block]);
+            }
+            flushBuffer(image, buf, position);
+
+            if (dedupe) {
+                position = superblock.getDedupeTableOffset();
+                for (int block = 0; block < maxBlocks; block++) {
+                    if (buf.remaining() < Superblock.DEDUPE_ENTRY_SIZE) {
+                        position += flushBuffer(image, buf, position);
+                    }
+                    buf.putLong(refs[block] > 0 ? blockHashes[2 * block] : 0);
+                    buf.putLong(refs[block] > 0 ? blockHashes[2 * block + 1] : 0);
+                    buf.putInt(refs[block]);
+                }
+                flushBuffer(image, buf, position);
+            }
+
+            // the tree of the export is built anew from the names of the snapshot
+            if (names != null) {
+                writeTree(image, names);
+            }
+        }
+
+        // drop the snapshot and free the blocks only it still held
+        public void release() throws IOException {
+            lock.writeLock().lock(); // waits for running reads and exports
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                long stamp = metaLock.writeLock();
+                try {
+                    snapshot = null; // nothing is held any more after this
+                } finally {
+                    metaLock.unlockWrite(stamp);
+                }
+                int[] zeroed = heldZeroed.getReleasedBlocks();
+                for (int block : zeroed) {
+                    zeroOutBlock(block);
+                }
+                freeBlocks(zeroed);
+                freeBlocks(held.getReleasedBlocks());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // path of every file and directory (with a trailing /) to its inode, in inode order. The
+        // snapshot has no tree of its own, each path is put together from its parents, once: the
+        // frozen view never changes, so the map is built on first use and kept (two readers
+        // racing to build it build the same one)
+        private Map<String, Integer> paths() {
+            Map<String, Integer> paths = inodesByPath;
+            if (paths == null) {
+                paths = new LinkedHashMap<>();
+                long stamp = metaLock.readLock();
+                try {
+                    for (int i = 0; i < maxFiles; i++) {
+                        FEntry entry = inode(i);
+                        if (entry.isInUse()) {
+                            String path = pathOf(i, this::inode);
+                            paths.put(entry.isDirectory() ? path + "/" : path, i);
+                        }
+                    }
+                } finally {
+                    metaLock.unlockRead(stamp);
+                }
+                inodesByPath = paths;
+            }
+            return paths;
+        }
+
+        private void checkOpen() throws IOException {
+            if (released) {
+                throw new IOException("ERROR: Snapshot was released.");
+            }
+        }
+
+        // the inode / next pointer as the snapshot sees it, caller holds the metaLock
+        private FEntry inode(int i) {
+            FEntry saved = savedInodes.get(i);
+            return saved != null ? saved : inodeTable[i];
+        }
+
+        private int next(int block) {
+            Integer saved = savedNodes.get(block);
+            return saved != null ? saved : fnodeTable[block].getNext();
+        }
+
+        // chainBlocks through the snapshot's next pointers
+        private int[] chain(int firstBlock) {
+            int[] blocks = new int[16];
+            int count = 0;
+            for (int b = firstBlock; b >= 0 && b < maxBlocks && count < maxBlocks; b = next(b)) {
+                if (count == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, count * 2);
+                }
+                blocks[count++] = b;
+            }
+            return Arrays.copyOf(blocks, count);
+        }
+
+        // the rest is called by the live file system with the metaLock write lock held
+        private void saveInode(int i) {
+            if (!savedInodes.containsKey(i)) {
+                FEntry e = inodeTable[i];
+                savedInodes.put(i, e.isInUse() ? new FEntry(e) : new FEntry());
+            }
+        }
+
+        private void saveNode(int block) {
+            if (blockEpochs[block] < epoch && !savedNodes.containsKey(block)) {
+                savedNodes.put(block, fnodeTable[block].getNext());
+            }
+        }
+
+        // keep the blocks the snapshot may see, returns the others, which can be freed now
+        private int[] hold(int[] blocks, boolean zero) {
+            int[] free = new int[blocks.length];
+            int count = 0;
+            for (int block : blocks) {
+                if (blockEpochs[block] < epoch) {
+                    (zero ? heldZeroed : held).release(block);
+                } else {
+                    free[count++] = block;
+                }
+            }
+            return Arrays.copyOf(free, count);
+        }
+    }
+    
+
+    // COMPACTION METHODS
+    // churn leaves files in pieces all over the volume and the free space in small holes between
+    // them. compact() moves the files, one at a time while everything else goes on, into the
+    // lowest free run that holds all of their blocks: a file in pieces to wherever that run is, a
+    // file in one piece only if the run is in front of it. Files end up in one piece (read as one
+    // extent) packed at the start of the volume, with the free space in one run at the end.
+    // moving a file: 1. take the new blocks, 2. copy the old ones over a chunk at a time, each
+    // chunk under the file's read lock (readers go on, a writer waits for one chunk at most),
+    // 3. under the file's write lock and the metaLock point the file at the new blocks, unless it
+    // changed meanwhile (then the copy is dropped). Open streams find their place in the new
+    // chain through fileLayouts. Files sharing blocks with others (dedupe) stay where they are,
+    // and nothing is moved while a snapshot is open (it would hold on to every old block).
+
+    // one pass over the volume, returns the number of blocks moved. budget paces the copying,
+    // cancelled is asked before every chunk
+    public int compact(IoBudget budget, BooleanSupplier cancelled) throws IOException {
+        long[] files; // first block << 32 | inode, so they sort by where they start
+        long stamp = metaLock.readLock();
+        try {
+            if (snapshot != null) {
+                return 0;
+            }
+            files = new long[maxFiles];
+            int count = 0;
+            for (int i = 0; i < maxFiles; i++) {
+                FEntry entry = inodeTable[i];
+                if (entry.isInUse() && !entry.isDirectory() && entry.getFirstBlock() >= 0) {
+                    files[count++] = (long) entry.getFirstBlock() << 32 | i;
+                }
+            }
+            files = Arrays.copyOf(files, count);
+        } finally {
+            metaLock.unlockRead(stamp);
+        }
+        Arrays.sort(files);
+
+        int moved = 0;
+        for (long file : files) {
+            if (cancelled.getAsBoolean()) {
+                break;
+            }
+            moved += moveFile((int) file, budget, cancelled);
+        }
+        // new blocks are taken after the packed files, not from what is left of the holes
+        stamp = metaLock.writeLock();
+        try {
+            int tail = freeBlockList.freeTailStart();
+            if (tail < maxBlocks) {
+                freeBlockList.setCursor(tail);
+            }
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+        return moved;
+    }
+
+    // move one file to the lowest free run that holds it, see compact(). Returns the blocks moved
+    private int moveFile(int inode, IoBudget budget, BooleanSupplier cancelled) throws IOException {
+        MetadataTx tx = new MetadataTx();
+        String name;
+        long version;
+        int[] oldBlocks;
+        int[] newBlocks;
+        long stamp = metaLock.writeLock();
+        try {
+            FEntry entry = inodeTable[inode];
+            if (snapshot != null || !entry.isInUse() || entry.isDirectory()) {
+                return 0;
+            }
+            oldBlocks = chainBlocks(entry.getFirstBlock());
+            if (oldBlocks.length == 0 || isShared(oldBlocks)) {
+                return 0;
+            }
+            boolean inOnePiece = true;
+            for (int i = 1; i < oldBlocks.length; i++) {
+                inOnePiece &= oldBlocks[i] == oldBlocks[0] + i;
+            }
+            int start = freeBlockList.allocateLowestRun(oldBlocks.length, inOnePiece ? oldBlocks[0] : maxBlocks);
+            if (start < 0) {
+                return 0;
+            }
+            newBlocks = new int[oldBlocks.length];
+            for (int i = 0; i < newBlocks.length; i++) {
+                newBlocks[i] = start + i;
+                allocated(newBlocks[i], tx);
+            }
+            name = directories ? pathOf(inode, i -> inodeTable[i]) : entry.getFilename();
+            version = fileVersions[inode];
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+
+        boolean copied = false;
+        try {
+            copied = copyBlocks(name, inode, version, oldBlocks, newBlocks[0], budget, cancelled);
+        } finally {
+            if (!copied) {
+                freeBlocks(newBlocks);
+            }
+        }
+        if (!copied) {
+            return 0;
+        }
+
+        boolean swapped = false;
+        ReentrantReadWriteLock fileLock = fileLock(name);
+        fileLock.writeLock().lock();
+        stamp = metaLock.writeLock();
+        try {
+            // written, deleted, shared by another file or frozen by a snapshot since the copy began
+            if (fileVersions[inode] == version && snapshot == null && !isShared(oldBlocks)) {
+                linkChain(newBlocks, tx);
+                for (int block : oldBlocks) {
+                    dropBlock(block, tx);
+                }
+                if (dedupe) {
+                    // the new blocks take over the hashes, indexed once the old ones are out of the index
+                    for (int i = 0; i < newBlocks.length; i++) {
+                        blockHashes[2 * newBlocks[i]] = blockHashes[2 * oldBlocks[i]];
+                        blockHashes[2 * newBlocks[i] + 1] = blockHashes[2 * oldBlocks[i] + 1];
+                        blockRefs[newBlocks[i]] = 1;
+                        hashIndex.put(newBlocks[i]);
+                        tx.addDedupeEntry(newBlocks[i]);
+                    }
+                }
+                preserveInode(inode);
+                inodeTable[inode].setFirstBlock(newBlocks[0]);
+                fileLayouts[inode]++;
+                tx.addInode(inode);
+                logMetadata(tx);
+                swapped = true;
+            }
+        } finally {
+            metaLock.unlockWrite(stamp);
+            fileLock.writeLock().unlock();
+        }
+        if (!swapped) {
+            freeBlocks(newBlocks);
+            return 0;
+        }
+        commit(tx); // the old blocks are free once the new chain is durable
+        return newBlocks.length;
+    }
+
+    // copy the blocks of a file to the run of blocks at start, false if the file changed or the
+    // pass was cancelled on the way
+    private boolean copyBlocks(String name, int inode, long version, int[] blocks, int start,
+                               IoBudget budget, BooleanSupplier cancelled) throws IOException {
+        int chunkBlocks = Math.max(1, IO_BUFFER_SIZE / blockSize);
+        byte[] chunk = new byte[chunkBlocks * blockSize];
+        ReentrantReadWriteLock fileLock = fileLock(name);
+        for (int i = 0; i < blocks.length; i += chunkBlocks) {
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+            int count = Math.min(chunkBlocks, blocks.length - i);
+            fileLock.readLock().lock();
+            try {
+                if (fileVersions[inode] != version) {
+                    return false;
+                }
+                // one read per run of consecutive blocks
+                int j = 0;
+                while (j < count) {
+                    int run = 1;
+                    while (j + run < count && blocks[i + j + run] == blocks[i + j] + run) {
+                        run++;
+                    }
+                    device.read(ByteBuffer.wrap(chunk, j * blockSize, run * blockSize),
+                            superblock.getBlockOffset(blocks[i + j]));
+                    j += run;
+                }
+            } finally {
+                fileLock.readLock().unlock();
+            }
+            device.write(ByteBuffer.wrap(chunk, 0, count * blockSize), superblock.getBlockOffset(start + i));
+            try {
+                budget.spend(2L * count * blockSize);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // dedupe: whether any of the blocks is used by another file too, caller holds the metaLock
+    private boolean isShared(int[] blocks) {
+        if (dedupe) {
+            for (int block : blocks) {
+                if (blockRefs[block] > 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // give the free blocks at the end of the volume back to the disk: the file is cut off where
+    // they start and set back to its full length right away, so the volume keeps its size,
+    // geometry and mapping, but the tail is a hole that takes no disk space until blocks there are
+    // written again. Returns the bytes of the tail given back, 0 if it was given back already.
+    // The volume is not made smaller: its block count is part of the layout of every table.
+    // not done with a write-back cache, which may write out blocks freed there at any time, nor on
+    // a mapped volume, whose file cannot be cut under the mapping (it fails on Windows, and a
+    // touch of the cut pages is a SIGBUS elsewhere)
+    public long releaseFreeTail() throws IOException {
+        if (mapped || blockCache != null && blockCache.isWriteBack()) {
+            return 0;
+        }
+        device.force(); // nothing written there before it was freed is still on its way to the file
+        long stamp = metaLock.writeLock(); // and no block in the tail is taken until it is done
+        try {
+            int tail = freeBlockList.freeTailStart();
+            if (tail == maxBlocks || (releasedTail >= 0 && tail >= releasedTail)) {
+                return 0;
+            }
+            long from = superblock.getBlockOffset(tail);
+            disk.setLength(from);
+            disk.setLength(superblock.getVolumeSize());
+            releasedTail = tail;
+            return superblock.getVolumeSize() - from;
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+    }
+
+
+    // LOOKUP METHODS
+    // the entry of a file that exists and has data, caller holds the file's lock
+    // the entry and its chain only change under this file's write lock, so they are stable then
+    private FEntry readableEntry(String fileName) throws Exception {
+        // find file in inode table
+        FEntry fileEntry = findEntry(fileName);
+        if (fileEntry == null) {
+            throw new Exception("ERROR: File " + fileName + " does not exist.");
+        }
+
+        // check if file has data
+        int blockIndex = fileEntry.getFirstBlock();
+        if (blockIndex < 0 || blockIndex >= maxBlocks || freeBlockList.isFree(blockIndex)) {
+            throw new Exception("ERROR: File " + fileName + " has no data stored.");
+        }
+        return fileEntry;
+    }
+
+    // the lock stripe of a file, by name so it stays the same across delete and create
+    private ReentrantReadWriteLock fileLock(String fileName) {
+        return fileLocks[lockStripe(normalize(fileName))];
+    }
+
+    private static int lockStripe(String fileName) {
+        int h = fileName.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    // find the entry of a file through the index, null if it does not exist
+    private FEntry findEntry(String fileName) {
+        int inode = findInode(fileName);
+        return inode >= 0 ? inodeTable[inode] : null;
+    }
+
+    // index lookup with an optimistic read, falls back to a real read lock if a writer got in the way
+    // (a tree page read halfway through a change may also throw, that is retried the same way)
+    private int findInode(String fileName) {
+        long stamp = metaLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int inode = lookupFile(fileName);
+                if (metaLock.validate(stamp)) {
+                    return inode;
+                }
+            } catch (RuntimeException e) {
+                if (metaLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = metaLock.readLock();
+        try {
+            return lookupFile(fileName);
+        } finally {
+            metaLock.unlockRead(stamp);
+        }
+    }
+
+    // rebuild the filename index and the free inode stack from the inode table
+    // (with directories the names are in the tree, which is loaded as it is stored)
+    private void rebuildIndex() {
+        if (fileIndex != null) {
+            fileIndex.clear();
+        }
+        freeInodeCount = 0;
+        for (int i = maxFiles - 1; i >= 0; i--) { // pushed in reverse so low slots are reused first
+            FEntry entry = inodeTable[i];
+            if (entry.isInUse()) {
+                if (fileIndex != null) {
+                    fileIndex.put(entry.getFilename(), i);
+                }
+            } else {
+                freeInodes[freeInodeCount++] = i;
+            }
+        }
+    }
+
+    // PATH METHODS
+    private static final int MISSING = -2; // parentInode: the directory does not exist
+
+    // a path as it is looked up: "/docs/a" and "docs/a/" are "docs/a". Names on a flat volume are
+    // taken as they are
+    private String normalize(String path) {
+        if (!directories) {
+            return path;
+        }
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    // the last part of a path, the name its inode holds
+    private String entryName(String path) {
+        path = normalize(path);
+        return directories ? path.substring(path.lastIndexOf('/') + 1) : path;
+    }
+
+    // the directory part of a path, "" for a top level name
+    private String parentPath(String path) {
+        path = normalize(path);
+        return directories ? path.substring(0, Math.max(0, path.lastIndexOf('/'))) : "";
+    }
+
+    // the inode of the directory a path is in, ROOT at the top level, MISSING if that directory
+    // does not exist. Caller holds the metaLock
+    private int parentInode(String path) {
+        String dir = parentPath(path);
+        if (dir.isEmpty()) {
+            return DirectoryTree.ROOT;
+        }
+        int parent = lookup(dir);
+        return parent >= 0 && inodeTable[parent].isDirectory() ? parent : MISSING;
+    }
+
+    // the inode of a file or directory, -1 if there is none. With directories: one tree lookup
+    // per part of the path. Caller holds the metaLock (or validates an optimistic read)
+    private int lookup(String path) {
+        path = normalize(path);
+        if (!directories) {
+            return fileIndex.find(path);
+        }
+        int inode = DirectoryTree.ROOT;
+        int start = 0;
+        while (true) {
+            int slash = path.indexOf('/', start);
+            inode = tree.find(inode, slash < 0 ? path.substring(start) : path.substring(start, slash));
+            if (inode < 0 || slash < 0) {
+                return inode;
+            }
+            if (!inodeTable[inode].isDirectory()) {
+                return -1;
+            }
+            start = slash + 1;
+        }
+    }
+
+    // lookup, for operations on files: a directory counts as no file
+    private int lookupFile(String path) {
+        int inode = lookup(path);
+        return inode >= 0 && inodeTable[inode].isDirectory() ? -1 : inode;
+    }
+
+    // add the name of an inode that was just filled in to the index or tree / take it out again
+    // before the inode is cleared. Caller holds the metaLock write lock
+    private void link(int inode, MetadataTx tx) {
+        FEntry entry = inodeTable[inode];
+        if (directories) {
+            tree.insert(entry.getParent(), entry.getFilename(), inode, tx::addTreePage);
+        } else {
+            fileIndex.put(entry.getFilename(), inode);
+        }
+    }
+
+    private void unlink(int inode, MetadataTx tx) {
+        FEntry entry = inodeTable[inode];
+        if (directories) {
+            tree.remove(entry.getParent(), entry.getFilename(), tx::addTreePage);
+        } else {
+            fileIndex.remove(entry.getFilename());
+        }
+    }
+
+    // the full path of an inode, put together from its parents as inodes(i) gives them
+    // (the live table or a snapshot's view of it). Caller holds the metaLock
+    private String pathOf(int inode, IntFunction<FEntry> inodes) {
+        FEntry entry = inodes.apply(inode);
+        StringBuilder path = new StringBuilder(entry.getFilename());
+        for (int p = entry.getParent(), depth = 0; p >= 0 && depth < maxFiles; depth++) {
+            FEntry parent = inodes.apply(p);
+            path.insert(0, '/').insert(0, parent.getFilename());
+            p = parent.getParent();
+        }
+        return path.toString();
+    }
+
+    // BLOCK CHAIN METHODS
+    // find count free blocks, first trying a single contiguous run so the file can be
+    // written and read with one seek, otherwise taking free runs in next-fit order
+    // returns null if there is not enough free space
+    private int[] allocateBlocks(int count, MetadataTx tx) {
+        if (count > freeBlockList.getFreeCount()) {
+            return null;
+        }
+        int[] blocks = new int[count];
+        int start = freeBlockList.allocateRun(count);
+        if (start >= 0) {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = start + i;
+            }
+        } else {
+            // fragmented: take one free run after another until we have enough
+            int n = 0;
+            while (n < count) {
+                long extent = freeBlockList.allocateExtent(count - n);
+                int extentStart = (int) (extent >>> 32);
+                int extentLength = (int) extent;
+                for (int j = 0; j < extentLength; j++) {
+                    blocks[n++] = extentStart + j;
+                }
+            }
+        }
+        for (int block : blocks) {
+            allocated(block, tx);
+        }
+        return blocks;
+    }
+
+    // a block was just taken from the bitmap, caller holds the metaLock write lock
+    private void allocated(int block, MetadataTx tx) {
+        blockEpochs[block] = currentEpoch;
+        tx.addBlock(block);
+        if (releasedTail >= 0 && block >= releasedTail) {
+            releasedTail = block + 1; // written again up to here
+        }
+    }
+
+    // link blocks into a chain in the given order
+    private void linkChain(int[] blocks, MetadataTx tx) {
+        for (int i = 0; i < blocks.length; i++) {
+            preserveNode(blocks[i]);
+            fnodeTable[blocks[i]].setNext(i + 1 < blocks.length ? blocks[i + 1] : -1);
+            tx.addNode(blocks[i]);
+        }
+    }
+
+    // the blocks of a chain in file order
+    private int[] chainBlocks(int firstBlock) {
+        int count = 0;
+        for (int b = firstBlock; b >= 0 && b < maxBlocks && count < maxBlocks; b = fnodeTable[b].getNext()) {
+            count++;
+        }
+        int[] blocks = new int[count];
+        int b = firstBlock;
+        for (int i = 0; i < count; i++) {
+            blocks[i] = b;
+            b = fnodeTable[b].getNext();
+        }
+        return blocks;
+    }
+
+    // drop every block of a chain, they become free once tx is durable (with dedupe: the ones no
+    // other file uses)
+    private void releaseChain(int firstBlock, MetadataTx tx) {
+        for (int block : chainBlocks(firstBlock)) {
+            dropBlock(block, tx);
+        }
+    }
+
+    // walk the stored data of a file as extents (volume position, length), following the chain
+    // and merging consecutive blocks, so a contiguous file is one extent
+    private void forEachExtent(FEntry entry, ExtentConsumer consumer) throws IOException {
+        long size = entry.getPhysicalSize();
+        long done = 0;
+        int blockIndex = entry.getFirstBlock();
+        while (blockIndex >= 0 && done < size) {
+            int runStart = blockIndex;
+            int runLength = 1;
+            while (fnodeTable[runStart + runLength - 1].getNext() == runStart + runLength) {
+                runLength++;
+            }
+            long position = superblock.getBlockOffset(runStart);
+            long runBytes = Math.min(size - done, (long) runLength * blockSize);
+            while (runBytes > 0) { // handed out in pieces an int can hold
+                int length = (int) Math.min(runBytes, MAX_EXTENT_BYTES);
+                consumer.accept(position, length);
+                position += length;
+                runBytes -= length;
+                done += length;
+            }
+            blockIndex = fnodeTable[runStart + runLength - 1].getNext();
+        }
+    }
+
+    private interface ExtentConsumer {
+        void accept(long position, int length) throws IOException;
+    }
+
+    // write the first size bytes of contents to the given blocks, one disk write per run of consecutive blocks
+    private void writeExtents(int[] blocks, byte[] contents, int size) throws IOException {
+        int i = 0;
+        while (i < blocks.length) {
+            int runLength = 1;
+            while (i + runLength < blocks.length && blocks[i + runLength] == blocks[i] + runLength) {
+                runLength++;
+            }
+            long extentSize = (long) runLength * blockSize;
+            long from = (long) i * blockSize;
+            int length = (int) Math.max(0, Math.min(extentSize, size - from));
+
+            long position = superblock.getBlockOffset(blocks[i]); // block position, no seek needed
+            device.write(ByteBuffer.wrap(contents, (int) from, length), position);
+            // pad the last block with zeros so no stale data is left behind (all of it for an empty file)
+            int padding = (int) (extentSize - length);
+            if (padding > 0) {
+                device.write(ByteBuffer.allocate(padding), position + length);
+            }
+            i += runLength;
+        }
+    }
+
+    // DEDUPLICATION METHODS
+    // content hashes (SHA-256, first 128 bits) of the count blocks holding the first size bytes of
+    // data, the last one padded with zeros like it is on disk
+    private long[] hashBlocks(byte[] data, int size, int count) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+        long[] hashes = new long[2 * count];
+        byte[] padding = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            int n = (int) Math.max(0, Math.min(blockSize, size - (long) i * blockSize));
+            digest.update(data, i * blockSize, n);
+            digest.update(padding, 0, blockSize - n);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+            hashes[2 * i] = hash.getLong();
+            hashes[2 * i + 1] = hash.getLong();
+        }
+        return hashes;
+    }
+
+    // the longest ending of a new chain of count blocks (hashes in file order) that is stored
+    // already, found from the last block backwards since a block is only shared with its
+    // successor. Each block found is taken for the new chain right away so it cannot be freed
+    // meanwhile. Caller holds the metaLock write lock.
+    private int[] matchSuffix(long[] hashes, int count, MetadataTx tx) {
+        int first = count;
+        int next = -1;
+        int[] matched = new int[count];
+        while (first > 0) {
+            int block = hashIndex.find(hashes[2 * (first - 1)], hashes[2 * (first - 1) + 1], next);
+            if (block < 0) {
+                break;
+            }
+            matched[--first] = block;
+            blockRefs[block]++;
+            tx.addDedupeEntry(block);
+            next = block;
+        }
+        return Arrays.copyOfRange(matched, first, count);
+    }
+
+    // newly written blocks join a file: one reference each, indexed under their hash and the next
+    // pointer they already have. Caller holds the metaLock write lock.
+    private void addBlocks(int[] blocks, long[] hashes, MetadataTx tx) {
+        for (int i = 0; i < blocks.length; i++) {
+            int block = blocks[i];
+            blockHashes[2 * block] = hashes[2 * i];
+            blockHashes[2 * block + 1] = hashes[2 * i + 1];
+            blockRefs[block] = 1;
+            hashIndex.put(block);
+            tx.addDedupeEntry(block);
+        }
+    }
+
+    // a file stops using block, it is released with tx unless other files still share it
+    // caller holds the metaLock write lock
+    private void dropBlock(int block, MetadataTx tx) {
+        if (!dedupe) {
+            tx.release(block);
+            return;
+        }
+        tx.addDedupeEntry(block);
+        if (--blockRefs[block] == 0) {
+            hashIndex.remove(block);
+            tx.release(block);
+        }
+    }
+
+    // dropBlock outside of an operation, e.g. giving back blocks taken for a write that failed
+    private void dropBlocks(int[] blocks) throws IOException {
+        if (blocks.length == 0) {
+            return;
+        }
+        MetadataTx tx = new MetadataTx();
+        long stamp = metaLock.writeLock();
+        try {
+            for (int block : blocks) {
+                dropBlock(block, tx);
+            }
+            logMetadata(tx);
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+        commit(tx);
+    }
+
+    // point block (used by one file only) at next, re-indexing it since its key changes
+    // caller holds the metaLock write lock
+    private void relink(int block, int next, MetadataTx tx) {
+        preserveNode(block);
+        if (dedupe) {
+            hashIndex.remove(block);
+        }
+        fnodeTable[block].setNext(next);
+        if (dedupe) {
+            hashIndex.put(block);
+        }
+        tx.addNode(block);
+    }
+
+    // Overwrite block with zeros
+    private void zeroOutBlock(int blockIndex) throws IOException {
+        device.write(ByteBuffer.allocate(blockSize), superblock.getBlockOffset(blockIndex));
+    }
+
+    // SAVING STATE METHODS
+    // helper to read fixed size string from disk file
+    private String readFixedString(DataInputStream in, int length) throws IOException {
+        // must read exactly 11 bytes
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data).trim();
+    }
+
+    // encode one inode: name padded with spaces to 11 bytes, size, first block, in use (bit 0),
+    // codec (bits 1 to 6) and directory (bit 7), then the physical size and the parent directory
+    // if the volume has room for them
+    private void putInode(ByteBuffer buf, FEntry entry) {
+        String name = entry.getFilename();
+        if (name == null) {
+            name = "";
+        }
+        for (int i = 0; i < Superblock.FILENAME_LENGTH; i++) {
+            buf.put(i < name.length() ? (byte) name.charAt(i) : (byte) ' ');
+        }
+        buf.putLong(entry.getFilesize());
+        buf.putInt(entry.getFirstBlock());
+        buf.put((byte) ((entry.isInUse() ? 1 : 0) | entry.getCodec() << 1 | (entry.isDirectory() ? 0x80 : 0)));
+        if (superblock.isCompressionSupported()) {
+            buf.putLong(entry.getPhysicalSize());
+        }
+        if (directories) {
+            buf.putInt(entry.getParent());
+        }
+    }
+
+    // encode one dedupe table entry: content hash, reference count
+    private void putDedupeEntry(ByteBuffer buf, int block) {
+        buf.putLong(blockHashes[2 * block]);
+        buf.putLong(blockHashes[2 * block + 1]);
+        buf.putInt(blockRefs[block]);
+    }
+
+    // queue the metadata tx touched in the journal, caller holds the metaLock write lock
+    // so records reach the journal in the same order as the changes they describe
+    // everything is encoded into one buffer, one region per run of consecutive entries
+    private void logMetadata(MetadataTx tx) {
+        if (!tx.isEmpty()) {
+            tx.setSeq(journal.append(encode(tx)));
+        }
+    }
+
+    // wait until tx is durable (sharing the flush with whoever commits at the same time),
+    // then give the blocks it dropped back to the allocator
+    private void commit(MetadataTx tx) throws IOException {
+        if (tx.getSeq() >= 0) {
+            journal.awaitDurable(tx.getSeq());
+        }
+        Consumer<String> listener = changeListener;
+        if (listener != null) {
+            for (String path : tx.getChangedPaths()) {
+                listener.accept(path);
+            }
+        }
+        int[] released = tx.getReleasedBlocks();
+        if (released.length == 0) {
+            return;
+        }
+        if (snapshot != null) {
+            long stamp = metaLock.writeLock();
+            try {
+                if (snapshot != null) {
+                    // blocks the snapshot can still see stay as they are until it is released
+                    released = snapshot.hold(released, tx.isZeroReleased());
+                }
+            } finally {
+                metaLock.unlockWrite(stamp);
+            }
+        }
+        if (tx.isZeroReleased()) {
+            // nobody owns these blocks and nobody can allocate them yet, no lock needed
+            for (int block : released) {
+                zeroOutBlock(block);
+            }
+        }
+        freeBlocks(released);
+    }
+
+    // give blocks back to the allocator
+    // not waited for: if this record is lost the blocks only stay marked used until the next load
+    private void freeBlocks(int[] blocks) {
+        if (blocks.length == 0) {
+            return;
+        }
+        MetadataTx tx = new MetadataTx();
+        long stamp = metaLock.writeLock();
+        try {
+            for (int block : blocks) {
+                freeBlockList.setFree(block);
+                tx.addBlock(block);
+            }
+            logMetadata(tx);
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+    }
+
+    // turn the entries named in tx into regions of the volume, one per run of consecutive entries
+    private List<MetadataTx.Region> encode(MetadataTx tx) {
+        int[] inodes = tx.getInodes();
+        int[] words = tx.getBitmapWords();
+        int[] nodes = tx.getNodes();
+        int[] dedupeEntries = tx.getDedupeEntries();
+        int[] treePages = tx.getTreePages();
+        int treeBytes = 0;
+        for (int page : treePages) {
+            treeBytes += tree.getUsedLength(page);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(inodes.length * superblock.getInodeSize()
+                + words.length * Long.BYTES + nodes.length * Superblock.NODE_SIZE
+                + dedupeEntries.length * Superblock.DEDUPE_ENTRY_SIZE + treeBytes);
+        List<MetadataTx.Region> regions = new ArrayList<>();
+        encodeRuns(buf, regions, inodes, superblock.getInodeTableOffset(), superblock.getInodeSize(),
+                i -> putInode(buf, inodeTable[i]));
+        encodeRuns(buf, regions, words, superblock.getFreeListOffset(), Long.BYTES,
+                i -> buf.putLong(freeBlockList.getWord(i)));
+        encodeRuns(buf, regions, nodes, superblock.getNodeTableOffset(), Superblock.NODE_SIZE,
+                i -> buf.putInt(fnodeTable[i].getNext()));
+        encodeRuns(buf, regions, dedupeEntries, superblock.getDedupeTableOffset(), Superblock.DEDUPE_ENTRY_SIZE,
+                i -> putDedupeEntry(buf, i));
+        // tree pages one region each, only the part in use (pages freed by the operation are skipped)
+        for (int page : treePages) {
+            int length = tree.getUsedLength(page);
+            if (length > 0) {
+                int start = buf.position();
+                buf.put(tree.getPage(page), 0, length);
+                regions.add(new MetadataTx.Region(superblock.getTreeOffset() + (long) page * DirectoryTree.PAGE_SIZE,
+                        buf.slice(start, length)));
+            }
+        }
+        return regions;
+    }
+
+    private static void encodeRuns(ByteBuffer buf, List<MetadataTx.Region> regions, int[] indexes,
+                                   long tableOffset, int entrySize, IntConsumer encoder) {
+        int i = 0;
+        while (i < indexes.length) {
+            int start = buf.position();
+            int first = indexes[i];
+            encoder.accept(indexes[i++]);
+            while (i < indexes.length && indexes[i] == indexes[i - 1] + 1) {
+                encoder.accept(indexes[i++]);
+            }
+            regions.add(new MetadataTx.Region(tableOffset + (long) first * entrySize,
+                    buf.slice(start, buf.position() - start)));
+        }
+    }
+
+    // write all metadata, only used when a new volume is formatted
+    private void saveMetadata() throws IOException {
+        long stamp = metaLock.writeLock();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE);
+
+            // save inode table
+            long position = superblock.getInodeTableOffset();
+            for (FEntry entry : inodeTable) {
+                if (buf.remaining() < superblock.getInodeSize()) {
+                    position += flushBuffer(device, buf, position);
+                }
+                putInode(buf, entry);
+            }
+            flushBuffer(device, buf, position);
+
+            // save free block bitmap
+            position = superblock.getFreeListOffset();
+            for (int i = 0; i < freeBlockList.getWordCount(); i++) {
+                if (buf.remaining() < Long.BYTES) {
+                    position += flushBuffer(device, buf, position);
+                }
+                buf.putLong(freeBlockList.getWord(i));
+            }
+            flushBuffer(device, buf, position);
+
+            // save next-block table
+            position = superblock.getNodeTableOffset();
+            for (FNode node : fnodeTable) {
+                if (buf.remaining() < Superblock.NODE_SIZE) {
+                    position += flushBuffer(device, buf, position);
+                }
+                buf.putInt(node.getNext());
+            }
+            flushBuffer(device, buf, position);
+
+            // save dedupe table
+            if (dedupe) {
+                position = superblock.getDedupeTableOffset();
+                for (int i = 0; i < maxBlocks; i++) {
+                    if (buf.remaining() < Superblock.DEDUPE_ENTRY_SIZE) {
+                        position += flushBuffer(device, buf, position);
+                    }
+                    putDedupeEntry(buf, i);
+                }
+                flushBuffer(device, buf, position);
+            }
+
+            // save the directory tree (an empty one: the header and the root)
+            if (directories) {
+                writeTree(device, tree);
+            }
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+    }
+
+    // write the pages of a tree that are in use to the tree region of target
+    private void writeTree(BlockDevice target, DirectoryTree pages) throws IOException {
+        for (int page = 0; page < pages.getPageCount(); page++) {
+            if (pages.getPage(page) != null) {
+                target.write(ByteBuffer.wrap(pages.getPage(page)),
+                        superblock.getTreeOffset() + (long) page * DirectoryTree.PAGE_SIZE);
+            }
+        }
+    }
+
+    // write out what is in buf at position and empty it, returns the number of bytes written
+    private static int flushBuffer(BlockDevice device, ByteBuffer buf, long position) throws IOException {
+        buf.flip();
+        int length = buf.remaining();
+        device.write(buf, position);
+        buf.clear();
+        return length;
+    }
+
+    // blocks are given back only after the operation that dropped them is durable, and that
+    // is logged lazily, so a crash can leave blocks marked used that no file owns
+    // recompute the bitmap (and with dedupe the reference counts) from the chains of all files
+    // and fix any difference
+    private void reclaimLeakedBlocks() throws IOException {
+        FreeBitmap reachable = new FreeBitmap(maxBlocks);
+        int[] refs = new int[dedupe ? maxBlocks : 0];
+        for (FEntry entry : inodeTable) {
+            if (entry.isInUse()) {
+                for (int block : chainBlocks(entry.getFirstBlock())) {
+                    reachable.setUsed(block);
+                    if (dedupe) {
+                        refs[block]++;
+                    }
+                }
+            }
+        }
+        MetadataTx tx = new MetadataTx();
+        long stamp = metaLock.writeLock();
+        try {
+            for (int i = 0; i < reachable.getWordCount(); i++) {
+                if (reachable.getWord(i) != freeBlockList.getWord(i)) {
+                    freeBlockList.setWord(i, reachable.getWord(i));
+                    tx.addBlock(i << 6);
+                }
+            }
+            if (dedupe) {
+                hashIndex.clear();
+                for (int i = 0; i < maxBlocks; i++) {
+                    if (refs[i] != blockRefs[i]) {
+                        blockRefs[i] = refs[i];
+                        tx.addDedupeEntry(i);
+                    }
+                    if (refs[i] > 0) {
+                        hashIndex.put(i);
+                    }
+                }
+            }
+            logMetadata(tx);
+        } finally {
+            metaLock.unlockWrite(stamp);
+        }
+        commit(tx);
+    }
+
+    private void loadMetadata() throws IOException {
+        long stamp = metaLock.writeLock();
+        try {
+            // start of the inode table
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(superblock.getInodeTableOffset())), IO_BUFFER_SIZE));
+
+            for (int i = 0; i < maxFiles; i++) {
+                String name = readFixedString(in, Superblock.FILENAME_LENGTH).trim();
+                long size = in.readLong();
+                int firstBlock = in.readInt();
+                int flags = in.readUnsignedByte();
+                long physicalSize = superblock.isCompressionSupported() ? in.readLong() : size;
+                int parent = directories ? in.readInt() : DirectoryTree.ROOT;
+                FEntry e = new FEntry();
+                e.setFilename(name);
+                e.setFilesize(size);
+                e.setFirstBlock(firstBlock);
+                e.setInUse((flags & 1) != 0);
+                e.setStorage(flags >> 1 & 0x3F, physicalSize);
+                e.setParent(parent);
+                e.setDirectory((flags & 0x80) != 0);
+                inodeTable[i] = e;
+            }
+            rebuildIndex();
+
+            for (int i = 0; i < freeBlockList.getWordCount(); i++) {
+                freeBlockList.setWord(i, in.readLong());
+            }
+
+            for (int i = 0; i < maxBlocks; i++) {
+                FNode node = new FNode(i);
+                node.setNext(in.readInt());
+                fnodeTable[i] = node;
+            }
+
+            // dedupe table, the index is built once the reference counts are checked
+            if (dedupe) {
+                for (int i = 0; i < maxBlocks; i++) {
+                    blockHashes[2 * i] = in.readLong();
+                    blockHashes[2 * i + 1] = in.readLong();
+                    blockRefs[i] = in.readInt();
+                }
             }
 
-            for (int i = 0; i < MAXBLOCKS; i++) {
-                freeBlockList[i] = disk.readBoolean();
+            // directory tree, only the pages reachable from its root are read
+            if (directories) {
+                tree.load((page, into) -> device.read(ByteBuffer.wrap(into),
+                        superblock.getTreeOffset() + (long) page * DirectoryTree.PAGE_SIZE));
             }
 
         } finally {
-            rwLock.writeLock().unlock();
+            metaLock.unlockWrite(stamp);
         }
     }
 }
@@ -0,0 +1,37 @@
+// IoBudget paces background I/O (the compactor's copying) to a number of bytes per second, so
+// it only takes the part of the disk's bandwidth it is given and clients keep the rest.
+
+// whoever does the I/O tells it how many bytes it just moved and is put to sleep until those
+// fit in the budget. Time spent idle is not saved up beyond one second, so the first pass
+// after a quiet hour does not start with a burst.
+
+package ca.concordia.filesystem;
+
+public class IoBudget {
+
+    private static final long MAX_CREDIT_NANOS = 1_000_000_000L; // idle time that can be made up for
+
+    private final long bytesPerSecond;
+    private long next = System.nanoTime(); // when the bytes spent so far are paid for
+
+    public IoBudget(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("An I/O budget must be positive.");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // bytes were just read or written, wait until they fit in the budget
+    public void spend(long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        next = Math.max(next, now - MAX_CREDIT_NANOS) + bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = next - now;
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+}
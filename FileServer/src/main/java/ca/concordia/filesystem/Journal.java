@@ -0,0 +1,226 @@
+// Journal is the write-ahead log that sits next to the volume (filesystem.dat.journal).
+
+// every metadata change is appended as a record of the regions it rewrites and is only
+// copied into the volume after the record is on disk. Threads that commit at the same
+// time share one flush: whichever thread finds no flush running becomes the leader and
+// writes every record appended so far with a single fsync (group commit).
+
+// record: [length][seq][region count]([offset][length][bytes])...[crc32]
+
+package ca.concordia.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import ca.concordia.filesystem.io.BlockDevice;
+
+class Journal {
+
+    private static final long CHECKPOINT_SIZE = 8L * 1024 * 1024; // truncate the journal once it grows past this
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024; // anything larger is a torn or garbage length
+
+    private final BlockDevice volume;
+    private final FileChannel log;
+    private long logSize;
+
+    // a ReentrantLock rather than synchronized/wait, which would pin virtual threads to their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(); // encoded records not written yet
+    private List<MetadataTx.Region> pendingRegions = new ArrayList<>(); // their regions, applied after the flush
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+
+    Journal(Path path, BlockDevice volume) throws IOException {
+        this.volume = volume;
+        this.log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.logSize = log.size();
+    }
+
+    // redo every complete record left in the journal, then empty it
+    // must run before the metadata is loaded; returns the number of records replayed
+    int replay() throws IOException {
+        int replayed = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0)), 64 * 1024));
+        while (true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                if (length < Long.BYTES + 2 * Integer.BYTES || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                record = new byte[length];
+                in.readFully(record);
+            } catch (EOFException e) {
+                break; // torn tail, the operation never committed
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length - Integer.BYTES);
+            if ((int) crc.getValue() != buf.getInt(record.length - Integer.BYTES)) {
+                break;
+            }
+            appendedSeq = buf.getLong();
+            int regions = buf.getInt();
+            for (int i = 0; i < regions; i++) {
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                volume.write(buf.slice(buf.position(), length), offset);
+                buf.position(buf.position() + length);
+            }
+            replayed++;
+        }
+        durableSeq = appendedSeq;
+        checkpoint();
+        return replayed;
+    }
+
+    // drop whatever is in the journal, used when a new volume is formatted next to an old journal
+    void reset() throws IOException {
+        checkpoint();
+    }
+
+    // add a record for these regions, returns its sequence number for awaitDurable
+    long append(List<MetadataTx.Region> regions) {
+        lock.lock();
+        try {
+            long seq = ++appendedSeq;
+            byte[] record = encode(seq, regions);
+            pending.write(record, 0, record.length);
+            pendingRegions.addAll(regions);
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // block until record seq is on disk, flushing it (and everything queued with it) if nobody else is
+    void awaitDurable(long seq) throws IOException {
+        while (true) {
+            byte[] batch;
+            List<MetadataTx.Region> regions;
+            long batchSeq;
+            lock.lock();
+            try {
+                while (flushing && durableSeq < seq) {
+                    try {
+                        flushed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the journal.", e);
+                    }
+                }
+                if (durableSeq >= seq) {
+                    return;
+                }
+                // become the leader for everything appended so far
+                flushing = true;
+                batch = pending.toByteArray();
+                pending.reset();
+                regions = pendingRegions;
+                pendingRegions = new ArrayList<>();
+                batchSeq = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                flush(batch, regions);
+            } catch (IOException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                flushing = false;
+                if (error == null) {
+                    durableSeq = batchSeq;
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    // commit whatever is queued and empty the journal, used when the volume is closed
+    void close() throws IOException {
+        long seq;
+        lock.lock();
+        try {
+            seq = appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        checkpoint();
+        log.close();
+    }
+
+    private void flush(byte[] batch, List<MetadataTx.Region> regions) throws IOException {
+        // data blocks first, a record must never point at blocks that are not on disk
+        volume.force();
+        writeFully(log, ByteBuffer.wrap(batch), logSize);
+        log.force(false);
+        logSize += batch.length;
+
+        // the records are durable, now the volume itself can be updated
+        for (MetadataTx.Region region : regions) {
+            volume.write(region.data.duplicate(), region.offset);
+        }
+        if (logSize >= CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    // everything in the journal has been copied into the volume, make that durable and start over
+    private void checkpoint() throws IOException {
+        volume.force();
+        log.truncate(0);
+        log.force(false);
+        logSize = 0;
+    }
+
+    private static byte[] encode(long seq, List<MetadataTx.Region> regions) {
+        int length = Long.BYTES + Integer.BYTES + Integer.BYTES; // seq, count, crc
+        for (MetadataTx.Region region : regions) {
+            length += Long.BYTES + Integer.BYTES + region.data.remaining();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + length);
+        buf.putInt(length);
+        buf.putLong(seq);
+        buf.putInt(regions.size());
+        for (MetadataTx.Region region : regions) {
+            buf.putLong(region.offset);
+            buf.putInt(region.data.remaining());
+            buf.put(region.data.duplicate());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), Integer.BYTES, length - Integer.BYTES);
+        buf.putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+}
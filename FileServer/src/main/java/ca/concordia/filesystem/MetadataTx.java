@@ -0,0 +1,149 @@
+// MetadataTx collects the metadata touched by one operation: which inode slots,
+// free bitmap words, next-block entries, dedupe table entries and directory tree pages changed. Only those get written back to disk.
+
+// it also holds the blocks the operation dropped; they are handed back to the allocator
+// only after the operation's journal record is durable, and the paths it changed, which the
+// volume's change listener is told about at the same moment.
+
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class MetadataTx {
+
+    private final IntList inodes = new IntList();
+    private final IntList bitmapWords = new IntList();
+    private final IntList nodes = new IntList();
+    private final IntList dedupeEntries = new IntList();
+    private final IntList treePages = new IntList();
+    private final IntList released = new IntList();
+    private List<String> changedPaths; // null until there is one
+    private boolean zeroReleased; // overwrite released blocks with zeros (delete)
+    private long seq = -1; // journal sequence number once logged
+
+    void addInode(int inode) {
+        inodes.add(inode);
+    }
+
+    // the bitmap word holding this block's bit
+    void addBlock(int block) {
+        bitmapWords.add(block >>> 6);
+    }
+
+    // the next-block entry of this block
+    void addNode(int block) {
+        nodes.add(block);
+    }
+
+    // the dedupe table entry (hash, reference count) of this block
+    void addDedupeEntry(int block) {
+        dedupeEntries.add(block);
+    }
+
+    // a page of the directory tree
+    void addTreePage(int page) {
+        treePages.add(page);
+    }
+
+    // a block the file no longer uses, freed once this operation is durable
+    void release(int block) {
+        released.add(block);
+    }
+
+    // a file or directory this operation creates, deletes or gives new contents
+    void addChangedPath(String path) {
+        if (changedPaths == null) {
+            changedPaths = new ArrayList<>(1);
+        }
+        changedPaths.add(path);
+    }
+
+    List<String> getChangedPaths() {
+        return changedPaths != null ? changedPaths : List.of();
+    }
+
+    int[] getReleasedBlocks() {
+        return released.sortedUnique();
+    }
+
+    void setZeroReleased(boolean zeroReleased) {
+        this.zeroReleased = zeroReleased;
+    }
+
+    boolean isZeroReleased() {
+        return zeroReleased;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    boolean isEmpty() {
+        return inodes.size == 0 && bitmapWords.size == 0 && nodes.size == 0 && dedupeEntries.size == 0
+                && treePages.size == 0;
+    }
+
+    // sorted, without duplicates, so consecutive indexes can be written together
+    int[] getInodes() {
+        return inodes.sortedUnique();
+    }
+
+    int[] getBitmapWords() {
+        return bitmapWords.sortedUnique();
+    }
+
+    int[] getNodes() {
+        return nodes.sortedUnique();
+    }
+
+    int[] getDedupeEntries() {
+        return dedupeEntries.sortedUnique();
+    }
+
+    int[] getTreePages() {
+        return treePages.sortedUnique();
+    }
+
+    // one contiguous piece of encoded metadata and where it goes in the volume
+    static class Region {
+        final long offset;
+        final ByteBuffer data;
+
+        Region(long offset, ByteBuffer data) {
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    // growable int array, avoids boxing every index
+    private static class IntList {
+        private int[] values = new int[8];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] sortedUnique() {
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+    }
+}
@@ -0,0 +1,787 @@
+// ShardedFileSystem spreads the files of the server over several volumes (shards), each a
+// FileSystemManager with its own file, locks, journal and block I/O, so put on different disks
+// they add up both in space and in throughput. With one shard it passes everything straight on.
+
+// a file lives on the shard its name hashes to on a HashRing. Directories exist on every shard
+// (created and removed on all of them), so a file can be created in a directory whatever shard
+// it lands on, and listing a directory asks every shard and merges the answers.
+// shards are added by starting the server with more volumes (at the end of the list, the ring
+// places names by position). A background task then moves every file whose shard changed;
+// until it is done a file that is not on its new shard yet is looked for on the others.
+// shards cannot be removed: the files on a volume left out are not seen any more.
+
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.HashRing;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+public class ShardedFileSystem {
+
+    // locking, only with more than one shard: every operation holds the read lock of its name's
+    // stripe while it finds the shard and runs there. Whatever has to change a name on several
+    // shards as one step (moving a file, an atomic batch over shards, MKDIR and RMDIR) holds the
+    // write lock, so nobody sees the name half done. Always taken before the shards' own locks.
+    private static final int LOCK_STRIPES = 256; // power of two
+    private static final String[] GAUGES = {"blocks.total", "blocks.free", "files.max", "files.count", "shards"};
+    private static final int MOVE_CHUNK_SIZE = 64 * 1024; // bytes a file is copied to its shard with at a time
+    private static final long MAX_BACKUP_SIZE = 16L * 1024 * 1024; // old contents an atomic batch over shards keeps in memory
+
+    private final FileSystemManager[] shards;
+    private final HashRing ring;
+    private final boolean directories;
+    private final ReentrantReadWriteLock[] nameLocks; // null with one shard
+    private final FileChannel moving; // "<from shard> <to shard> <name>" of the file being moved, null with one shard
+
+    private volatile boolean rebalancing; // some files may not be on their shard yet
+    private volatile boolean closed;
+    private final Thread rebalancer; // null with one shard
+    private Compactor compactor; // null until startCompaction
+
+    // takes over the shards (closed by close()); directories missing on some of them are created
+    // there before this returns, moving files to their shard goes on in the background
+    public ShardedFileSystem(List<FileSystemManager> shards) throws IOException {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one volume is needed.");
+        }
+        this.shards = shards.toArray(new FileSystemManager[0]);
+        this.ring = new HashRing(this.shards.length);
+        this.directories = this.shards[0].isDirectoriesSupported();
+        for (FileSystemManager shard : this.shards) {
+            if (shard.isDirectoriesSupported() != directories) {
+                // a name would mean different things on different shards
+                throw new IllegalArgumentException("All volumes must be formatted the same way: some support"
+                        + " directories and some do not (format new volumes with the --directories of the others).");
+            }
+        }
+
+        if (this.shards.length > 1) {
+            this.nameLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                nameLocks[i] = new ReentrantReadWriteLock();
+            }
+            if (directories) {
+                copyDirectories();
+            }
+            // next to the first volume, like the replica's state
+            Path movingPath = Path.of(this.shards[0].getVolumePath() + ".moving");
+            this.moving = FileChannel.open(movingPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                dropCutOffMove();
+            } catch (IOException | RuntimeException e) {
+                moving.close();
+                throw e;
+            }
+            this.rebalancing = true;
+            this.rebalancer = Thread.ofVirtual().name("rebalance").start(this::rebalance);
+        } else {
+            this.nameLocks = null;
+            this.moving = null;
+            this.rebalancer = null;
+        }
+
+        // the volumes added up, read whenever the metrics are
+        Metrics.get().registerGauge("blocks.total", () -> sum(FileSystemManager::getBlockCount));
+        Metrics.get().registerGauge("blocks.free", () -> sum(FileSystemManager::getFreeBlockCount));
+        Metrics.get().registerGauge("files.max", () -> sum(FileSystemManager::getMaxFiles));
+        Metrics.get().registerGauge("files.count", () -> sum(FileSystemManager::getFileCount));
+        Metrics.get().registerGauge("shards", () -> this.shards.length);
+    }
+
+    // defragment every shard in the background, copying at most bytesPerSecond (see Compactor)
+    public synchronized void startCompaction(long bytesPerSecond) {
+        if (compactor == null && !closed) {
+            compactor = new Compactor(shards, bytesPerSecond);
+            compactor.start();
+        }
+    }
+
+    // stop rebalancing and compacting, commit everything still in the journals and close every shard
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (compactor != null) {
+                compactor.stop();
+            }
+        }
+        if (rebalancer != null) {
+            try {
+                rebalancer.join(); // finishes the file it is moving
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException failed = null;
+        if (moving != null) {
+            try {
+                moving.close();
+            } catch (IOException e) {
+                failed = e;
+            }
+        }
+        for (FileSystemManager shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failed = failed != null ? failed : e;
+            }
+        }
+        for (String gauge : GAUGES) {
+            Metrics.get().removeGauge(gauge);
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public FileSystemManager getShard(int i) {
+        return shards[i];
+    }
+
+    // true once every file is on the shard it belongs to
+    public boolean isBalanced() {
+        return !rebalancing;
+    }
+
+    public boolean isDirectoriesSupported() {
+        return directories;
+    }
+
+    // see FileSystemManager.setChangeListener, a change on several shards (MKDIR) is reported by each
+    public void setChangeListener(Consumer<String> listener) {
+        for (FileSystemManager shard : shards) {
+            shard.setChangeListener(listener);
+        }
+    }
+
+    // the largest file one shard can hold
+    public long getMaxFileSize() {
+        long max = 0;
+        for (FileSystemManager shard : shards) {
+            max = Math.max(max, (long) shard.getBlockCount() * shard.getBlockSize());
+        }
+        return max;
+    }
+
+    private interface ShardCall<T> {
+        T run(FileSystemManager shard) throws Exception;
+    }
+
+    // run call on the shard that has (or gets) fileName, holding the name's read lock
+    private <T> T route(String fileName, ShardCall<T> call) throws Exception {
+        if (nameLocks == null) {
+            return call.run(shards[0]);
+        }
+        ReentrantReadWriteLock lock = nameLock(fileName);
+        lock.readLock().lock();
+        try {
+            return call.run(locate(fileName));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // FILE METHODS, each runs on the file's shard
+    public void createFile(String fileName) throws Exception {
+        route(fileName, shard -> {
+            shard.createFile(fileName);
+            return null;
+        });
+    }
+
+    public void deleteFile(String fileName) throws Exception {
+        route(fileName, shard -> {
+            shard.deleteFile(fileName);
+            return null;
+        });
+    }
+
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        route(fileName, shard -> {
+            shard.writeFile(fileName, contents);
+            return null;
+        });
+    }
+
+    public byte[] readFile(String fileName) throws Exception {
+        return route(fileName, shard -> shard.readFile(fileName));
+    }
+
+    public boolean fileExists(String fileName) throws Exception {
+        return route(fileName, shard -> shard.fileExists(fileName));
+    }
+
+    // directories are on every shard, the first one answers
+    public boolean directoryExists(String path) {
+        return shards[0].directoryExists(path);
+    }
+
+    public long getFileSize(String fileName) throws Exception {
+        return route(fileName, shard -> shard.getFileSize(fileName));
+    }
+
+    public long transferFile(String fileName, WritableByteChannel target,
+                             FileSystemManager.SizeHeader header) throws Exception {
+        return route(fileName, shard -> shard.transferFile(fileName, target, header));
+    }
+
+    public byte[] read(String fileName, long offset, int length) throws Exception {
+        return route(fileName, shard -> shard.read(fileName, offset, length));
+    }
+
+    public void write(String fileName, long offset, byte[] bytes) throws Exception {
+        route(fileName, shard -> {
+            shard.write(fileName, offset, bytes);
+            return null;
+        });
+    }
+
+    public void append(String fileName, byte[] bytes) throws Exception {
+        route(fileName, shard -> {
+            shard.append(fileName, bytes);
+            return null;
+        });
+    }
+
+    // the name lock is only held while the stream is opened: if the file is moved to another
+    // shard while the stream is open, the stream fails like it does when anyone changes the file
+    public FileSystemManager.WriteStream openWrite(String fileName, long offset) throws Exception {
+        return route(fileName, shard -> shard.openWrite(fileName, offset));
+    }
+
+    public FileSystemManager.ReadStream openRead(String fileName, long offset) throws Exception {
+        return route(fileName, shard -> shard.openRead(fileName, offset));
+    }
+
+    // DIRECTORY METHODS, on every shard in order. If one shard refuses, the shards before it are
+    // put back the way they were and its error is passed on
+    public void createDirectory(String path) throws Exception {
+        if (nameLocks == null) {
+            shards[0].createDirectory(path);
+            return;
+        }
+        ReentrantReadWriteLock lock = nameLock(path);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                try {
+                    shards[i].createDirectory(path);
+                } catch (Exception e) {
+                    for (int j = i - 1; j >= 0; j--) {
+                        FileSystemManager shard = shards[j];
+                        undo(() -> shard.deleteDirectory(path), "remove directory " + path, j);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // a file created in the directory on a shard that already removed it fails as if the
+    // directory was gone: RMDIR is not an atomic step across shards for others, only for itself
+    public void deleteDirectory(String path) throws Exception {
+        if (nameLocks == null) {
+            shards[0].deleteDirectory(path);
+            return;
+        }
+        ReentrantReadWriteLock lock = nameLock(path);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                try {
+                    shards[i].deleteDirectory(path);
+                } catch (Exception e) {
+                    for (int j = i - 1; j >= 0; j--) {
+                        FileSystemManager shard = shards[j];
+                        undo(() -> shard.createDirectory(path), "restore directory " + path, j);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    // a step putting a shard back after another shard refused, logged if even that fails
+    private static void undo(Step step, String what, int shard) {
+        try {
+            step.run();
+        } catch (Exception e) {
+            Log.error("Could not " + what + " on shard " + shard + ": " + e.getMessage());
+        }
+    }
+
+    // LIST METHODS
+    // like FileSystemManager.list: every shard gives its first limit names after after, the
+    // first limit of them all together are the page. A directory (on every shard) and a file
+    // still on two shards while it is moved are counted once
+    public FileSystemManager.Listing list(String dir, String prefix, String after, int limit) throws Exception {
+        if (shards.length == 1) {
+            return shards[0].list(dir, prefix, after, limit);
+        }
+        TreeMap<String, String> names = new TreeMap<>(); // name -> as listed (directories end in '/')
+        boolean more = false;
+        for (FileSystemManager shard : shards) {
+            FileSystemManager.Listing listing = shard.list(dir, prefix, after, limit);
+            for (String name : listing.getNames()) {
+                names.put(directories && name.endsWith("/") ? name.substring(0, name.length() - 1) : name, name);
+            }
+            more |= listing.getNext() != null;
+        }
+        while (names.size() > limit) {
+            names.pollLastEntry();
+            more = true;
+        }
+        return new FileSystemManager.Listing(names.values().toArray(new String[0]),
+                more && !names.isEmpty() ? names.lastKey() : null);
+    }
+
+    // every name on every shard, in name order
+    public String[] listFiles() {
+        Set<String> files = shards.length == 1 ? new LinkedHashSet<>() : new TreeSet<>();
+        for (FileSystemManager shard : shards) {
+            for (String name : shard.listFiles()) {
+                files.add(name);
+            }
+        }
+        return files.toArray(new String[0]);
+    }
+
+    // BATCH METHODS
+    // the operations of each shard go to that shard as one batch (see FileSystemManager.apply).
+    // an atomic batch over several shards is applied shard after shard; if one refuses, the
+    // files already changed on the shards before it are put back as they were. That holds
+    // against failing operations, not against a crash in between, which can leave some shards
+    // applied and the others not
+    public void apply(Batch batch) throws Exception {
+        if (nameLocks == null) {
+            shards[0].apply(batch);
+            return;
+        }
+        List<Batch.Op> ops = batch.getOps();
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (Batch.Op op : ops) {
+            op.error = null;
+            stripes[lockStripe(op.fileName)] = true;
+        }
+        // in stripe order, so two batches cannot deadlock each other
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                lockName(nameLocks[i], batch.isAtomic());
+            }
+        }
+        try {
+            // the operations of each shard, by position in the batch
+            List<List<Integer>> byShard = new ArrayList<>();
+            int[] shardOf = new int[shards.length];
+            for (int i = 0; i < ops.size(); i++) {
+                int shard = indexOf(locate(ops.get(i).fileName));
+                if (shardOf[shard] == 0) {
+                    byShard.add(new ArrayList<>());
+                    shardOf[shard] = byShard.size();
+                }
+                byShard.get(shardOf[shard] - 1).add(i);
+            }
+            FileSystemManager[] targets = new FileSystemManager[byShard.size()];
+            for (int s = 0; s < shards.length; s++) {
+                if (shardOf[s] != 0) {
+                    targets[shardOf[s] - 1] = shards[s];
+                }
+            }
+
+            // an atomic batch over several shards remembers how its files were first
+            Backup backup = batch.isAtomic() && targets.length > 1 ? new Backup(ops, byShard, targets) : null;
+            for (int g = 0; g < targets.length; g++) {
+                List<Integer> group = byShard.get(g);
+                Batch part = new Batch(batch.isAtomic());
+                for (int i : group) {
+                    part.getOps().add(new Batch.Op(ops.get(i).kind, ops.get(i).fileName, ops.get(i).contents));
+                }
+                try {
+                    targets[g].apply(part);
+                } catch (Exception e) {
+                    int failed = copyErrors(part, group, ops);
+                    if (backup != null) {
+                        backup.restore(g);
+                    }
+                    if (failed < 0) {
+                        throw e; // the shard itself failed, not an operation
+                    }
+                    throw new Exception("ERROR: Batch not applied, operation " + (failed + 1) + " ("
+                            + batch.describe(failed) + ") failed: " + batch.getError(failed));
+                }
+                copyErrors(part, group, ops);
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    unlockName(nameLocks[i], batch.isAtomic());
+                }
+            }
+        }
+    }
+
+    // the errors of a shard's part back into the batch, returns the first failed operation (-1 if none)
+    private static int copyErrors(Batch part, List<Integer> group, List<Batch.Op> ops) {
+        int first = -1;
+        for (int j = 0; j < group.size(); j++) {
+            String error = part.getError(j);
+            ops.get(group.get(j)).error = error;
+            if (error != null && (first < 0 || group.get(j) < first)) {
+                first = group.get(j);
+            }
+        }
+        return first;
+    }
+
+    // whether and with what contents the files of an atomic batch existed before it ran
+    private static class Backup {
+        private final List<List<String>> names = new ArrayList<>(); // by group
+        private final List<List<byte[]>> contents = new ArrayList<>(); // null = did not exist
+        private final FileSystemManager[] targets;
+
+        // refuses (before anything is applied) a batch whose files hold more than MAX_BACKUP_SIZE
+        Backup(List<Batch.Op> ops, List<List<Integer>> byShard, FileSystemManager[] targets) throws Exception {
+            this.targets = targets;
+            long size = 0;
+            for (int g = 0; g < targets.length; g++) {
+                for (int i : byShard.get(g)) {
+                    String name = ops.get(i).fileName;
+                    size += targets[g].fileExists(name) ? targets[g].getFileSize(name) : 0;
+                }
+            }
+            if (size > MAX_BACKUP_SIZE) {
+                throw new Exception("ERROR: An atomic batch over several shards can only change files of "
+                        + MAX_BACKUP_SIZE + " bytes in all, these hold " + size + " bytes. Send it as a"
+                        + " batch that is not atomic, or in smaller batches.");
+            }
+            for (int g = 0; g < targets.length; g++) {
+                List<String> groupNames = new ArrayList<>();
+                List<byte[]> groupContents = new ArrayList<>();
+                for (int i : byShard.get(g)) {
+                    String name = ops.get(i).fileName;
+                    if (!groupNames.contains(name)) {
+                        groupNames.add(name);
+                        groupContents.add(targets[g].fileExists(name) ? contentsOf(targets[g], name) : null);
+                    }
+                }
+                names.add(groupNames);
+                contents.add(groupContents);
+            }
+        }
+
+        // put back the files of the groups before group g, which were applied
+        void restore(int g) {
+            for (int k = g - 1; k >= 0; k--) {
+                FileSystemManager shard = targets[k];
+                for (int n = 0; n < names.get(k).size(); n++) {
+                    String name = names.get(k).get(n);
+                    byte[] old = contents.get(k).get(n);
+                    undo(() -> {
+                        boolean exists = shard.fileExists(name);
+                        if (exists && (old == null || old.length == 0)) {
+                            shard.deleteFile(name); // an empty file is made by creating it again
+                            exists = false;
+                        }
+                        if (old != null && !exists) {
+                            shard.createFile(name);
+                        }
+                        if (old != null && old.length > 0) {
+                            shard.writeFile(name, old);
+                        }
+                    }, "restore " + name + " after a failed batch", k);
+                }
+            }
+        }
+    }
+
+    // SNAPSHOT METHODS
+    // a snapshot of every shard, taken one after the other (each is consistent in itself, together
+    // they are only as consistent as the moments they were taken). Release every one when done
+    public FileSystemManager.Snapshot[] snapshot() throws Exception {
+        FileSystemManager.Snapshot[] snapshots = new FileSystemManager.Snapshot[shards.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                snapshots[i] = shards[i].snapshot();
+            }
+        } catch (Exception e) {
+            for (FileSystemManager.Snapshot snapshot : snapshots) {
+                if (snapshot != null) {
+                    snapshot.release();
+                }
+            }
+            throw e;
+        }
+        return snapshots;
+    }
+
+    // REBALANCING
+    // the shard fileName is on: its own by the ring, unless rebalancing has not moved it there yet.
+    // caller holds the name's lock
+    private FileSystemManager locate(String fileName) {
+        FileSystemManager owner = shards[ring.shardFor(key(fileName))];
+        if (!rebalancing || owner.fileExists(fileName)) {
+            return owner;
+        }
+        for (FileSystemManager shard : shards) {
+            if (shard != owner && shard.fileExists(fileName)) {
+                return shard;
+            }
+        }
+        return owner; // nowhere: created on its own shard
+    }
+
+    // give every shard the directories any of them has: a new shard gets them all, and an MKDIR
+    // or RMDIR cut off by a crash ends up done on every shard. Parents sort before their children
+    private void copyDirectories() throws IOException {
+        TreeSet<String> all = new TreeSet<>();
+        List<Set<String>> present = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            Set<String> dirs = new TreeSet<>();
+            for (String name : shard.listFiles()) {
+                if (name.endsWith("/")) {
+                    dirs.add(name);
+                }
+            }
+            all.addAll(dirs);
+            present.add(dirs);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            for (String dir : all) {
+                if (!present.get(i).contains(dir)) {
+                    try {
+                        shards[i].createDirectory(dir);
+                    } catch (Exception e) {
+                        throw new IOException("Could not create directory " + dir + " on shard " + i + ": "
+                                + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    // move every file that is not on its shard there, one at a time. Runs once per start; if a
+    // file cannot be moved (its shard is full) it stays where it is and is still found there
+    private void rebalance() {
+        long started = System.nanoTime();
+        int moved = 0;
+        int failed = 0;
+        for (int i = 0; i < shards.length && !closed; i++) {
+            for (String name : shards[i].listFiles()) {
+                if (closed) {
+                    return;
+                }
+                if (directories && name.endsWith("/") || ring.shardFor(key(name)) == i) {
+                    continue;
+                }
+                try {
+                    if (move(name, shards[i])) {
+                        moved++;
+                    }
+                } catch (Exception e) {
+                    failed++;
+                    Log.warn("Could not move " + name + " off shard " + i + ": " + e.getMessage());
+                }
+            }
+        }
+        if (closed) {
+            return;
+        }
+        if (failed == 0) {
+            rebalancing = false;
+        }
+        if (moved > 0 || failed > 0) {
+            Log.info("Rebalanced " + shards.length + " shards: " + moved + " files moved"
+                    + (failed > 0 ? ", " + failed + " could not be" : "") + " in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms.");
+        }
+    }
+
+    // copy a file to its shard, then delete it where it was. The copy is streamed a chunk at a
+    // time, so a big file does not have to fit in memory; the moving file names it meanwhile. A
+    // copy cut off by a crash is dropped at the next start (dropCutOffMove) and the file moved
+    // again, once the copy is complete it is the newer one (operations prefer it) and wins.
+    // returns false if the file is gone or the server is closing
+    private boolean move(String fileName, FileSystemManager from) throws Exception {
+        ReentrantReadWriteLock lock = nameLock(fileName);
+        lock.writeLock().lock();
+        try {
+            if (!from.fileExists(fileName)) {
+                return false; // deleted meanwhile
+            }
+            int target = ring.shardFor(key(fileName));
+            FileSystemManager to = shards[target];
+            if (!to.fileExists(fileName)) {
+                setMoving(indexOf(from) + " " + target + " " + fileName);
+                if (!copy(fileName, from, to)) {
+                    return false;
+                }
+            }
+            from.deleteFile(fileName);
+            setMoving("");
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // returns false, with nothing left on to, if the server started closing meanwhile
+    private boolean copy(String fileName, FileSystemManager from, FileSystemManager to) throws Exception {
+        to.createFile(fileName);
+        boolean copied = false;
+        try (FileSystemManager.ReadStream in = from.openRead(fileName, 0)) {
+            FileSystemManager.WriteStream out = to.openWrite(fileName, 0);
+            try {
+                byte[] chunk = new byte[MOVE_CHUNK_SIZE];
+                int n;
+                while ((n = in.read(chunk, 0, chunk.length)) > 0 && !closed) {
+                    out.write(chunk, 0, n);
+                }
+                if (!closed) {
+                    out.close();
+                    copied = true;
+                }
+            } finally {
+                if (!copied) {
+                    out.abort();
+                }
+            }
+        } finally {
+            if (!copied) {
+                undo(() -> to.deleteFile(fileName), "remove the part copied of " + fileName, indexOf(to));
+            }
+        }
+        return copied;
+    }
+
+    // what the moving file says, written to disk before the copy it names is started
+    private void setMoving(String move) throws IOException {
+        byte[] bytes = move.getBytes(StandardCharsets.UTF_8);
+        moving.truncate(bytes.length);
+        Journal.writeFully(moving, ByteBuffer.wrap(bytes), 0);
+        if (bytes.length > 0) {
+            moving.force(false);
+        }
+    }
+
+    // at start: a file being moved when the server stopped, that is still where it was, may only
+    // be partly copied to its shard. That copy is deleted, the rebalancer moves the file again
+    private void dropCutOffMove() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) moving.size());
+        while (buf.hasRemaining()) {
+            if (moving.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        String[] parts = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8).split(" ", 3);
+        if (parts.length == 3 && parts[0].matches("\\d+") && parts[1].matches("\\d+")) {
+            int from = Integer.parseInt(parts[0]);
+            int to = Integer.parseInt(parts[1]);
+            String fileName = parts[2];
+            if (from < shards.length && to < shards.length
+                    && shards[from].fileExists(fileName) && shards[to].fileExists(fileName)) {
+                try {
+                    shards[to].deleteFile(fileName);
+                } catch (Exception e) {
+                    throw new IOException("Could not drop the copy of " + fileName + " a stop cut off: "
+                            + e.getMessage(), e);
+                }
+                Log.info("Dropped the copy of " + fileName + " on shard " + to + " a stop cut off, it is moved again.");
+            }
+        }
+        setMoving("");
+    }
+
+    // HELPER METHODS
+    // the name as placed on the ring: with directories "/a/b/" and "a/b" are the same file
+    private String key(String fileName) {
+        if (!directories) {
+            return fileName;
+        }
+        int start = 0;
+        int end = fileName.length();
+        while (start < end && fileName.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && fileName.charAt(end - 1) == '/') {
+            end--;
+        }
+        return fileName.substring(start, end);
+    }
+
+    // a file never written has no data to read
+    private static byte[] contentsOf(FileSystemManager shard, String fileName) throws Exception {
+        return shard.getFileSize(fileName) == 0 ? new byte[0] : shard.readFile(fileName);
+    }
+
+    private ReentrantReadWriteLock nameLock(String fileName) {
+        return nameLocks[lockStripe(fileName)];
+    }
+
+    private int lockStripe(String fileName) {
+        int h = key(fileName).hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    private static void lockName(ReentrantReadWriteLock lock, boolean exclusive) {
+        if (exclusive) {
+            lock.writeLock().lock();
+        } else {
+            lock.readLock().lock();
+        }
+    }
+
+    private static void unlockName(ReentrantReadWriteLock lock, boolean exclusive) {
+        if (exclusive) {
+            lock.writeLock().unlock();
+        } else {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int indexOf(FileSystemManager shard) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == shard) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Not one of the shards.");
+    }
+
+    private long sum(ToLongFunction<FileSystemManager> value) {
+        long total = 0;
+        for (FileSystemManager shard : shards) {
+            total += value.applyAsLong(shard);
+        }
+        return total;
+    }
+}
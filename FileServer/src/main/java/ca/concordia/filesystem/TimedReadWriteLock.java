@@ -0,0 +1,85 @@
+// TimedReadWriteLock is the per-file lock, timed for Metrics: how long lock() had to wait and how
+// long a writer kept the lock. Taking a free lock costs one tryLock and, for writers, one clock read.
+
+package ca.concordia.filesystem;
+
+import ca.concordia.metrics.Histogram;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class TimedReadWriteLock extends ReentrantReadWriteLock {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TimedReadLock readLock;
+    private final TimedWriteLock writeLock;
+
+    TimedReadWriteLock(Histogram wait, Histogram hold) {
+        this.readLock = new TimedReadLock(this, wait);
+        this.writeLock = new TimedWriteLock(this, wait, hold);
+    }
+
+    @Override
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return writeLock;
+    }
+
+    private static final class TimedReadLock extends ReentrantReadWriteLock.ReadLock {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Histogram wait;
+
+        TimedReadLock(ReentrantReadWriteLock lock, Histogram wait) {
+            super(lock);
+            this.wait = wait;
+        }
+
+        @Override
+        public void lock() {
+            if (!tryLock()) {
+                long start = System.nanoTime();
+                super.lock();
+                wait.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class TimedWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+
+        // locks are never serialized, the histograms belong to this server only
+        private final transient Histogram wait;
+        private final transient Histogram hold;
+        private long lockedAt; // only touched by the thread holding the lock
+
+        TimedWriteLock(ReentrantReadWriteLock lock, Histogram wait, Histogram hold) {
+            super(lock);
+            this.wait = wait;
+            this.hold = hold;
+        }
+
+        @Override
+        public void lock() {
+            if (!tryLock()) {
+                long start = System.nanoTime();
+                super.lock();
+                wait.record(System.nanoTime() - start);
+            }
+            if (getHoldCount() == 1) {
+                lockedAt = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (getHoldCount() == 1) {
+                hold.record(System.nanoTime() - lockedAt);
+            }
+            super.unlock();
+        }
+    }
+}
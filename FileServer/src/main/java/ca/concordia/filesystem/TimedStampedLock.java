@@ -0,0 +1,52 @@
+// TimedStampedLock is the metadata lock, timed for Metrics like TimedReadWriteLock: waits for
+// readLock and writeLock, and how long each write section lasts. Optimistic reads are not timed.
+
+package ca.concordia.filesystem;
+
+import ca.concordia.metrics.Histogram;
+import java.util.concurrent.locks.StampedLock;
+
+class TimedStampedLock extends StampedLock {
+
+    private static final long serialVersionUID = 1L;
+
+    // locks are never serialized, the histograms belong to this server only
+    private final transient Histogram wait;
+    private final transient Histogram hold;
+    private long lockedAt; // only touched by the writer
+
+    TimedStampedLock(Histogram wait, Histogram hold) {
+        this.wait = wait;
+        this.hold = hold;
+    }
+
+    @Override
+    public long writeLock() {
+        long stamp = tryWriteLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = super.writeLock();
+            wait.record(System.nanoTime() - start);
+        }
+        lockedAt = System.nanoTime();
+        return stamp;
+    }
+
+    @Override
+    public void unlockWrite(long stamp) {
+        long held = System.nanoTime() - lockedAt;
+        super.unlockWrite(stamp);
+        hold.record(held);
+    }
+
+    @Override
+    public long readLock() {
+        long stamp = tryReadLock();
+        if (stamp == 0) {
+            long start = System.nanoTime();
+            stamp = super.readLock();
+            wait.record(System.nanoTime() - start);
+        }
+        return stamp;
+    }
+}
@@ -0,0 +1,101 @@
+// BlockHashIndex finds a stored block by its contents and the block that follows it, for deduplication.
+
+// a block is only reusable together with the rest of its chain, so the key is (content hash, next
+// block) and not the contents alone. Same layout as FileIndex: open addressing with linear probing,
+// a slot holds block index + 1 (0 = empty) and a hash of the key; the key itself is read from the
+// block's hash and next pointer when the hashes match. Sized for the block count so it never grows.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+public class BlockHashIndex {
+
+    private final long[] blockHashes; // two longs of content hash per block
+    private final FNode[] fnodeTable;
+    private final int[] slots; // block index + 1, 0 if the slot is empty
+    private final int[] hashes; // hash of the key stored in the same slot
+    private final int mask;
+    private int size;
+
+    public BlockHashIndex(long[] blockHashes, FNode[] fnodeTable) {
+        this.blockHashes = blockHashes;
+        this.fnodeTable = fnodeTable;
+        int capacity = Integer.highestOneBit(Math.max(2, fnodeTable.length) * 2 - 1) << 1; // at most half full
+        this.slots = new int[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // a block holding contents with hash (h0, h1) followed by next, -1 if there is none
+    public int find(long h0, long h1, int next) {
+        int hash = hash(h0, h1, next);
+        for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int block = slots[i] - 1;
+            if (hashes[i] == hash && blockHashes[2 * block] == h0 && blockHashes[2 * block + 1] == h1
+                    && fnodeTable[block].getNext() == next) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    // add block under its current hash and next pointer. Equal blocks may both be in the index (one
+    // of them can be removed while the other is still in use), find returns whichever comes first
+    public void put(int block) {
+        int hash = hash(block);
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = block + 1;
+        hashes[i] = hash;
+        size++;
+    }
+
+    // remove block, must be called before its next pointer changes
+    public void remove(int block) {
+        int i = hash(block) & mask;
+        while (slots[i] != 0 && slots[i] != block + 1) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == 0) {
+            return; // not in the index
+        }
+        size--;
+
+        // backward shift delete, same as FileIndex
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            boolean homeAfterHole = hole <= j ? (home > hole && home <= j) : (home > hole || home <= j);
+            if (!homeAfterHole) {
+                slots[hole] = slots[j];
+                hashes[hole] = hashes[j];
+                hole = j;
+            }
+        }
+        slots[hole] = 0;
+        hashes[hole] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(hashes, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int hash(int block) {
+        return hash(blockHashes[2 * block], blockHashes[2 * block + 1], fnodeTable[block].getNext());
+    }
+
+    // the content hash is already uniform, only the next pointer needs mixing in
+    private static int hash(long h0, long h1, int next) {
+        long h = h0 ^ (h1 * 0x9E3779B97F4A7C15L) ^ ((next + 1L) * 0xC2B2AE3D27D4EB4FL);
+        return (int) (h ^ (h >>> 32));
+    }
+}
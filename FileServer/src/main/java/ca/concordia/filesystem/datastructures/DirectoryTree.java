@@ -0,0 +1,484 @@
+// DirectoryTree maps (parent directory, name) to an inode: the directories of a volume.
+
+// one B+tree of fixed size pages, kept in memory exactly as they are stored in the tree region of
+// the volume (see Superblock). Keys sort by parent inode, then name, so the entries of a directory
+// sit next to each other: a lookup is one descent from the root and a listing is a descent to the
+// first name wanted followed by a walk along the leaves. Every change tells the caller which pages
+// it touched so they can be journaled with the operation.
+
+// page 0 is the header: [magic: 4][root page: 4]. Every other page is a leaf or an internal page:
+// [type: 1][unused: 1][count: 2][next leaf (leaf) / leftmost child (internal): 4][unused: 8]
+// followed by count entries of [parent: 4][name: 11, zero padded][inode (leaf) / child page (internal): 4].
+// the child of an internal entry holds the keys from that entry's key up to the next entry's, the
+// leftmost child those below the first key. Pages other than the root are kept at least half
+// full, so the tree never needs more than pagesFor(entries) pages.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+public class DirectoryTree {
+
+    public static final int ROOT = -1; // parent of the top level names, the root directory has no inode
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int MAGIC = 0x43465344; // "CFSD"
+    private static final int HEADER_SIZE = 16;
+    private static final int NAME_LENGTH = Superblock.FILENAME_LENGTH;
+    private static final int KEY_SIZE = 4 + NAME_LENGTH; // parent + name
+    private static final int ENTRY_SIZE = KEY_SIZE + 4; // key + inode or child page
+    private static final int CAPACITY = (PAGE_SIZE - HEADER_SIZE) / ENTRY_SIZE; // entries per page
+    private static final int MIN_FILL = CAPACITY / 2; // entries every page but the root keeps
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int MAX_HEIGHT = 32; // far more than any volume needs, stops a walk of a torn read
+
+    private final byte[][] pages; // null = free
+    private final int[] freePages; // stack of free page numbers
+    private int freePageCount;
+    private int root;
+
+    // visits one entry of a directory, returns false to stop
+    public interface EntryVisitor {
+        boolean visit(String name, int inode);
+    }
+
+    // reads page number page of the stored tree into page
+    public interface PageReader {
+        void read(int page, byte[] into) throws IOException;
+    }
+
+    // pages the tree region needs for entries names: every leaf and internal page at least half
+    // full, room for the new pages of a split, and the header
+    public static int pagesFor(int entries) {
+        return 1 + 2 * (entries / MIN_FILL + 1) + 4;
+    }
+
+    // an empty tree in a region of pageCount pages: the header and an empty root leaf
+    public DirectoryTree(int pageCount) {
+        this.pages = new byte[pageCount][];
+        this.freePages = new int[pageCount];
+        pages[0] = new byte[PAGE_SIZE];
+        putInt(pages[0], 0, MAGIC);
+        rebuildFreePages();
+        root = allocatePage(LEAF);
+        putInt(pages[0], 4, root);
+    }
+
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    // page p as stored, null if it is free
+    public byte[] getPage(int p) {
+        return pages[p];
+    }
+
+    // bytes of page p that hold anything (the rest is left as it is on disk), 0 if it is free
+    public int getUsedLength(int p) {
+        byte[] page = pages[p];
+        if (page == null) {
+            return 0;
+        }
+        return p == 0 ? HEADER_SIZE : HEADER_SIZE + count(page) * ENTRY_SIZE;
+    }
+
+    // replace the tree with the stored one, reading only the pages reachable from its root
+    public void load(PageReader reader) throws IOException {
+        Arrays.fill(pages, null);
+        byte[] header = new byte[PAGE_SIZE];
+        reader.read(0, header);
+        if (getInt(header, 0) != MAGIC) {
+            throw new IOException("Corrupt directory tree: bad magic number.");
+        }
+        pages[0] = header;
+        root = getInt(header, 4);
+        int[] stack = new int[pages.length];
+        int size = 0;
+        stack[size++] = root;
+        while (size > 0) {
+            int p = stack[--size];
+            if (p <= 0 || p >= pages.length || pages[p] != null) {
+                throw new IOException("Corrupt directory tree: bad page number " + p + ".");
+            }
+            byte[] page = new byte[PAGE_SIZE];
+            reader.read(p, page);
+            if ((page[0] != LEAF && page[0] != INTERNAL) || count(page) > CAPACITY) {
+                throw new IOException("Corrupt directory tree: bad page " + p + ".");
+            }
+            pages[p] = page;
+            if (page[0] == INTERNAL) {
+                if (size + count(page) + 1 > stack.length) {
+                    throw new IOException("Corrupt directory tree: too many pages.");
+                }
+                stack[size++] = link(page);
+                for (int i = 0; i < count(page); i++) {
+                    stack[size++] = value(page, i);
+                }
+            }
+        }
+        rebuildFreePages();
+    }
+
+    // the inode of name in directory parent, -1 if there is no such entry
+    public int find(int parent, String name) {
+        if (name.isEmpty() || name.length() > NAME_LENGTH) {
+            return -1;
+        }
+        byte[] key = key(parent, name);
+        byte[] page = leafFor(key);
+        int i = search(page, key);
+        return i >= 0 ? value(page, i) : -1;
+    }
+
+    // visit the entries of directory parent in name order, starting at the first name >= from,
+    // until the visitor returns false or the directory ends
+    public void scan(int parent, String from, EntryVisitor visitor) {
+        byte[] key = key(parent, from.length() > NAME_LENGTH ? from.substring(0, NAME_LENGTH) : from);
+        byte[] page = leafFor(key);
+        int i = search(page, key);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (int walked = 0; walked < pages.length; walked++) {
+            for (; i < count(page); i++) {
+                int offset = entryOffset(i);
+                if (getInt(page, offset) != parent) {
+                    return;
+                }
+                if (!visitor.visit(name(page, offset), value(page, i))) {
+                    return;
+                }
+            }
+            int next = link(page);
+            if (next < 0) {
+                return;
+            }
+            page = pages[next];
+            i = 0;
+        }
+        throw new IllegalStateException("Directory tree is corrupt.");
+    }
+
+    // true if directory parent has no entries
+    public boolean isEmpty(int parent) {
+        boolean[] found = {false};
+        scan(parent, "", (name, inode) -> {
+            found[0] = true;
+            return false;
+        });
+        return !found[0];
+    }
+
+    // add name -> inode to directory parent, replacing the inode if the name is there already
+    // dirty is told every page that changed
+    public void insert(int parent, String name, int inode, IntConsumer dirty) {
+        Split split = insert(root, key(parent, name), inode, dirty);
+        if (split != null) {
+            // the root was split, the tree gets one level taller
+            int newRoot = allocatePage(INTERNAL);
+            byte[] page = pages[newRoot];
+            setLink(page, root);
+            putEntry(page, 0, split.key, split.page);
+            setCount(page, 1);
+            root = newRoot;
+            putInt(pages[0], 4, root);
+            dirty.accept(newRoot);
+            dirty.accept(0);
+        }
+    }
+
+    // remove name from directory parent, returns false if it was not there
+    public boolean remove(int parent, String name, IntConsumer dirty) {
+        if (name.isEmpty() || name.length() > NAME_LENGTH) {
+            return false;
+        }
+        boolean removed = remove(root, key(parent, name), dirty);
+        byte[] rootPage = pages[root];
+        if (rootPage[0] == INTERNAL && count(rootPage) == 0) {
+            // the last two children of the root were merged, the tree gets one level shorter
+            int old = root;
+            root = link(rootPage);
+            freePage(old);
+            putInt(pages[0], 4, root);
+            dirty.accept(0);
+        }
+        return removed;
+    }
+
+    // a page split in two: the first key of the new page and its number
+    private record Split(byte[] key, int page) {
+    }
+
+    private Split insert(int p, byte[] key, int value, IntConsumer dirty) {
+        byte[] page = pages[p];
+        int i = search(page, key);
+        if (page[0] == LEAF) {
+            if (i >= 0) {
+                putInt(page, entryOffset(i) + KEY_SIZE, value);
+                dirty.accept(p);
+                return null;
+            }
+            return insertAt(p, -i - 1, key, value, dirty);
+        }
+        int slot = i >= 0 ? i : -i - 2; // the last entry <= key, -1 = the leftmost child
+        Split split = insert(child(page, slot), key, value, dirty);
+        return split == null ? null : insertAt(p, slot + 1, split.key, split.page, dirty);
+    }
+
+    // put an entry at position i of page p, splitting the page in two if it is full
+    private Split insertAt(int p, int i, byte[] key, int value, IntConsumer dirty) {
+        byte[] page = pages[p];
+        int count = count(page);
+        dirty.accept(p);
+        if (count < CAPACITY) {
+            System.arraycopy(page, entryOffset(i), page, entryOffset(i + 1), (count - i) * ENTRY_SIZE);
+            putEntry(page, i, key, value);
+            setCount(page, count + 1);
+            return null;
+        }
+
+        // full: line up all CAPACITY + 1 entries, the lower half stays, the upper half moves
+        int total = count + 1;
+        byte[] all = new byte[total * ENTRY_SIZE];
+        System.arraycopy(page, HEADER_SIZE, all, 0, i * ENTRY_SIZE);
+        System.arraycopy(key, 0, all, i * ENTRY_SIZE, KEY_SIZE);
+        putInt(all, i * ENTRY_SIZE + KEY_SIZE, value);
+        System.arraycopy(page, entryOffset(i), all, (i + 1) * ENTRY_SIZE, (count - i) * ENTRY_SIZE);
+
+        int rightPage = allocatePage(page[0]);
+        byte[] right = pages[rightPage];
+        dirty.accept(rightPage);
+        int leftCount = total / 2;
+        byte[] separator = Arrays.copyOfRange(all, leftCount * ENTRY_SIZE, leftCount * ENTRY_SIZE + KEY_SIZE);
+        System.arraycopy(all, 0, page, HEADER_SIZE, leftCount * ENTRY_SIZE);
+        setCount(page, leftCount);
+        if (page[0] == LEAF) {
+            System.arraycopy(all, leftCount * ENTRY_SIZE, right, HEADER_SIZE, (total - leftCount) * ENTRY_SIZE);
+            setCount(right, total - leftCount);
+            setLink(right, link(page));
+            setLink(page, rightPage);
+        } else {
+            // the middle entry moves up, its child becomes the leftmost child of the new page
+            setLink(right, getInt(all, leftCount * ENTRY_SIZE + KEY_SIZE));
+            System.arraycopy(all, (leftCount + 1) * ENTRY_SIZE, right, HEADER_SIZE, (total - leftCount - 1) * ENTRY_SIZE);
+            setCount(right, total - leftCount - 1);
+        }
+        return new Split(separator, rightPage);
+    }
+
+    private boolean remove(int p, byte[] key, IntConsumer dirty) {
+        byte[] page = pages[p];
+        int i = search(page, key);
+        if (page[0] == LEAF) {
+            if (i < 0) {
+                return false;
+            }
+            removeAt(page, i);
+            dirty.accept(p);
+            return true;
+        }
+        int slot = i >= 0 ? i : -i - 2;
+        int child = child(page, slot);
+        if (!remove(child, key, dirty)) {
+            return false;
+        }
+        if (count(pages[child]) < MIN_FILL) {
+            rebalance(p, slot, dirty);
+        }
+        return true;
+    }
+
+    // the child at slot of internal page p fell below half full: merge it with a neighbour, or
+    // if both together do not fit in one page, share their entries out evenly
+    private void rebalance(int p, int slot, IntConsumer dirty) {
+        byte[] page = pages[p];
+        int r = slot + 1 < count(page) ? slot + 1 : slot; // entry r separates children r - 1 and r
+        int leftPage = child(page, r - 1);
+        int rightPage = child(page, r);
+        byte[] left = pages[leftPage];
+        byte[] right = pages[rightPage];
+        int leftCount = count(left);
+        int rightCount = count(right);
+        boolean leaf = left[0] == LEAF;
+
+        // every entry of both in order; between internal pages the separator comes down with
+        // the right page's leftmost child
+        int total = leftCount + rightCount + (leaf ? 0 : 1);
+        byte[] all = new byte[total * ENTRY_SIZE];
+        System.arraycopy(left, HEADER_SIZE, all, 0, leftCount * ENTRY_SIZE);
+        int at = leftCount * ENTRY_SIZE;
+        if (!leaf) {
+            System.arraycopy(page, entryOffset(r), all, at, KEY_SIZE);
+            putInt(all, at + KEY_SIZE, link(right));
+            at += ENTRY_SIZE;
+        }
+        System.arraycopy(right, HEADER_SIZE, all, at, rightCount * ENTRY_SIZE);
+
+        dirty.accept(p);
+        dirty.accept(leftPage);
+        if (total <= CAPACITY) {
+            // merge the right page into the left one
+            System.arraycopy(all, 0, left, HEADER_SIZE, total * ENTRY_SIZE);
+            setCount(left, total);
+            if (leaf) {
+                setLink(left, link(right));
+            }
+            removeAt(page, r);
+            freePage(rightPage);
+            return;
+        }
+        int newLeft = total / 2;
+        System.arraycopy(all, 0, left, HEADER_SIZE, newLeft * ENTRY_SIZE);
+        setCount(left, newLeft);
+        System.arraycopy(all, newLeft * ENTRY_SIZE, page, entryOffset(r), KEY_SIZE); // new separator
+        int from = newLeft;
+        if (!leaf) {
+            setLink(right, getInt(all, newLeft * ENTRY_SIZE + KEY_SIZE));
+            from++;
+        }
+        System.arraycopy(all, from * ENTRY_SIZE, right, HEADER_SIZE, (total - from) * ENTRY_SIZE);
+        setCount(right, total - from);
+        dirty.accept(rightPage);
+    }
+
+    // the leaf that holds key, or would
+    private byte[] leafFor(byte[] key) {
+        byte[] page = pages[root];
+        for (int depth = 0; page[0] != LEAF; depth++) {
+            if (depth == MAX_HEIGHT) {
+                throw new IllegalStateException("Directory tree is corrupt.");
+            }
+            int i = search(page, key);
+            page = pages[child(page, i >= 0 ? i : -i - 2)];
+        }
+        return page;
+    }
+
+    // the child of an internal page at slot, -1 = the leftmost child
+    private static int child(byte[] page, int slot) {
+        return slot < 0 ? link(page) : value(page, slot);
+    }
+
+    // binary search like Arrays.binarySearch: index of key, or -(insertion point) - 1
+    private static int search(byte[] page, byte[] key) {
+        int low = 0;
+        int high = count(page) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(page, entryOffset(mid), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // the key stored at offset compared to key: by parent, then name byte by byte
+    private static int compare(byte[] page, int offset, byte[] key) {
+        int c = Integer.compare(getInt(page, offset), getInt(key, 0));
+        return c != 0 ? c : Arrays.compareUnsigned(page, offset + 4, offset + KEY_SIZE, key, 4, KEY_SIZE);
+    }
+
+    private static byte[] key(int parent, String name) {
+        if (name.length() > NAME_LENGTH) {
+            throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+        }
+        byte[] key = new byte[KEY_SIZE];
+        putInt(key, 0, parent);
+        for (int i = 0; i < name.length(); i++) {
+            key[4 + i] = (byte) name.charAt(i); // same encoding as the names in the inode table
+        }
+        return key;
+    }
+
+    private static String name(byte[] page, int offset) {
+        char[] name = new char[NAME_LENGTH];
+        int length = 0;
+        while (length < NAME_LENGTH && page[offset + 4 + length] != 0) {
+            name[length] = (char) (page[offset + 4 + length] & 0xFF);
+            length++;
+        }
+        return new String(name, 0, length);
+    }
+
+    private static void putEntry(byte[] page, int i, byte[] key, int value) {
+        System.arraycopy(key, 0, page, entryOffset(i), KEY_SIZE);
+        putInt(page, entryOffset(i) + KEY_SIZE, value);
+    }
+
+    private static void removeAt(byte[] page, int i) {
+        int count = count(page);
+        System.arraycopy(page, entryOffset(i + 1), page, entryOffset(i), (count - i - 1) * ENTRY_SIZE);
+        setCount(page, count - 1);
+    }
+
+    private int allocatePage(byte type) {
+        if (freePageCount == 0) {
+            throw new IllegalStateException("Directory tree is full.");
+        }
+        int p = freePages[--freePageCount];
+        byte[] page = new byte[PAGE_SIZE];
+        page[0] = type;
+        setLink(page, -1);
+        pages[p] = page;
+        return p;
+    }
+
+    private void freePage(int p) {
+        pages[p] = null;
+        freePages[freePageCount++] = p;
+    }
+
+    private void rebuildFreePages() {
+        freePageCount = 0;
+        for (int p = pages.length - 1; p > 0; p--) { // pushed in reverse so low pages are used first
+            if (pages[p] == null) {
+                freePages[freePageCount++] = p;
+            }
+        }
+    }
+
+    private static int entryOffset(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private static int count(byte[] page) {
+        return (page[2] & 0xFF) << 8 | page[3] & 0xFF;
+    }
+
+    private static void setCount(byte[] page, int count) {
+        page[2] = (byte) (count >>> 8);
+        page[3] = (byte) count;
+    }
+
+    // next leaf of a leaf, leftmost child of an internal page
+    private static int link(byte[] page) {
+        return getInt(page, 4);
+    }
+
+    private static void setLink(byte[] page, int link) {
+        putInt(page, 4, link);
+    }
+
+    private static int value(byte[] page, int i) {
+        return getInt(page, entryOffset(i) + KEY_SIZE);
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return b[offset] << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
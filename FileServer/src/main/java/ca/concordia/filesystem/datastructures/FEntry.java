@@ -1,4 +1,7 @@
 // Fentry rpresents one file (name, size, pointer to first block)
+// a compressed file also records its physical size (the bytes really stored in its blocks)
+// on volumes with directories the name is the last part of the path and parent is the directory
+// it is in; a directory is an entry with no contents of its own
 
 // very easy oop setters and getters, constructors, clear method
 
@@ -7,9 +10,13 @@ package ca.concordia.filesystem.datastructures;
 public class FEntry {
 
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private long filesize;
+    private int firstBlock; // Pointer to the first data block, the rest follow the FNode chain
     private boolean inUse; // Indicates if this FEntry is in use
+    private int codec; // how the contents are stored, 0 = as they are (see Compression)
+    private long physicalSize; // bytes stored in the blocks, only kept for compressed files
+    private int parent = DirectoryTree.ROOT; // inode of the directory holding this entry, -1 = the top level
+    private boolean directory;
 
 
     //default constructor creates an empty FEntry
@@ -21,7 +28,7 @@ public class FEntry {
     }
 
     //parameterized constructor
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public FEntry(String filename, long filesize, int firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
@@ -32,6 +39,18 @@ public class FEntry {
         this.inUse = true;
     }
 
+    // copy of another entry
+    public FEntry(FEntry other) {
+        this.filename = other.filename;
+        this.filesize = other.filesize;
+        this.firstBlock = other.firstBlock;
+        this.inUse = other.inUse;
+        this.codec = other.codec;
+        this.physicalSize = other.physicalSize;
+        this.parent = other.parent;
+        this.directory = other.directory;
+    }
+
     // Getters and Setters
     public String getFilename() {
         return filename;
@@ -44,25 +63,59 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(long filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public short getFirstBlock() {
+    public int getCodec() {
+        return codec;
+    }
+
+    // bytes stored in the blocks, the same as the file size unless the file is compressed
+    public long getPhysicalSize() {
+        return codec == 0 ? filesize : physicalSize;
+    }
+
+    // contents stored with codec in physicalSize bytes, codec 0 = as they are (physicalSize is ignored)
+    public void setStorage(int codec, long physicalSize) {
+        if (physicalSize < 0) {
+            throw new IllegalArgumentException("Physical size cannot be negative.");
+        }
+        this.codec = codec;
+        this.physicalSize = codec == 0 ? 0 : physicalSize;
+    }
+
+    public int getFirstBlock() {
         return firstBlock;
     }
 
-    public void setFirstBlock(short firstBlock) {
+    public void setFirstBlock(int firstBlock) {
         this.firstBlock = firstBlock;
     }
 
+    public int getParent() {
+        return parent;
+    }
+
+    public void setParent(int parent) {
+        this.parent = parent;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
     public boolean isInUse() {
         return inUse;
     }
@@ -77,5 +130,9 @@ public class FEntry {
         this.filesize = 0;
         this.firstBlock = -1; // set to -1 to indicate no blocks assigned
         this.inUse = false; 
+        this.codec = 0;
+        this.physicalSize = 0;
+        this.parent = DirectoryTree.ROOT;
+        this.directory = false;
     }
 }
@@ -4,22 +4,34 @@ package ca.concordia.filesystem.datastructures;
 public class FNode {
 
     private int blockIndex;
+    private int next; // index of the next block in the file, -1 if this is the last block
 
     public FNode(int blockIndex) {
         this.blockIndex = blockIndex;
+        this.next = -1;
     }
-    
-    // Getters 
 
-    //getBlock to know where on disk to read from 
+    // Getters
+
+    //getBlock to know where on disk to read from
     public int getBlockIndex() {
         return blockIndex;
     }
 
+    //getNext to follow the chain to the next block of the file
+    public int getNext() {
+        return next;
+    }
+
     // Setters
 
     //setBlockIndex to track which blocks are available (free or used)
     public void setBlockIndex(int blockIndex) {
         this.blockIndex = blockIndex;
     }
-}
\ No newline at end of file
+
+    //setNext to link this block to the next one, -1 ends the chain
+    public void setNext(int next) {
+        this.next = next;
+    }
+}
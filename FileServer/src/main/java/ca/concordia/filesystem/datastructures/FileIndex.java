@@ -0,0 +1,97 @@
+// FileIndex maps a filename to its slot in the inode table in O(1).
+
+// open addressing with linear probing over plain int arrays: a slot holds inode index + 1
+// (0 = empty) and the hash of the name, names themselves are only read from the inode table
+// when the hashes match. The table is sized for the inode count up front so it never grows.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+public class FileIndex {
+
+    private final FEntry[] inodeTable;
+    private final int[] slots; // inode index + 1, 0 if the slot is empty
+    private final int[] hashes; // hash of the name stored in the same slot
+    private final int mask;
+    private int size;
+
+    public FileIndex(FEntry[] inodeTable) {
+        this.inodeTable = inodeTable;
+        // at most half full so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, inodeTable.length) * 2 - 1) << 1;
+        this.slots = new int[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // returns the inode index of name, or -1 if there is no such file
+    public int find(String name) {
+        int hash = hash(name);
+        for (int i = hash & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && inodeTable[slots[i] - 1].getFilename().equals(name)) {
+                return slots[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // add name -> inode, the caller makes sure the name is not already there
+    public void put(String name, int inode) {
+        int hash = hash(name);
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = inode + 1;
+        hashes[i] = hash;
+        size++;
+    }
+
+    // remove name, must be called before the inode's filename is cleared
+    public void remove(String name) {
+        int hash = hash(name);
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            if (hashes[i] == hash && inodeTable[slots[i] - 1].getFilename().equals(name)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == 0) {
+            return; // not in the index
+        }
+        size--;
+
+        // shift later entries of the same probe run back so lookups never hit a hole
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            // move j into the hole unless its home slot lies cyclically in (hole, j]
+            boolean homeAfterHole = hole <= j ? (home > hole && home <= j) : (home > hole || home <= j);
+            if (!homeAfterHole) {
+                slots[hole] = slots[j];
+                hashes[hole] = hashes[j];
+                hole = j;
+            }
+        }
+        slots[hole] = 0;
+        hashes[hole] = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(hashes, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // spread the bits of String.hashCode so similar names do not cluster
+    private static int hash(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,215 @@
+// FreeBitmap tracks which blocks are free, one bit per block packed into longs (1 = free).
+
+// searches skip a whole word at a time and use Long.numberOfTrailingZeros to find the
+// first interesting bit, and allocation resumes from where the last one stopped (next fit)
+// instead of starting over at block 0.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+public class FreeBitmap {
+
+    private final long[] words;
+    private final int blockCount;
+    private int freeCount;
+    private int cursor; // next-fit position, where the next search starts
+
+    // all blocks start free
+    public FreeBitmap(int blockCount) {
+        this.blockCount = blockCount;
+        this.words = new long[wordCount(blockCount)];
+        Arrays.fill(words, -1L);
+        if ((blockCount & 63) != 0) {
+            words[words.length - 1] = (1L << blockCount) - 1; // bits past the last block stay used
+        }
+        this.freeCount = blockCount;
+    }
+
+    public static int wordCount(int blockCount) {
+        return (blockCount + 63) >>> 6;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    public void setFree(int block) {
+        if (!isFree(block)) {
+            words[block >>> 6] |= 1L << block;
+            freeCount++;
+        }
+    }
+
+    public void setUsed(int block) {
+        if (isFree(block)) {
+            words[block >>> 6] &= ~(1L << block);
+            freeCount--;
+        }
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // first free block at or after from, -1 if there is none
+    public int nextFree(int from) {
+        if (from >= blockCount) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from); // ignore bits below from
+        while (word == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(word);
+        return block < blockCount ? block : -1;
+    }
+
+    // first used block at or after from, blockCount if the rest of the volume is free
+    public int nextUsed(int from) {
+        if (from >= blockCount) {
+            return blockCount;
+        }
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return blockCount;
+            }
+            word = ~words[w];
+        }
+        return Math.min(blockCount, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // allocate one block, next fit from the cursor, -1 if the volume is full
+    public int allocate() {
+        int block = nextFree(cursor);
+        if (block < 0) {
+            block = nextFree(0);
+        }
+        if (block < 0) {
+            return -1;
+        }
+        setUsed(block);
+        cursor = block + 1;
+        return block;
+    }
+
+    // allocate count contiguous blocks in one go, returns the first one or -1 if no run is long enough
+    public int allocateRun(int count) {
+        if (count <= 0 || count > freeCount) {
+            return -1;
+        }
+        int start = findRun(cursor, blockCount, count);
+        if (start < 0) {
+            start = findRun(0, cursor, count); // wrap around
+        }
+        if (start < 0) {
+            return -1;
+        }
+        setUsedRange(start, count);
+        cursor = start + count;
+        return start;
+    }
+
+    // allocate the first free run after the cursor, cut to at most maxLength blocks
+    // returns start << 32 | length, or -1 if the volume is full
+    public long allocateExtent(int maxLength) {
+        int start = nextFree(cursor);
+        if (start < 0) {
+            start = nextFree(0);
+        }
+        if (start < 0 || maxLength <= 0) {
+            return -1;
+        }
+        int length = Math.min(maxLength, nextUsed(start) - start);
+        setUsedRange(start, length);
+        cursor = start + length;
+        return ((long) start << 32) | length;
+    }
+
+    // allocate the lowest run of count free blocks that starts before limit, without moving the
+    // cursor (the compactor packs files towards the start), -1 if there is none
+    public int allocateLowestRun(int count, int limit) {
+        if (count <= 0 || count > freeCount) {
+            return -1;
+        }
+        int start = findRun(0, limit, count);
+        if (start >= 0) {
+            setUsedRange(start, count);
+        }
+        return start;
+    }
+
+    // first block of the free run the volume ends with, blockCount if its last block is used
+    public int freeTailStart() {
+        int start = nextFree(0);
+        while (start >= 0) {
+            int end = nextUsed(start);
+            if (end >= blockCount) {
+                return start;
+            }
+            start = nextFree(end);
+        }
+        return blockCount;
+    }
+
+    // where the next next-fit search starts
+    public void setCursor(int block) {
+        cursor = block;
+    }
+
+    // first run of count free blocks that starts in [from, limit), -1 if none
+    private int findRun(int from, int limit, int count) {
+        int start = nextFree(from);
+        while (start >= 0 && start < limit) {
+            int end = nextUsed(start);
+            if (end - start >= count) {
+                return start;
+            }
+            if (end >= blockCount) {
+                return -1;
+            }
+            start = nextFree(end);
+        }
+        return -1;
+    }
+
+    private void setUsedRange(int start, int length) {
+        int end = start + length; // exclusive
+        while (start < end) {
+            int w = start >>> 6;
+            int bits = Math.min(64 - (start & 63), end - start);
+            long mask = (bits == 64 ? -1L : ((1L << bits) - 1)) << start;
+            freeCount -= Long.bitCount(words[w] & mask);
+            words[w] &= ~mask;
+            start += bits;
+        }
+    }
+
+    // raw words, used to save and load the bitmap
+    public int getWordCount() {
+        return words.length;
+    }
+
+    public long getWord(int index) {
+        return words[index];
+    }
+
+    public void setWord(int index, long word) {
+        // never mark bits past the last block as free
+        if (index == words.length - 1 && (blockCount & 63) != 0) {
+            word &= (1L << blockCount) - 1;
+        }
+        freeCount += Long.bitCount(word) - Long.bitCount(words[index]);
+        words[index] = word;
+    }
+}
@@ -0,0 +1,78 @@
+// HashRing places names on shards by consistent hashing.
+
+// every shard owns POINTS points on a ring of 64 bit hashes and a name belongs to the shard of
+// the first point at or after the name's own hash (wrapping around at the end). Adding a shard
+// only takes over the names just before its new points, about 1/(n+1) of them, every other name
+// stays where it was. The points of shard i only depend on i, so the same number of shards
+// always places every name the same way, across restarts too.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+public class HashRing {
+
+    private static final int POINTS = 256; // per shard, more points = shares closer to 1/n
+
+    private final int shards;
+    private final long[] points; // sorted
+    private final int[] owners; // shard of each point
+
+    public HashRing(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A hash ring needs at least one shard.");
+        }
+        this.shards = shards;
+        // point i * POINTS + j is the j-th point of shard i, sorted by hash below
+        long[] hashes = new long[shards * POINTS];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < POINTS; i++) {
+                hashes[shard * POINTS + i] = mix(((long) shard << 32) | i);
+            }
+        }
+        Integer[] order = new Integer[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[hashes.length];
+        this.owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / POINTS;
+        }
+    }
+
+    public int getShardCount() {
+        return shards;
+    }
+
+    // the shard name belongs to
+    public int shardFor(String name) {
+        int i = Arrays.binarySearch(points, hash(name));
+        if (i < 0) {
+            i = -i - 1; // the first point after the hash
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // FNV-1a over the characters, then mixed so that similar names land far apart
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // the 64 bit finalizer of MurmurHash3, every input bit changes about half of the output bits
+    private static long mix(long z) {
+        z ^= z >>> 33;
+        z *= 0xff51afd7ed558ccdL;
+        z ^= z >>> 33;
+        z *= 0xc4ceb9fe1a85ec53L;
+        z ^= z >>> 33;
+        return z;
+    }
+}
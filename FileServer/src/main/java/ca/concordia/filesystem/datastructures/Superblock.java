@@ -0,0 +1,172 @@
+// Superblock describes the volume (block size, block count, inode count) and where
+// every region lives inside filesystem.dat. It is stored at offset 0 so a volume can be
+// reopened without knowing the geometry it was created with.
+
+// on-disk layout:
+// [superblock][inode table][free block bitmap][next-block table][dedupe table][directory tree][padding][data blocks]
+// the dedupe table is only there on volumes formatted with deduplication (see FEATURE_DEDUPE), the
+// directory tree only on volumes formatted with directories (FEATURE_DIRECTORIES, see DirectoryTree).
+// inodes are INODE_SIZE bytes, plus the physical size of compressed files on volumes with FEATURE_COMPRESSION,
+// plus the parent directory on volumes with FEATURE_DIRECTORIES.
+
+package ca.concordia.filesystem.datastructures;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class Superblock {
+
+    public static final int MAGIC = 0x43465356; // "CFSV"
+    public static final int VERSION = 2; // 2: free block list is a bitmap
+    public static final int SIZE = 512; // bytes reserved at the start of the volume
+
+    public static final int FILENAME_LENGTH = 11;
+    public static final int INODE_SIZE = FILENAME_LENGTH + 8 + 4 + 1; // name + size + first block + in use/codec
+    public static final int NODE_SIZE = 4; // next block index per block
+    public static final int DEDUPE_ENTRY_SIZE = 16 + 4; // content hash + reference count per block
+
+    // feature bits, stored after the region offsets (volumes from before features read as 0)
+    public static final int FEATURE_DEDUPE = 1;
+    public static final int FEATURE_COMPRESSION = 2; // inodes have room for the physical size of compressed files
+    public static final int FEATURE_DIRECTORIES = 4; // names are paths, inodes record their parent directory
+
+    public static final int MIN_BLOCK_SIZE = 128;
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int inodeCount;
+    private final int features;
+
+    public Superblock(int blockSize, int blockCount, int inodeCount) {
+        this(blockSize, blockCount, inodeCount, 0);
+    }
+
+    public Superblock(int blockSize, int blockCount, int inodeCount, int features) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two between "
+                    + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE + " bytes.");
+        }
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("Block count must be positive.");
+        }
+        if (inodeCount <= 0) {
+            throw new IllegalArgumentException("Inode count must be positive.");
+        }
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.inodeCount = inodeCount;
+        this.features = features;
+    }
+
+    // read and validate the superblock at the current position
+    public static Superblock read(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a file system volume (bad magic number).");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported volume version " + version + ", expected " + VERSION + ".");
+        }
+        int blockSize = in.readInt();
+        int blockCount = in.readInt();
+        int inodeCount = in.readInt();
+        long[] offsets = {in.readLong(), in.readLong(), in.readLong(), in.readLong()};
+        Superblock sb;
+        try {
+            sb = new Superblock(blockSize, blockCount, inodeCount, in.readInt());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt superblock: " + e.getMessage());
+        }
+        // the stored offsets must agree with the geometry
+        if (offsets[0] != sb.getInodeTableOffset() || offsets[1] != sb.getFreeListOffset()
+                || offsets[2] != sb.getNodeTableOffset() || offsets[3] != sb.getDataOffset()) {
+            throw new IOException("Corrupt superblock: region offsets do not match the geometry.");
+        }
+        return sb;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(blockSize);
+        out.writeInt(blockCount);
+        out.writeInt(inodeCount);
+        out.writeLong(getInodeTableOffset());
+        out.writeLong(getFreeListOffset());
+        out.writeLong(getNodeTableOffset());
+        out.writeLong(getDataOffset());
+        out.writeInt(features);
+    }
+
+    // Getters
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    public boolean isDedupe() {
+        return (features & FEATURE_DEDUPE) != 0;
+    }
+
+    public boolean isCompressionSupported() {
+        return (features & FEATURE_COMPRESSION) != 0;
+    }
+
+    public boolean isDirectoriesSupported() {
+        return (features & FEATURE_DIRECTORIES) != 0;
+    }
+
+    public int getInodeSize() {
+        return INODE_SIZE + (isCompressionSupported() ? 8 : 0) + (isDirectoriesSupported() ? 4 : 0);
+    }
+
+    public long getInodeTableOffset() {
+        return SIZE;
+    }
+
+    public long getFreeListOffset() {
+        return getInodeTableOffset() + (long) inodeCount * getInodeSize();
+    }
+
+    public long getNodeTableOffset() {
+        return getFreeListOffset() + (long) FreeBitmap.wordCount(blockCount) * Long.BYTES;
+    }
+
+    public long getDedupeTableOffset() {
+        return getNodeTableOffset() + (long) blockCount * NODE_SIZE;
+    }
+
+    public long getTreeOffset() {
+        return getDedupeTableOffset() + (isDedupe() ? (long) blockCount * DEDUPE_ENTRY_SIZE : 0);
+    }
+
+    // pages of the directory tree region, enough for an entry per inode
+    public int getTreePageCount() {
+        return isDirectoriesSupported() ? DirectoryTree.pagesFor(inodeCount) : 0;
+    }
+
+    // data starts on a block boundary so blocks line up with pages on disk
+    public long getDataOffset() {
+        long end = getTreeOffset() + (long) getTreePageCount() * DirectoryTree.PAGE_SIZE;
+        return (end + blockSize - 1) / blockSize * blockSize;
+    }
+
+    public long getBlockOffset(int blockIndex) {
+        return getDataOffset() + (long) blockIndex * blockSize;
+    }
+
+    // total length of the volume file
+    public long getVolumeSize() {
+        return getDataOffset() + (long) blockCount * blockSize;
+    }
+}
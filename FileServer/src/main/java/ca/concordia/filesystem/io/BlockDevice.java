@@ -0,0 +1,54 @@
+// BlockDevice is how the file system reads and writes its volume file.
+
+// every call is positional: there is no shared file pointer, so any number of threads can
+// read and write different parts of the volume at the same time without a lock.
+// two implementations:
+//   MappedBlockDevice  - the volume is memory mapped, I/O is a copy to or from the page cache
+//   ChannelBlockDevice - FileChannel.read/write at a position, for volumes too big to map
+
+package ca.concordia.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public interface BlockDevice {
+
+    // volumes up to this size are memory mapped in "auto" mode
+    long AUTO_MAP_LIMIT = 4L * 1024 * 1024 * 1024;
+
+    // fill dst with the bytes starting at position
+    void read(ByteBuffer dst, long position) throws IOException;
+
+    // write all of src starting at position
+    void write(ByteBuffer src, long position) throws IOException;
+
+    // send count bytes starting at position to target without copying them through the heap
+    // (FileChannel.transferTo, sendfile on Linux), returns once all of them are sent
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    // make everything written so far durable
+    void force() throws IOException;
+
+    // size of the volume in bytes
+    long size();
+
+    // release the device, the channel itself is closed by its owner
+    void close() throws IOException;
+
+    // mode is "mmap", "channel" or "auto" (mmap unless the volume is larger than AUTO_MAP_LIMIT)
+    // the file must already be size bytes long
+    static BlockDevice open(FileChannel channel, long size, String mode) throws IOException {
+        switch (mode) {
+            case "mmap":
+                return new MappedBlockDevice(channel, size);
+            case "channel":
+                return new ChannelBlockDevice(channel, size);
+            case "auto":
+                return size <= AUTO_MAP_LIMIT ? new MappedBlockDevice(channel, size) : new ChannelBlockDevice(channel, size);
+            default:
+                throw new IllegalArgumentException("I/O mode must be auto, mmap or channel, got: " + mode);
+        }
+    }
+}
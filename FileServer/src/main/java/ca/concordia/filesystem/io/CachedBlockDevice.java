@@ -0,0 +1,345 @@
+// CachedBlockDevice keeps recently used blocks of another BlockDevice in a fixed amount of
+// off-heap memory, so hot files are served from memory without touching the volume.
+
+// the cache is split into segments, each with its own lock, slots, page table and CLOCK hand,
+// so threads reading different blocks rarely wait for each other. A page is one volume block.
+// eviction is CLOCK: every hit sets the slot's referenced bit, the hand clears bits as it
+// sweeps and takes the first slot whose bit is already clear.
+
+// write-through: a write goes to the volume right away and updates the block if it is cached.
+// write-back: a write only goes into the cache and marks the block dirty; dirty blocks reach
+// the volume when they are evicted or on force(). The journal forces the volume before it
+// logs a record and before it checkpoints, so dirty data is never lost to a commit.
+
+package ca.concordia.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CachedBlockDevice implements BlockDevice {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final BlockDevice volume;
+    private final int pageSize;
+    private final boolean writeBack;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+
+    // capacity is rounded down to whole pages; pageSize should be the volume's block size
+    public CachedBlockDevice(BlockDevice volume, int pageSize, long capacity, boolean writeBack) {
+        long pages = capacity / pageSize;
+        if (pages < 1 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache size must be between one block and 2 GiB, got " + capacity);
+        }
+        this.volume = volume;
+        this.pageSize = pageSize;
+        this.writeBack = writeBack;
+        int segmentCount = Integer.highestOneBit((int) Math.min(MAX_SEGMENTS, pages));
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        ByteBuffer memory = ByteBuffer.allocateDirect((int) (pages * pageSize));
+        int slotsPerSegment = (int) (pages / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(memory.slice(i * slotsPerSegment * pageSize, slotsPerSegment * pageSize),
+                    slotsPerSegment);
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            long page = position / pageSize;
+            int inPage = (int) (position % pageSize);
+            int n = Math.min(dst.remaining(), pageSize - inPage);
+            segment(page).read(page, inPage, dst, n);
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        if (!writeBack) {
+            // volume first, then the cached copies, see Segment.read for why this order
+            volume.write(src.duplicate(), position);
+            while (src.hasRemaining()) {
+                long page = position / pageSize;
+                int inPage = (int) (position % pageSize);
+                int n = Math.min(src.remaining(), pageSize - inPage);
+                segment(page).update(page, inPage, src, n);
+                position += n;
+            }
+            return;
+        }
+        while (src.hasRemaining()) {
+            long page = position / pageSize;
+            int inPage = (int) (position % pageSize);
+            int n = Math.min(src.remaining(), pageSize - inPage);
+            segment(page).writeBack(page, inPage, src, n);
+            position += n;
+        }
+    }
+
+    // zero copy goes straight from the volume, so dirty blocks in the range are written back first
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (writeBack) {
+            for (Segment segment : segments) {
+                segment.flushRange(position / pageSize, (position + count - 1) / pageSize);
+            }
+        }
+        volume.transferTo(position, count, target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        if (writeBack) {
+            for (Segment segment : segments) {
+                segment.flushRange(0, Long.MAX_VALUE);
+            }
+        }
+        volume.force();
+    }
+
+    @Override
+    public long size() {
+        return volume.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        volume.close();
+    }
+
+    public long getCapacity() {
+        return (long) segments.length * segments[0].slots * pageSize;
+    }
+
+    public boolean isWriteBack() {
+        return writeBack;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // dirty blocks written to the volume, on eviction or force
+    public long getWriteBacks() {
+        return writeBacks.sum();
+    }
+
+    private Segment segment(long page) {
+        long h = page * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 40) & segmentMask];
+    }
+
+    // a part of the cache: slots of memory plus a page -> slot table (open addressing, linear probing)
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer memory;
+        private final int slots;
+        private final long[] slotPage; // page held by each slot, -1 if empty
+        private final boolean[] referenced;
+        private final boolean[] dirty;
+        private final long[] tableKeys; // page, -1 for an empty entry
+        private final int[] tableSlots;
+        private final int tableMask;
+        private int hand;
+        private int dirtyCount;
+        private long writes; // bumped by every write, a miss only caches what it read if no write came in between
+
+        Segment(ByteBuffer memory, int slots) {
+            this.memory = memory;
+            this.slots = slots;
+            this.slotPage = new long[slots];
+            this.referenced = new boolean[slots];
+            this.dirty = new boolean[slots];
+            int tableSize = Integer.highestOneBit(Math.max(2, slots) * 2 - 1) << 1; // at most half full
+            this.tableKeys = new long[tableSize];
+            this.tableSlots = new int[tableSize];
+            this.tableMask = tableSize - 1;
+            Arrays.fill(slotPage, -1);
+            Arrays.fill(tableKeys, -1);
+        }
+
+        // copy n bytes of page, from inPage on, into dst
+        void read(long page, int inPage, ByteBuffer dst, int n) throws IOException {
+            long writesBefore;
+            lock.lock();
+            try {
+                int slot = find(page);
+                if (slot >= 0) {
+                    hits.increment();
+                    referenced[slot] = true;
+                    dst.put(dst.position(), memory, slot * pageSize + inPage, n);
+                    dst.position(dst.position() + n);
+                    return;
+                }
+                misses.increment();
+                writesBefore = writes;
+            } finally {
+                lock.unlock();
+            }
+
+            // miss: read the whole block outside the lock, then cache it unless a write to this
+            // segment happened meanwhile (what we read could already be out of date). Writers
+            // update the volume before they bump writes, so a stale read is always detected.
+            ByteBuffer block = ByteBuffer.allocate(pageSize);
+            volume.read(block, page * pageSize);
+            dst.put(dst.position(), block, inPage, n);
+            dst.position(dst.position() + n);
+
+            lock.lock();
+            try {
+                if (writes == writesBefore && find(page) < 0) {
+                    int slot = takeSlot(page);
+                    memory.put(slot * pageSize, block, 0, pageSize);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // write-through: the volume already has the bytes, refresh the cached copy if there is one
+        void update(long page, int inPage, ByteBuffer src, int n) {
+            lock.lock();
+            try {
+                writes++;
+                int slot = find(page);
+                if (slot >= 0) {
+                    memory.put(slot * pageSize + inPage, src, src.position(), n);
+                }
+                src.position(src.position() + n);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // write-back: the bytes only go into the cache, the block is written to the volume later
+        void writeBack(long page, int inPage, ByteBuffer src, int n) throws IOException {
+            lock.lock();
+            try {
+                writes++;
+                int slot = find(page);
+                if (slot < 0) {
+                    slot = takeSlot(page);
+                    if (n < pageSize) {
+                        // partial write of a block we do not have: fetch the rest of it first
+                        volume.read(memory.slice(slot * pageSize, pageSize), page * pageSize);
+                    }
+                }
+                memory.put(slot * pageSize + inPage, src, src.position(), n);
+                src.position(src.position() + n);
+                if (!dirty[slot]) {
+                    dirty[slot] = true;
+                    dirtyCount++;
+                }
+                referenced[slot] = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // write every dirty block of pages [first, last] to the volume
+        void flushRange(long first, long last) throws IOException {
+            lock.lock();
+            try {
+                for (int slot = 0; slot < slots && dirtyCount > 0; slot++) {
+                    if (dirty[slot] && slotPage[slot] >= first && slotPage[slot] <= last) {
+                        flushSlot(slot);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flushSlot(int slot) throws IOException {
+            volume.write(memory.slice(slot * pageSize, pageSize), slotPage[slot] * pageSize);
+            dirty[slot] = false;
+            dirtyCount--;
+            writeBacks.increment();
+        }
+
+        // a slot for page, evicting with CLOCK if the segment is full; caller holds the lock
+        private int takeSlot(long page) throws IOException {
+            while (slotPage[hand] >= 0 && referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % slots;
+            }
+            int slot = hand;
+            hand = (hand + 1) % slots;
+            if (slotPage[slot] >= 0) {
+                if (dirty[slot]) {
+                    flushSlot(slot);
+                }
+                remove(slotPage[slot]);
+                evictions.increment();
+            }
+            slotPage[slot] = page;
+            referenced[slot] = false; // earns its bit on the first hit
+            put(page, slot);
+            return slot;
+        }
+
+        private int find(long page) {
+            for (int i = index(page); tableKeys[i] != -1; i = (i + 1) & tableMask) {
+                if (tableKeys[i] == page) {
+                    return tableSlots[i];
+                }
+            }
+            return -1;
+        }
+
+        private void put(long page, int slot) {
+            int i = index(page);
+            while (tableKeys[i] != -1) {
+                i = (i + 1) & tableMask;
+            }
+            tableKeys[i] = page;
+            tableSlots[i] = slot;
+        }
+
+        // backward shift delete, same as FileIndex
+        private void remove(long page) {
+            int i = index(page);
+            while (tableKeys[i] != page) {
+                i = (i + 1) & tableMask;
+            }
+            int hole = i;
+            for (int j = (i + 1) & tableMask; tableKeys[j] != -1; j = (j + 1) & tableMask) {
+                int home = index(tableKeys[j]);
+                boolean homeAfterHole = hole <= j ? (home > hole && home <= j) : (home > hole || home <= j);
+                if (!homeAfterHole) {
+                    tableKeys[hole] = tableKeys[j];
+                    tableSlots[hole] = tableSlots[j];
+                    hole = j;
+                }
+            }
+            tableKeys[hole] = -1;
+        }
+
+        private int index(long page) {
+            long h = page * 0xC2B2AE3D27D4EB4FL;
+            return (int) (h >>> 32) & tableMask;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// ChannelBlockDevice does positional FileChannel reads and writes (pread/pwrite),
+// one system call per extent. Works for volumes of any size.
+
+package ca.concordia.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class ChannelBlockDevice implements BlockDevice {
+
+    private final FileChannel channel;
+    private final long size;
+
+    public ChannelBlockDevice(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        checkBounds(position, dst.remaining());
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of volume at " + position);
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        checkBounds(position, src.remaining());
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkBounds(position, count);
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            position += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        // nothing of our own to release
+    }
+
+    private void checkBounds(long position, long length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new IOException("Access beyond the end of the volume at " + position);
+        }
+    }
+}
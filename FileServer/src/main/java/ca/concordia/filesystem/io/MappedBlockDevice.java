@@ -0,0 +1,172 @@
+// MappedBlockDevice maps the whole volume into memory. A read or write is a single copy
+// between the caller's buffer and the page cache, with no system call.
+
+// a MappedByteBuffer is limited to 2 GiB, so the volume is mapped as a series of 1 GiB chunks
+// and an access that crosses a chunk boundary is split in two. Only absolute get/put is used,
+// the buffers' own position is never touched, which is what makes sharing them between threads safe.
+
+// force(): on Linux an fsync of the file also writes back pages dirtied through a shared
+// mapping, so one fsync is all it takes. Elsewhere the ranges written since the last force are
+// msynced one by one; they are kept apart rather than merged into one span because a commit
+// writes metadata at the start of the volume and data far away, and syncing a span costs time
+// in proportion to how much of it is resident.
+
+package ca.concordia.filesystem.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.nio.channels.WritableByteChannel;
+
+public class MappedBlockDevice implements BlockDevice {
+
+    private static final int CHUNK_SHIFT = 30; // 1 GiB per mapping
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private static final boolean FSYNC_COVERS_MAPPINGS = System.getProperty("os.name").toLowerCase().contains("linux");
+    private static final long MERGE_GAP = 64 * 1024; // dirty ranges closer than this are synced together
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] chunks;
+    private final ReentrantLock dirtyLock = new ReentrantLock();
+    private long[] dirtyStarts = new long[64]; // ranges written since the last force, never crossing a chunk
+    private long[] dirtyEnds = new long[64];
+    private int dirtyCount;
+
+    public MappedBlockDevice(FileChannel channel, long size) throws IOException {
+        if (channel.size() < size) {
+            throw new IOException("Volume file is shorter than the volume (" + channel.size() + " < " + size + ")");
+        }
+        this.channel = channel;
+        this.size = size;
+        this.chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << CHUNK_SHIFT, size - start));
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        checkBounds(position, dst.remaining());
+        while (dst.hasRemaining()) {
+            MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            int offset = (int) (position & CHUNK_MASK);
+            int n = Math.min(dst.remaining(), chunk.capacity() - offset);
+            dst.put(dst.position(), chunk, offset, n);
+            dst.position(dst.position() + n);
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        checkBounds(position, src.remaining());
+        while (src.hasRemaining()) {
+            MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+            int offset = (int) (position & CHUNK_MASK);
+            int n = Math.min(src.remaining(), chunk.capacity() - offset);
+            chunk.put(offset, src, src.position(), n);
+            src.position(src.position() + n);
+            if (!FSYNC_COVERS_MAPPINGS) {
+                markDirty(position, position + n);
+            }
+            position += n;
+        }
+    }
+
+    private void markDirty(long start, long end) {
+        dirtyLock.lock();
+        try {
+            // extends the last range when writes are sequential, which is the common case
+            if (dirtyCount > 0 && dirtyEnds[dirtyCount - 1] == start
+                    && (start & CHUNK_MASK) != 0) {
+                dirtyEnds[dirtyCount - 1] = end;
+                return;
+            }
+            if (dirtyCount == dirtyStarts.length) {
+                dirtyStarts = Arrays.copyOf(dirtyStarts, dirtyCount * 2);
+                dirtyEnds = Arrays.copyOf(dirtyEnds, dirtyCount * 2);
+            }
+            dirtyStarts[dirtyCount] = start;
+            dirtyEnds[dirtyCount] = end;
+            dirtyCount++;
+        } finally {
+            dirtyLock.unlock();
+        }
+    }
+
+    // sendfile from the channel reads the same page cache the mapping points at
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkBounds(position, count);
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            position += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        if (!FSYNC_COVERS_MAPPINGS) {
+            forceDirtyRanges();
+        }
+        channel.force(false); // and anything written through the channel itself (metadata load/save)
+    }
+
+    private void forceDirtyRanges() {
+        long[] starts;
+        long[] ends;
+        int count;
+        dirtyLock.lock();
+        try {
+            starts = dirtyStarts;
+            ends = dirtyEnds;
+            count = dirtyCount;
+            dirtyStarts = new long[64];
+            dirtyEnds = new long[64];
+            dirtyCount = 0;
+        } finally {
+            dirtyLock.unlock();
+        }
+
+        // sort by start and merge ranges that overlap or nearly touch, then sync each one
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+        int i = 0;
+        while (i < count) {
+            long start = starts[order[i]];
+            long end = ends[order[i]];
+            long chunk = start >>> CHUNK_SHIFT;
+            i++;
+            while (i < count && starts[order[i]] <= end + MERGE_GAP && starts[order[i]] >>> CHUNK_SHIFT == chunk) {
+                end = Math.max(end, ends[order[i]]);
+                i++;
+            }
+            chunks[(int) chunk].force((int) (start & CHUNK_MASK), (int) (end - start));
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        // the mappings go away when they are garbage collected, Java has no way to unmap them
+    }
+
+    private void checkBounds(long position, long length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new IOException("Access beyond the end of the volume at " + position);
+        }
+    }
+}
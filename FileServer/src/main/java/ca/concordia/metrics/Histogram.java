@@ -0,0 +1,70 @@
+// Histogram counts recorded values (nanoseconds here) in fixed power of two buckets.
+
+// bucket i holds the values in [2^(i-1), 2^i), bucket 0 holds 0. Recording is an increment of
+// one LongAdder and an add to another, so threads never wait on each other and nothing is
+// allocated. Percentiles come back as the upper end of their bucket: at most 2x too high.
+
+package ca.concordia.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0; // nanoTime is monotonic, but be safe
+        }
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    // the value fraction (0 to 1) of all recorded values are at or below, 0 if nothing was recorded
+    public long getPercentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+    }
+}
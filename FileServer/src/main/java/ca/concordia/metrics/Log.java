@@ -0,0 +1,118 @@
+// Log is the server log: messages below the level are dropped before they are built, the rest are
+// queued and printed by one background thread, so a busy client thread never waits on stdout.
+
+// guard messages that cost something to build: if (Log.isEnabled(Log.DEBUG)) Log.debug("..." + x);
+// if the queue is full (stdout cannot keep up) messages are dropped and counted instead of
+// slowing the server down. ERROR goes to stderr, everything else to stdout.
+
+package ca.concordia.metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Log {
+
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    private static final String[] NAMES = {"ERROR", "WARN", "INFO", "DEBUG"};
+
+    private static final int QUEUE_SIZE = 16 * 1024; // messages waiting to be printed
+
+    private record Entry(int level, String message) {
+    }
+
+    private static volatile int level = INFO;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // print what is still queued when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    // "error", "warn", "info" or "debug"
+    public static void setLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                level = i;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Log level must be error, warn, info or debug, got: " + name);
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    public static void error(String message) {
+        log(ERROR, message);
+    }
+
+    public static void warn(String message) {
+        log(WARN, message);
+    }
+
+    public static void info(String message) {
+        log(INFO, message);
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    // messages lost because the queue was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(int messageLevel, String message) {
+        if (messageLevel <= level && !queue.offer(new Entry(messageLevel, message))) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        long reported = 0;
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long lost = dropped.sum();
+            if (lost != reported) {
+                System.out.println("[WARN] " + (lost - reported) + " log messages dropped, the log could not keep up.");
+                reported = lost;
+            }
+            print(entry);
+        }
+    }
+
+    private static void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            print(entry);
+        }
+        System.out.flush();
+    }
+
+    private static void print(Entry entry) {
+        String line = "[" + NAMES[entry.level] + "] " + entry.message;
+        if (entry.level == ERROR) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+// Metrics holds the server's counters and latency histograms, one instance per process.
+
+// everything on the hot path is a LongAdder or a Histogram, so recording never blocks and never
+// allocates: the stats of every command exist from the start and are only looked up, and values
+// that already live elsewhere (free blocks, connections) are gauges read when someone asks.
+// read through the STATS command or over JMX as ca.concordia:type=Metrics.
+
+package ca.concordia.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public final class Metrics implements MetricsMXBean {
+
+    public static final String OTHER = "OTHER"; // commands we do not know
+    private static final String[] COMMANDS = {"CREATE", "WRITE", "READ", "LIST", "READAT", "WRITEAT", "APPEND",
+            "DELETE", "SIZE", "UPLOAD", "DOWNLOAD", "SNAPSHOT", "BATCH", "STATS", "MKDIR", "RMDIR", "QUIT", OTHER};
+
+    private static final Metrics instance = new Metrics();
+
+    // requests, failures and latency of one command
+    public static final class CommandStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final Histogram latency = new Histogram();
+
+        public void record(long nanos, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            latency.record(nanos);
+        }
+    }
+
+    private final Map<String, CommandStats> commands; // filled once, only read afterwards
+
+    // how long threads wait for the per-file locks and how long writers hold them, same for the
+    // metadata lock (reads of the metadata are mostly optimistic and not timed)
+    private final Histogram fileLockWait = new Histogram();
+    private final Histogram fileLockHold = new Histogram();
+    private final Histogram metaLockWait = new Histogram();
+    private final Histogram metaLockHold = new Histogram();
+
+    private final LongAdder bytesRead = new LongAdder(); // file contents read by clients
+    private final LongAdder bytesWritten = new LongAdder(); // file contents written by clients
+    private final LongAdder connectionsAccepted = new LongAdder();
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        Map<String, CommandStats> commands = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            commands.put(command, new CommandStats());
+        }
+        this.commands = Collections.unmodifiableMap(commands);
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    // the stats of a command by its text name (e.g. "READAT"), OTHER's if there is no such command
+    public CommandStats command(String name) {
+        CommandStats stats = commands.get(name);
+        return stats != null ? stats : commands.get(OTHER);
+    }
+
+    public Histogram getFileLockWait() {
+        return fileLockWait;
+    }
+
+    public Histogram getFileLockHold() {
+        return fileLockHold;
+    }
+
+    public Histogram getMetaLockWait() {
+        return metaLockWait;
+    }
+
+    public Histogram getMetaLockHold() {
+        return metaLockHold;
+    }
+
+    public void addBytesRead(long n) {
+        bytesRead.add(n);
+    }
+
+    public void addBytesWritten(long n) {
+        bytesWritten.add(n);
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    // a value read only when the metrics are, e.g. "blocks.free"; replaces one of the same name
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    // make the metrics visible over JMX, does nothing if they already are
+    public synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("ca.concordia:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            Log.warn("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    // every metric by name. Latencies are in microseconds, commands never used are left out
+    @Override
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            CommandStats stats = entry.getValue();
+            long count = stats.count.sum();
+            if (count > 0) {
+                String prefix = "cmd." + entry.getKey();
+                values.put(prefix + ".count", count);
+                values.put(prefix + ".errors", stats.errors.sum());
+                putLatency(values, prefix, stats.latency);
+            }
+        }
+        putLatency(values, "lock.file.wait", fileLockWait);
+        putLatency(values, "lock.file.hold", fileLockHold);
+        putLatency(values, "lock.meta.wait", metaLockWait);
+        putLatency(values, "lock.meta.hold", metaLockHold);
+        values.put("bytes.read", bytesRead.sum());
+        values.put("bytes.written", bytesWritten.sum());
+        values.put("connections.accepted", connectionsAccepted.sum());
+        values.put("log.dropped", Log.getDropped());
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    private static void putLatency(Map<String, Long> values, String prefix, Histogram histogram) {
+        values.put(prefix + ".mean_us", histogram.getMean() / 1000);
+        values.put(prefix + ".p50_us", histogram.getPercentile(0.50) / 1000);
+        values.put(prefix + ".p99_us", histogram.getPercentile(0.99) / 1000);
+    }
+
+    // getValues on one line, "name=value, name=value, ..."
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> value : getValues().entrySet()) {
+            if (report.length() > 0) {
+                report.append(", ");
+            }
+            report.append(value.getKey()).append('=').append(value.getValue());
+        }
+        return report.toString();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    // start counting from zero again, gauges are not affected
+    @Override
+    public void reset() {
+        for (CommandStats stats : commands.values()) {
+            stats.count.reset();
+            stats.errors.reset();
+            stats.latency.reset();
+        }
+        fileLockWait.reset();
+        fileLockHold.reset();
+        metaLockWait.reset();
+        metaLockHold.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        connectionsAccepted.reset();
+    }
+}
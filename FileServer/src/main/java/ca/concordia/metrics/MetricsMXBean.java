@@ -0,0 +1,20 @@
+// What JMX clients (jconsole, VisualVM) see of Metrics.
+
+package ca.concordia.metrics;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    // every metric by name, as the STATS command reports them
+    Map<String, Long> getValues();
+
+    // the same on one line
+    String getReport();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    void reset();
+}
@@ -0,0 +1,107 @@
+// BinaryProtocol describes the framed mode a client switches to by sending the text command BINARY.
+
+// request frame:  [opcode: 1 byte][request id: 4 bytes][payload length: 4 bytes][payload]
+// response frame: [status: 1 byte][request id: 4 bytes][payload length: 4 bytes][payload]
+// integers are big endian, names are UTF-8, file contents are raw bytes.
+
+// payloads:
+//   CREATE, READ, DELETE: the filename (a path on volumes with directories)
+//   MKDIR, RMDIR: the path of the directory
+//   WRITE, APPEND: [filename length: 1 byte][filename][file contents]
+//   READ_AT: [offset: 8 bytes][length: 4 bytes][filename]
+//   WRITE_AT: [offset: 8 bytes][filename length: 1 byte][filename][bytes]
+//   WRITE_AT and APPEND write only the blocks the bytes land in, except: a compressed file is
+//   rewritten whole the first time and is stored uncompressed from then on, and on a dedupe volume
+//   bytes landing in an ending shared with other files copy the file up to that point
+//   LIST: empty for the first MAX_LIST_LIMIT names of the top level, or one page of a directory:
+//         [limit: 4 bytes][directory length: 1 byte][directory][prefix length: 1 byte][prefix][after]
+//         (after is the rest of the payload, empty = from the first name)
+//   QUIT, STATS: empty
+//   BATCH: [atomic: 1 byte, 0 or 1] then per operation [opcode: 1 byte][length: 4 bytes][payload],
+//          each a CREATE, WRITE or DELETE payload as above
+// an OK response carries the file contents for READ and READ_AT, the filenames separated by '\n'
+// for LIST (for a page of a directory the first line is the after of the next page, empty on the
+// last one), "name=value" lines for STATS, one line per operation for BATCH (empty if it
+// succeeded, else the error) and nothing otherwise; an ERROR response carries the message
+// (for an atomic BATCH: nothing was applied).
+
+// clients may pipeline: send many frames without waiting. READ, READ_AT and LIST can be answered
+// out of order, so match responses to requests by request id; other requests run in the order sent.
+
+package ca.concordia.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public final class BinaryProtocol {
+
+    // request opcodes
+    public static final byte CREATE = 1;
+    public static final byte WRITE = 2;
+    public static final byte READ = 3;
+    public static final byte DELETE = 4;
+    public static final byte LIST = 5;
+    public static final byte QUIT = 6;
+    public static final byte READ_AT = 7;
+    public static final byte WRITE_AT = 8;
+    public static final byte APPEND = 9;
+    public static final byte BATCH = 10;
+    public static final byte STATS = 11;
+    public static final byte MKDIR = 12;
+    public static final byte RMDIR = 13;
+
+    // response status
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    public static final int HEADER_SIZE = 1 + 4 + 4;
+    public static final int MAX_PAYLOAD = Integer.MAX_VALUE - 8; // the largest array the JVM allows
+
+    private BinaryProtocol() {
+    }
+
+    // one decoded request frame
+    public static final class Frame {
+        public final byte opcode;
+        public final int requestId;
+        public final byte[] payload;
+
+        Frame(byte opcode, int requestId, byte[] payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    // read the next frame, null if the client closed the connection cleanly between frames
+    // maxPayload guards against allocating whatever length a broken client sends
+    public static Frame readFrame(DataInputStream in, int maxPayload) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame((byte) opcode, requestId, payload);
+    }
+
+    // write a response frame, payload[offset, offset + length) is sent as is
+    public static void writeFrame(DataOutputStream out, byte status, int requestId,
+                                  byte[] payload, int offset, int length) throws IOException {
+        writeHeader(out, status, requestId, length);
+        out.write(payload, offset, length);
+    }
+
+    // write only the header of a response frame, the caller sends the length bytes of payload itself
+    public static void writeHeader(DataOutputStream out, byte status, int requestId, int length) throws IOException {
+        out.writeByte(status);
+        out.writeInt(requestId);
+        out.writeInt(length);
+    }
+}
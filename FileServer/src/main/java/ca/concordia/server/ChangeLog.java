@@ -0,0 +1,81 @@
+// ChangeLog numbers the changes made to the server's files, so replicas can ask for everything
+// after the last number they have (see ReplicationSender).
+
+// it only keeps the latest number of each path: a file written a thousand times since a replica
+// last looked is sent once, as it is now. At most MAX_ENTRIES paths are kept, the oldest are
+// dropped beyond that and a replica that had not got them yet starts over with a full copy.
+// the log lives in memory and gets a new id every time the server starts, a replica that sees
+// a different id also starts over.
+
+package ca.concordia.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ChangeLog {
+
+    private static final int MAX_ENTRIES = 1 << 20;
+
+    // one changed path, seq is the number of its latest change
+    public record Change(long seq, String path) {
+    }
+
+    private final long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final TreeMap<Long, String> bySeq = new TreeMap<>();
+    private final Map<String, Long> seqOf = new HashMap<>();
+    private long seq; // number of the latest change
+    private long dropped; // changes up to this number may be gone
+
+    public long getId() {
+        return id;
+    }
+
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    // path was created, deleted or written; called by the volumes once the change is durable
+    public synchronized void record(String path) {
+        Long old = seqOf.put(path, ++seq);
+        if (old != null) {
+            bySeq.remove(old);
+        }
+        bySeq.put(seq, path);
+        if (bySeq.size() > MAX_ENTRIES) {
+            Map.Entry<Long, String> oldest = bySeq.pollFirstEntry();
+            seqOf.remove(oldest.getValue());
+            dropped = oldest.getKey();
+        }
+        notifyAll();
+    }
+
+    // whether a replica that has everything up to seq of log id can go on from there
+    public synchronized boolean canResume(long id, long seq) {
+        return id == this.id && seq >= dropped && seq <= this.seq;
+    }
+
+    // the paths changed after seq, oldest first, at most max of them. Waits up to waitMillis
+    // for a change if there is none yet, the list is empty if none came
+    public synchronized List<Change> since(long seq, int max, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (this.seq <= seq) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return List.of();
+            }
+            wait(left);
+        }
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : bySeq.tailMap(seq, false).entrySet()) {
+            if (changes.size() == max) {
+                break;
+            }
+            changes.add(new Change(entry.getKey(), entry.getValue()));
+        }
+        return changes;
+    }
+}
@@ -1,115 +1,899 @@
 package ca.concordia.server;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import ca.concordia.filesystem.Batch;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.Metrics;
 
 public class ClientHandler implements Runnable { // runnable for threading
 
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024; // longest text command we accept
+    private static final byte[] FILE_CONTENTS = "FILE CONTENTS: ".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_IN_FLIGHT = 64; // binary requests one connection may have running at once
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024; // UPLOAD/DOWNLOAD move the file in pieces of this size
+    private static final long ZERO_COPY_THRESHOLD = 64 * 1024; // smaller files are cheaper to copy through the buffer
+    private static final int MAX_BATCH_SIZE = 4096; // operations one BATCH may carry
+    private static final long MAX_BATCH_BYTES = 64 * 1024 * 1024; // file contents the WRITEs of one text BATCH may carry
+
+    private static final Metrics metrics = Metrics.get();
+    // the stats of each binary opcode, looked up once so a request only does an array access
+    private static final Metrics.CommandStats[] opcodeStats = new Metrics.CommandStats[256];
+    static {
+        String[] names = {null, "CREATE", "WRITE", "READ", "DELETE", "LIST", "QUIT", "READAT", "WRITEAT", "APPEND",
+                "BATCH", "STATS", "MKDIR", "RMDIR"}; // by opcode, see BinaryProtocol
+        for (int i = 0; i < opcodeStats.length; i++) {
+            opcodeStats[i] = metrics.command(i < names.length && names[i] != null ? names[i] : Metrics.OTHER);
+        }
+    }
+
     private final Socket clientSocket;
-    private final FileSystemManager fsManager;
+    private final ShardedFileSystem fsManager;
+    private final ChangeLog changes; // what replicas of this server are sent
+    private final String primary; // host:port this server is a read-only replica of, null if it takes writes
+    private final Path snapshotDir; // directory SNAPSHOT exports go to, null if SNAPSHOT is disabled
+    private final PartialUploads uploads; // uploads cut off by a dropped connection, kept until resumed
+    private final Set<InetAddress> replicas; // addresses REPLICATE is accepted from, empty = nobody
+    private boolean answerFailed; // text mode: the last line sent was an ERROR
 
     // constructor
-    public ClientHandler(Socket clientSocket, FileSystemManager fsManager) {
+    public ClientHandler(Socket clientSocket, ShardedFileSystem fsManager, ChangeLog changes, String primary,
+                         Path snapshotDir, PartialUploads uploads, Set<InetAddress> replicas) {
         this.clientSocket = clientSocket;
         this.fsManager = fsManager;
+        this.changes = changes;
+        this.primary = primary;
+        this.snapshotDir = snapshotDir;
+        this.uploads = uploads;
+        this.replicas = replicas;
     }
 
     @Override //override run method for threading
     public void run() {
+        // byte streams underneath: text lines are decoded by hand so that after BINARY the
+        // same buffered stream can carry raw frames, and file contents never go through a charset
         try (
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))
         ) {
             String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("Received from client: " + line);
+            while ((line = readLine(in)) != null) {
+                if (Log.isEnabled(Log.DEBUG)) {
+                    Log.debug("Received from client: " + line);
+                }
+                long started = System.nanoTime();
+                answerFailed = false;
 
-                // split the command safely 
+                // split the command safely
                 String[] parts = line.trim().split("\\s+");
                 String command = parts[0].toUpperCase();
 
                 switch (command) {
                     case "CREATE":
                         try {
+                            checkWritable();
                             fsManager.createFile(parts[1]); //parts[1] is filename {FILE1, FILE2, etc}
-                            writer.println("SUCCESS: File created.");
+                            println(out, "SUCCESS: File created.");
                         } catch (Exception e) {
-                            writer.println("ERROR: " + e.getMessage());
+                            println(out, "ERROR: " + e.getMessage());
                         }
-                        writer.flush(); // send data immediately with flush
-                        break; 
+                        break;
 
                     case "WRITE":
                         if (parts.length < 3) { // handle incorrect, command format: WRITE + filename + data
-                            writer.println("ERROR: Command must look like: WRITE <filename> <data>");
-                            writer.flush();
+                            println(out, "ERROR: Command must look like: WRITE <filename> <data>");
                             break;
                         }
-                    
+
                         String writeFileName = parts[1];
-                    
-                        // reconstruct content including spaces
-                        StringBuilder sbWrite = new StringBuilder();
-                        for (int i = 2; i < parts.length; i++) {
-                            sbWrite.append(parts[i]);
-                            if (i < parts.length - 1) sbWrite.append(" "); 
-                        }
-                        byte[] writeData = sbWrite.toString().getBytes();
-                    
+
+                        // content is the rest of the line after the filename, spaces included
+                        byte[] writeData = lineRemainder(line, 2).getBytes(StandardCharsets.UTF_8);
+
                         try {
+                            checkWritable();
                             fsManager.writeFile(writeFileName, writeData);
-                            writer.println("SUCCESS: File written.");
+                            metrics.addBytesWritten(writeData.length);
+                            println(out, "SUCCESS: File written.");
                         } catch (Exception e) {
-                            writer.println("ERROR: " + e.getMessage());
+                            println(out, "ERROR: " + e.getMessage());
                         }
-                        writer.flush();
                         break;
 
                     case "READ": // added error handling
                         try {
+                            // big files go from the volume to the socket without a copy in between
+                            if (sendZeroCopy(parts[1], Long.MAX_VALUE, out, size -> out.write(FILE_CONTENTS))) {
+                                out.write('\n');
+                                break;
+                            }
                             byte[] data = fsManager.readFile(parts[1]);
-                            writer.println("FILE CONTENTS: " + new String(data));
+                            metrics.addBytesRead(data.length);
+                            // contents go out as raw bytes, no String round trip
+                            out.write(FILE_CONTENTS);
+                            out.write(data);
+                            out.write('\n');
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "LIST": // LIST [directory] [prefix=<text>] [after=<name>] [limit=<n>], one page of names
+                        list(parts, out);
+                        break;
+
+                    case "MKDIR":
+                        try {
+                            checkWritable();
+                            fsManager.createDirectory(parts[1]);
+                            println(out, "SUCCESS: Directory created.");
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "RMDIR": // only an empty directory can be removed
+                        try {
+                            checkWritable();
+                            fsManager.deleteDirectory(parts[1]);
+                            println(out, "SUCCESS: Directory deleted.");
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "READAT": // READAT <filename> <offset> <length>
+                        try {
+                            if (parts.length < 4) {
+                                throw new IllegalArgumentException("Command must look like: READAT <filename> <offset> <length>");
+                            }
+                            byte[] data = fsManager.read(parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+                            metrics.addBytesRead(data.length);
+                            out.write(FILE_CONTENTS);
+                            out.write(data);
+                            out.write('\n');
                         } catch (Exception e) {
-                            writer.println("ERROR: " + e.getMessage());
+                            println(out, "ERROR: " + e.getMessage());
                         }
-                        writer.flush();
-                        break;  
-                        
-                    case "LIST": 
-                        String[] fileList = fsManager.listFiles();
-                        writer.println("FILES: " + String.join(", ", fileList));
-                        writer.flush();
                         break;
-                        
+
+                    case "WRITEAT": // WRITEAT <filename> <offset> <data>, only the blocks the data lands in are written (but see BinaryProtocol)
+                        try {
+                            if (parts.length < 4) {
+                                throw new IllegalArgumentException("Command must look like: WRITEAT <filename> <offset> <data>");
+                            }
+                            checkWritable();
+                            byte[] bytes = lineRemainder(line, 3).getBytes(StandardCharsets.UTF_8);
+                            fsManager.write(parts[1], Long.parseLong(parts[2]), bytes);
+                            metrics.addBytesWritten(bytes.length);
+                            println(out, "SUCCESS: File written.");
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "APPEND": // APPEND <filename> <data>, the data is added as is (no newline)
+                        try {
+                            if (parts.length < 3) {
+                                throw new IllegalArgumentException("Command must look like: APPEND <filename> <data>");
+                            }
+                            checkWritable();
+                            byte[] bytes = lineRemainder(line, 2).getBytes(StandardCharsets.UTF_8);
+                            fsManager.append(parts[1], bytes);
+                            metrics.addBytesWritten(bytes.length);
+                            println(out, "SUCCESS: File appended.");
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
                     case "DELETE":
                         try {
+                            checkWritable();
                             fsManager.deleteFile(parts[1]);
-                            writer.println("SUCCESS: File deleted.");
+                            println(out, "SUCCESS: File deleted.");
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "SIZE":
+                        try {
+                            println(out, "SIZE: " + fsManager.getFileSize(parts[1]));
+                        } catch (Exception e) {
+                            println(out, "ERROR: " + e.getMessage());
+                        }
+                        break;
+
+                    case "UPLOAD": // UPLOAD <filename> <offset> <length>, then length raw bytes once READY
+                        if (parts.length < 4) {
+                            println(out, "ERROR: Command must look like: UPLOAD <filename> <offset> <length>");
+                            break;
+                        }
+                        upload(parts[1], parts[2], parts[3], in, out);
+                        break;
+
+                    case "UPLOADED": // UPLOADED <filename>, how far a cut off upload got: resume with an UPLOAD at that offset
+                        if (parts.length < 2) {
+                            println(out, "ERROR: Command must look like: UPLOADED <filename>");
+                        } else {
+                            long end = uploads.getEnd(parts[1]);
+                            println(out, end >= 0 ? "UPLOADED: " + end : "ERROR: No upload of " + parts[1] + " to resume.");
+                        }
+                        break;
+
+                    case "DOWNLOAD": // DOWNLOAD <filename> [offset], answered with DOWNLOAD: <length> and the raw bytes
+                        if (parts.length < 2) {
+                            println(out, "ERROR: Command must look like: DOWNLOAD <filename> [offset]");
+                            break;
+                        }
+                        download(parts[1], parts.length > 2 ? parts[2] : "0", out);
+                        break;
+
+                    case "BATCH": // BATCH <count> [ATOMIC], then count CREATE/WRITE/DELETE lines, one answer for all
+                        batch(parts, in, out);
+                        break;
+
+                    case "SNAPSHOT": // SNAPSHOT <file>, freeze the volume now and export it to <file> in the background
+                        try {
+                            if (parts.length < 2) {
+                                throw new IllegalArgumentException("Command must look like: SNAPSHOT <file>");
+                            }
+                            println(out, "SUCCESS: Snapshot taken, exporting to " + snapshot(parts[1]) + ".");
                         } catch (Exception e) {
-                            writer.println("ERROR: " + e.getMessage());
+                            println(out, "ERROR: " + e.getMessage());
                         }
-                        writer.flush();
                         break;
 
+                    case "STATS": // STATS, every metric on one line: name=value, name=value, ...
+                        println(out, "STATS: " + metrics.getReport());
+                        break;
+
+                    case "BINARY": // switch this connection to length-prefixed frames, see BinaryProtocol
+                        println(out, "SUCCESS: Binary mode.");
+                        out.flush();
+                        runBinary(in, out);
+                        return;
+
+                    case "REPLICATE": // REPLICATE <log id> <seq>, sent by a replica, see ReplicationProtocol
+                        // a full copy and every change after it, for the hosts given with --replicas only
+                        if (!replicas.contains(clientSocket.getInetAddress())) {
+                            println(out, "ERROR: " + clientSocket.getInetAddress().getHostAddress()
+                                    + " may not replicate this server, it is not in --replicas.");
+                            break;
+                        }
+                        long logId;
+                        long seq;
+                        try {
+                            logId = Long.parseLong(parts[1]);
+                            seq = Long.parseLong(parts[2]);
+                        } catch (RuntimeException e) {
+                            println(out, "ERROR: Command must look like: REPLICATE <log id> <seq>");
+                            break;
+                        }
+                        Log.info("Replica connected: " + clientSocket.getRemoteSocketAddress());
+                        new ReplicationSender(fsManager, changes, out).run(logId, seq);
+                        return;
+
                     case "QUIT":
                         try{
-                            writer.println("Connection closing.");
-                            writer.flush();
+                            println(out, "Connection closing.");
+                            out.flush();
                             clientSocket.close();
-                            System.out.println("Client disconnected.");
+                            Log.info("Client disconnected.");
                             return;
                         } catch (Exception e) {
-                            writer.println("ERROR: " + e.getMessage());
+                            println(out, "ERROR: " + e.getMessage());
                         }
+                        break;
 
                     default:
-                        writer.println("ERROR: Unknown command.");
+                        println(out, "ERROR: Unknown command.");
                         break;
                 }
+                metrics.command(command).record(System.nanoTime() - started, answerFailed);
+
+                // pipelined commands already waiting get answered before anything is sent,
+                // so a burst of commands costs one write to the socket instead of one each
+                if (in.available() == 0) {
+                    out.flush();
+                }
             }
 
         } catch (IOException e) {
-            System.out.println("Client disconnected.");
+            Log.info("Client disconnected.");
+        }
+    }
+
+    // one page of a directory in name order, at most limit names (default and most: MAX_LIST_LIMIT),
+    // directories end in '/'. If there are more the answer ends in "; NEXT: <name>", send the same
+    // LIST with after=<name> for the next page
+    private void list(String[] parts, OutputStream out) throws IOException {
+        String dir = "";
+        String prefix = "";
+        String after = null;
+        int limit = FileSystemManager.MAX_LIST_LIMIT;
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("prefix=")) {
+                    prefix = parts[i].substring("prefix=".length());
+                } else if (parts[i].startsWith("after=")) {
+                    after = parts[i].substring("after=".length());
+                } else if (parts[i].startsWith("limit=")) {
+                    limit = Integer.parseInt(parts[i].substring("limit=".length()));
+                } else if (i == 1) {
+                    dir = parts[i];
+                } else {
+                    throw new IllegalArgumentException(
+                            "Command must look like: LIST [directory] [prefix=<text>] [after=<name>] [limit=<n>]");
+                }
+            }
+            FileSystemManager.Listing listing = fsManager.list(dir, prefix, after, limit);
+            println(out, "FILES: " + String.join(", ", listing.getNames())
+                    + (listing.getNext() != null ? "; NEXT: " + listing.getNext() : ""));
+        } catch (Exception e) {
+            println(out, "ERROR: " + e.getMessage());
+        }
+    }
+
+    // take a snapshot and write it out on a thread of its own, live traffic is not held up.
+    // the export is a volume the server can be started on; it shows up under its name only
+    // once complete (see FileSystemManager.Snapshot.export), the result goes to the server log.
+    // with several shards each is exported on its own, to <target>.0, <target>.1 and so on.
+    // exports only go to the server's snapshot directory (--snapshot-dir, without it SNAPSHOT is
+    // off), under plain names, and never over a file that is there already.
+    // returns where the export goes
+    private String snapshot(String target) throws Exception {
+        if (snapshotDir == null) {
+            throw new IllegalStateException("SNAPSHOT is disabled, the server needs --snapshot-dir=<dir>.");
+        }
+        if (!target.matches("[A-Za-z0-9._-]+") || target.startsWith(".")) {
+            throw new IllegalArgumentException("Snapshot file must be a plain file name, got " + target);
+        }
+        int shards = fsManager.getShardCount();
+        for (int i = 0; i < shards; i++) {
+            Path file = snapshotDir.resolve(shards == 1 ? target : target + "." + i);
+            if (Files.exists(file)) {
+                throw new IllegalArgumentException("Snapshot " + file.getFileName() + " already exists.");
+            }
+        }
+        FileSystemManager.Snapshot[] snapshots = fsManager.snapshot();
+        for (int i = 0; i < snapshots.length; i++) {
+            FileSystemManager.Snapshot snapshot = snapshots[i];
+            String file = snapshotDir.resolve(snapshots.length == 1 ? target : target + "." + i).toString();
+            Thread.ofVirtual().name("snapshot-export").start(() -> {
+                try {
+                    snapshot.export(file);
+                    Log.info("Snapshot exported to " + file);
+                } catch (IOException e) {
+                    Log.error("Snapshot export to " + file + " failed: " + e.getMessage());
+                } finally {
+                    try {
+                        snapshot.release();
+                    } catch (IOException e) {
+                        Log.error("Could not release snapshot: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        return snapshots.length == 1 ? target : target + ".0 to " + target + "." + (snapshots.length - 1);
+    }
+
+    // read the count command lines of a batch and run them together (see FileSystemManager.apply).
+    // every line is read even if the batch is refused, so the connection stays in step; once it is
+    // refused the lines left are dropped as they come, only the batch so far is held in memory
+    // (a binary BATCH is one frame, bounded like any other)
+    private void batch(String[] parts, InputStream in, OutputStream out) throws IOException {
+        int count;
+        try {
+            count = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        boolean atomic = parts.length > 2 && parts[2].equalsIgnoreCase("ATOMIC");
+        if (count < 0 || count > MAX_BATCH_SIZE || parts.length > 3 || (parts.length == 3 && !atomic)) {
+            println(out, "ERROR: Command must look like: BATCH <count up to " + MAX_BATCH_SIZE + "> [ATOMIC]");
+            return;
+        }
+
+        Batch batch = new Batch(atomic);
+        long bytes = 0; // contents of the WRITEs so far
+        String malformed = null; // the batch is refused with this, set by the first line that fails
+        for (int i = 0; i < count; i++) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Batch cut off after " + i + " of " + count + " lines.");
+            }
+            if (malformed != null) {
+                continue;
+            }
+            String[] op = line.trim().split("\\s+");
+            String command = op[0].toUpperCase();
+            if (command.equals("CREATE") && op.length == 2) {
+                batch.create(op[1]);
+            } else if (command.equals("WRITE") && op.length >= 3) {
+                byte[] contents = lineRemainder(line, 2).getBytes(StandardCharsets.UTF_8);
+                bytes += contents.length;
+                if (bytes > MAX_BATCH_BYTES) {
+                    malformed = "ERROR: The writes of a batch may carry at most " + MAX_BATCH_BYTES
+                            + " bytes together, line " + (i + 1) + " goes past that.";
+                } else {
+                    batch.write(op[1], contents);
+                }
+            } else if (command.equals("DELETE") && op.length == 2) {
+                batch.delete(op[1]);
+            } else {
+                malformed = "ERROR: Line " + (i + 1) + " of the batch is not a CREATE, WRITE or DELETE command: " + line;
+            }
+        }
+        if (malformed != null) {
+            println(out, malformed);
+            return;
+        }
+
+        try {
+            checkWritable();
+            fsManager.apply(batch);
+        } catch (Exception e) {
+            println(out, "ERROR: " + e.getMessage());
+            return;
+        }
+        metrics.addBytesWritten(batch.getBytesWritten());
+        StringBuilder failures = new StringBuilder();
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getError(i) != null) {
+                failures.append(failed++ == 0 ? " " : "; ").append(i + 1).append(" (").append(batch.describe(i))
+                        .append("): ").append(batch.getError(i));
+            }
+        }
+        if (failed == 0) {
+            println(out, "SUCCESS: Batch applied (" + count + " operations).");
+        } else {
+            println(out, "ERROR: " + failed + " of " + count + " operations failed:" + failures);
+        }
+    }
+
+    // receive a file in chunks, the server never holds more than one chunk of it.
+    // the client waits for READY before sending, so a refused upload costs no bytes on the wire.
+    // the file only changes once all length bytes are there: if the connection drops midway, what
+    // arrived is kept aside (see PartialUploads) and the file stays as it was. The client can ask
+    // UPLOADED and send the rest with an UPLOAD at that offset, which carries on with it
+    private void upload(String name, String offsetArg, String lengthArg, InputStream in, OutputStream out) throws IOException {
+        FileSystemManager.WriteStream file;
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(offsetArg);
+            length = Long.parseLong(lengthArg);
+            if (length < 0) {
+                throw new IllegalArgumentException("Length cannot be negative.");
+            }
+            checkWritable();
+            file = uploads.resume(name, offset);
+            if (file == null) {
+                file = fsManager.openWrite(name, offset);
+            }
+        } catch (Exception e) {
+            println(out, "ERROR: " + e.getMessage());
+            return;
+        }
+        println(out, "READY: Send " + length + " bytes.");
+        out.flush();
+
+        byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int n;
+            try {
+                n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                break; // client went away, what we got is kept aside below
+            }
+            remaining -= n;
+            try {
+                file.write(chunk, 0, n);
+            } catch (IOException e) {
+                // the volume refused the data (full, too large): drop it and skip the rest to stay in sync
+                file.abort();
+                in.skipNBytes(remaining);
+                println(out, "ERROR: " + e.getMessage());
+                return;
+            }
+        }
+        metrics.addBytesWritten(length - remaining);
+        if (remaining > 0) {
+            long end = offset + length - remaining;
+            uploads.park(name, file, end);
+            throw new EOFException("Upload of " + name + " cut off at " + end + " bytes.");
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            println(out, "ERROR: " + e.getMessage());
+            return;
+        }
+        println(out, "SUCCESS: File uploaded (" + length + " bytes).");
+    }
+
+    // send a file from offset in chunks. the length is announced first, so a file changed midway
+    // cannot be reported in band: the connection is closed and the client resumes from what it has
+    private void download(String name, String offsetArg, OutputStream out) throws IOException {
+        FileSystemManager.ReadStream file;
+        try {
+            file = fsManager.openRead(name, Long.parseLong(offsetArg));
+        } catch (Exception e) {
+            println(out, "ERROR: " + e.getMessage());
+            return;
+        }
+        // closed even if the client goes away halfway, a compressed file holds an Inflater
+        try (file) {
+            println(out, "DOWNLOAD: " + (file.getSize() - file.getPosition()));
+            byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            int n;
+            while ((n = file.read(chunk, 0, chunk.length)) > 0) {
+                out.write(chunk, 0, n);
+                metrics.addBytesRead(n);
+            }
+        }
+    }
+
+    // binary mode: frames are read as fast as the client sends them (pipelining).
+    // READ and LIST run concurrently on their own virtual threads and answer whenever they
+    // finish, so responses can come back out of order; the request id ties them together.
+    // Anything that changes the volume waits for the requests before it and runs in order,
+    // so a client always reads its own writes.
+    private void runBinary(DataInputStream in, DataOutputStream out) throws IOException {
+        int maxPayload = (int) Math.min(BinaryProtocol.MAX_PAYLOAD,
+                fsManager.getMaxFileSize() + 256);
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT); // full window = stop reading (backpressure)
+        ReentrantLock outLock = new ReentrantLock();
+        AtomicInteger unanswered = new AtomicInteger();
+
+        try {
+            BinaryProtocol.Frame frame;
+            while ((frame = BinaryProtocol.readFrame(in, maxPayload)) != null) {
+                unanswered.incrementAndGet();
+                BinaryProtocol.Frame request = frame;
+                if (request.opcode == BinaryProtocol.READ || request.opcode == BinaryProtocol.READ_AT
+                        || request.opcode == BinaryProtocol.LIST) {
+                    window.acquireUninterruptibly();
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            answer(request, out, outLock, unanswered);
+                        } catch (IOException e) {
+                            // client went away, the reading loop sees it too
+                        } finally {
+                            window.release();
+                        }
+                    });
+                } else {
+                    window.acquireUninterruptibly(MAX_IN_FLIGHT); // every earlier request is done
+                    try {
+                        answer(request, out, outLock, unanswered);
+                    } finally {
+                        window.release(MAX_IN_FLIGHT);
+                    }
+                    if (request.opcode == BinaryProtocol.QUIT) {
+                        clientSocket.close();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            window.acquireUninterruptibly(MAX_IN_FLIGHT); // let running reads finish before the streams close
+        }
+    }
+
+    // run one request and write its response frame; the socket is flushed once nothing is left unanswered
+    private void answer(BinaryProtocol.Frame frame, DataOutputStream out, ReentrantLock outLock,
+                        AtomicInteger unanswered) throws IOException {
+        long started = System.nanoTime();
+        Metrics.CommandStats stats = opcodeStats[frame.opcode & 0xFF];
+        if (frame.opcode == BinaryProtocol.READ) {
+            // big file: header from the buffer, contents straight from the volume
+            outLock.lock();
+            try {
+                String name = new String(frame.payload, StandardCharsets.UTF_8);
+                if (sendZeroCopy(name, BinaryProtocol.MAX_PAYLOAD, out, size ->
+                        BinaryProtocol.writeHeader(out, BinaryProtocol.OK, frame.requestId, (int) size))) {
+                    unanswered.decrementAndGet(); // nothing is left in the buffer to flush
+                    stats.record(System.nanoTime() - started, false);
+                    return;
+                }
+            } finally {
+                outLock.unlock();
+            }
+        }
+        byte status = BinaryProtocol.OK;
+        byte[] response;
+        try {
+            response = frame.opcode == BinaryProtocol.QUIT ? new byte[0] : handleFrame(frame);
+        } catch (Exception e) {
+            status = BinaryProtocol.ERROR;
+            response = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        }
+        outLock.lock();
+        try {
+            BinaryProtocol.writeFrame(out, status, frame.requestId, response, 0, response.length);
+            if (unanswered.decrementAndGet() == 0) {
+                out.flush();
+            }
+        } finally {
+            outLock.unlock();
+        }
+        stats.record(System.nanoTime() - started, status == BinaryProtocol.ERROR);
+    }
+
+    // send the contents of a file of at least ZERO_COPY_THRESHOLD and at most maxSize bytes with
+    // transferTo, after header has written whatever goes in front of them.
+    // returns false without sending anything if the file is small, too big, missing or the
+    // socket has no channel; the caller then answers the normal way (and reports any error)
+    private boolean sendZeroCopy(String name, long maxSize, DataOutputStream out,
+                                 FileSystemManager.SizeHeader header) throws IOException {
+        SocketChannel channel = clientSocket.getChannel();
+        long size;
+        try {
+            size = fsManager.getFileSize(name);
+        } catch (Exception e) {
+            return false;
+        }
+        if (channel == null || size < ZERO_COPY_THRESHOLD || size > maxSize) {
+            return false;
+        }
+
+        boolean[] started = {false};
+        try {
+            fsManager.transferFile(name, channel, actualSize -> {
+                if (actualSize < ZERO_COPY_THRESHOLD || actualSize > maxSize) {
+                    throw new IllegalStateException("File changed size."); // rewritten since we looked
+                }
+                header.write(actualSize);
+                out.flush(); // everything buffered goes out before the contents
+                started[0] = true;
+            });
+            metrics.addBytesRead(size);
+            return true;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            if (started[0]) {
+                throw new IOException("Transfer of " + name + " failed.", e); // half sent, the connection is unusable
+            }
+            return false;
+        }
+    }
+
+    // run one request frame, returns the payload of the OK response
+    private byte[] handleFrame(BinaryProtocol.Frame frame) throws Exception {
+        byte[] p = frame.payload;
+        if (changesFiles(frame.opcode)) {
+            checkWritable();
+        }
+        switch (frame.opcode) {
+            case BinaryProtocol.CREATE:
+                fsManager.createFile(new String(p, StandardCharsets.UTF_8));
+                return new byte[0];
+
+            case BinaryProtocol.WRITE:
+                byte[] contents = dataAfterName(p, 0);
+                fsManager.writeFile(nameAt(p, 0), contents);
+                metrics.addBytesWritten(contents.length);
+                return new byte[0];
+
+            case BinaryProtocol.READ_AT:
+                if (p.length < Long.BYTES + Integer.BYTES) {
+                    throw new IllegalArgumentException("Malformed frame.");
+                }
+                ByteBuffer readAt = ByteBuffer.wrap(p);
+                long readOffset = readAt.getLong();
+                int readLength = readAt.getInt();
+                byte[] range = fsManager.read(new String(p, Long.BYTES + Integer.BYTES,
+                        p.length - Long.BYTES - Integer.BYTES, StandardCharsets.UTF_8), readOffset, readLength);
+                metrics.addBytesRead(range.length);
+                return range;
+
+            case BinaryProtocol.WRITE_AT:
+                if (p.length < Long.BYTES) {
+                    throw new IllegalArgumentException("Malformed frame.");
+                }
+                byte[] bytes = dataAfterName(p, Long.BYTES);
+                fsManager.write(nameAt(p, Long.BYTES), ByteBuffer.wrap(p).getLong(), bytes);
+                metrics.addBytesWritten(bytes.length);
+                return new byte[0];
+
+            case BinaryProtocol.APPEND:
+                byte[] appended = dataAfterName(p, 0);
+                fsManager.append(nameAt(p, 0), appended);
+                metrics.addBytesWritten(appended.length);
+                return new byte[0];
+
+            case BinaryProtocol.READ:
+                byte[] data = fsManager.readFile(new String(p, StandardCharsets.UTF_8));
+                metrics.addBytesRead(data.length);
+                return data;
+
+            case BinaryProtocol.DELETE:
+                fsManager.deleteFile(new String(p, StandardCharsets.UTF_8));
+                return new byte[0];
+
+            case BinaryProtocol.LIST:
+                if (p.length == 0) {
+                    // the first page of the top level, names only
+                    FileSystemManager.Listing top = fsManager.list("", "", null, FileSystemManager.MAX_LIST_LIMIT);
+                    return String.join("\n", top.getNames()).getBytes(StandardCharsets.UTF_8);
+                }
+                if (p.length < Integer.BYTES) {
+                    throw new IllegalArgumentException("Malformed frame.");
+                }
+                String dir = nameAt(p, Integer.BYTES);
+                int prefixAt = Integer.BYTES + 1 + (p[Integer.BYTES] & 0xFF);
+                String prefix = nameAt(p, prefixAt);
+                int afterAt = prefixAt + 1 + (p[prefixAt] & 0xFF);
+                String after = afterAt < p.length ? new String(p, afterAt, p.length - afterAt, StandardCharsets.UTF_8) : null;
+                FileSystemManager.Listing listing = fsManager.list(dir, prefix, after, ByteBuffer.wrap(p).getInt());
+                StringBuilder page = new StringBuilder(listing.getNext() != null ? listing.getNext() : "");
+                for (String name : listing.getNames()) {
+                    page.append('\n').append(name);
+                }
+                return page.toString().getBytes(StandardCharsets.UTF_8);
+
+            case BinaryProtocol.MKDIR:
+                fsManager.createDirectory(new String(p, StandardCharsets.UTF_8));
+                return new byte[0];
+
+            case BinaryProtocol.RMDIR:
+                fsManager.deleteDirectory(new String(p, StandardCharsets.UTF_8));
+                return new byte[0];
+
+            case BinaryProtocol.BATCH:
+                Batch batch = parseBatch(p);
+                fsManager.apply(batch);
+                metrics.addBytesWritten(batch.getBytesWritten());
+                StringBuilder results = new StringBuilder();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (i > 0) {
+                        results.append('\n');
+                    }
+                    if (batch.getError(i) != null) {
+                        results.append(batch.getError(i));
+                    }
+                }
+                return results.toString().getBytes(StandardCharsets.UTF_8);
+
+            case BinaryProtocol.STATS:
+                StringBuilder values = new StringBuilder();
+                for (Map.Entry<String, Long> value : metrics.getValues().entrySet()) {
+                    values.append(value.getKey()).append('=').append(value.getValue()).append('\n');
+                }
+                return values.toString().getBytes(StandardCharsets.UTF_8);
+
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + frame.opcode);
+        }
+    }
+
+    // the operations of a BATCH payload, see BinaryProtocol
+    private static Batch parseBatch(byte[] p) {
+        if (p.length < 1) {
+            throw new IllegalArgumentException("Malformed frame.");
+        }
+        Batch batch = new Batch(p[0] != 0);
+        ByteBuffer ops = ByteBuffer.wrap(p, 1, p.length - 1);
+        while (ops.hasRemaining()) {
+            if (ops.remaining() < 1 + Integer.BYTES || batch.size() == MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("Malformed frame.");
+            }
+            byte opcode = ops.get();
+            int length = ops.getInt();
+            if (length < 0 || length > ops.remaining()) {
+                throw new IllegalArgumentException("Malformed frame.");
+            }
+            byte[] payload = new byte[length];
+            ops.get(payload);
+            switch (opcode) {
+                case BinaryProtocol.CREATE:
+                    batch.create(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case BinaryProtocol.WRITE:
+                    batch.write(nameAt(payload, 0), dataAfterName(payload, 0));
+                    break;
+                case BinaryProtocol.DELETE:
+                    batch.delete(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Opcode " + opcode + " cannot be part of a batch.");
+            }
+        }
+        return batch;
+    }
+
+    // the [name length: 1 byte][name] field of a payload starting at from
+    private static String nameAt(byte[] p, int from) {
+        if (p.length < from + 1 || p.length < from + 1 + (p[from] & 0xFF)) {
+            throw new IllegalArgumentException("Malformed frame.");
+        }
+        return new String(p, from + 1, p[from] & 0xFF, StandardCharsets.UTF_8);
+    }
+
+    // the bytes after the name field starting at from
+    private static byte[] dataAfterName(byte[] p, int from) {
+        return Arrays.copyOfRange(p, from + 1 + (p[from] & 0xFF), p.length);
+    }
+
+    private static boolean changesFiles(byte opcode) {
+        return opcode == BinaryProtocol.CREATE || opcode == BinaryProtocol.WRITE || opcode == BinaryProtocol.DELETE
+                || opcode == BinaryProtocol.WRITE_AT || opcode == BinaryProtocol.APPEND || opcode == BinaryProtocol.BATCH
+                || opcode == BinaryProtocol.MKDIR || opcode == BinaryProtocol.RMDIR;
+    }
+
+    // a replica only takes changes from its primary, clients can read but not write
+    private void checkWritable() throws Exception {
+        if (primary != null) {
+            throw new Exception("ERROR: This server is a read-only replica of " + primary + ".");
+        }
+    }
+
+    // write one text response line as UTF-8, it is flushed by the command loop
+    private void println(OutputStream out, String line) throws IOException {
+        answerFailed = line.startsWith("ERROR");
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    // read one text line (\n or \r\n terminated) as UTF-8, null at end of stream
+    private static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return length == 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length == line.length) {
+                if (length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long.");
+                }
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // the part of line after the first n whitespace separated words, with its own spacing kept
+    private static String lineRemainder(String line, int n) {
+        int i = 0;
+        String s = line.stripLeading();
+        for (int word = 0; word < n; word++) {
+            while (i < s.length() && !Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+            if (word < n - 1) {
+                while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+                    i++;
+                }
+            }
         }
+        return i < s.length() ? s.substring(i + 1) : ""; // skip the one separator after the filename
     }
 }
@@ -1,39 +1,185 @@
 package ca.concordia.server;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.Metrics;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class FileServer {
 
-    private FileSystemManager fsManager;
+    private ShardedFileSystem fsManager;
+    private final ChangeLog changes = new ChangeLog(); // every change, for the replicas of this server
+    private final PartialUploads uploads = new PartialUploads(); // uploads a dropped connection cut off
+    private final String replicaOf; // host:port of the primary if this server is a replica, else null
+    private Replica replica;
+    private final Set<InetAddress> replicas; // addresses allowed to follow this server, empty = nobody
+    private final Path snapshotDir; // where SNAPSHOT exports go, null if SNAPSHOT is disabled
+    private final int compactRate; // bytes per second the compactor copies, 0 = no compaction
     private int port;
+    private final boolean virtualThreads;
+    private final int maxConnections;
+    private final int backlog;
+    private final Semaphore connectionSlots; // one permit per client we are willing to serve at once
+    private volatile ServerSocket serverSocket;
+
     public FileServer(int port, String fileSystemName, int totalSize) throws IOException{ // add IOException
         FileSystemManager fsManager = new FileSystemManager(fileSystemName, totalSize );
-        this.fsManager = fsManager;
+        this.fsManager = new ShardedFileSystem(List.of(fsManager));
+        this.fsManager.setChangeListener(changes::record);
+        this.replicaOf = null;
+        this.replicas = Set.of();
+        this.snapshotDir = null;
         this.port = port;
+        ServerConfig defaults = new ServerConfig();
+        this.compactRate = defaults.getCompactRate();
+        this.virtualThreads = defaults.isVirtualThreads();
+        this.maxConnections = defaults.getMaxConnections();
+        this.backlog = defaults.getBacklog();
+        this.connectionSlots = new Semaphore(maxConnections);
+    }
+
+    // geometry is only used for volumes that do not exist yet, each shard gets all of it
+    public FileServer(ServerConfig config) throws IOException {
+        Log.setLevel(config.getLogLevel());
+        List<FileSystemManager> shards = new ArrayList<>();
+        try {
+            for (String fileSystemName : config.getFileSystemNames()) {
+                FileSystemManager shard = new FileSystemManager(fileSystemName, config.getBlockSize(),
+                        config.getBlockCount(), config.getMaxFiles(), config.getIoMode(),
+                        config.getCacheSize(), config.isCacheWriteBack(), config.isDedupe(), config.isDirectories());
+                shards.add(shard);
+                shard.setCompression(config.getCompression());
+            }
+            this.fsManager = new ShardedFileSystem(shards);
+            this.fsManager.setChangeListener(changes::record);
+        } catch (IOException | RuntimeException e) {
+            for (FileSystemManager shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+        this.replicaOf = config.getReplicaOf();
+        if (replicaOf != null) {
+            // the last change received is kept next to the first volume
+            replica = new Replica(this.fsManager, replicaOf, Path.of(config.getFileSystemNames()[0] + ".replica"));
+        }
+        // resolved once, a replica connecting from any address of a listed host is let in
+        Set<InetAddress> replicas = new HashSet<>();
+        for (String host : config.getReplicas()) {
+            replicas.addAll(List.of(InetAddress.getAllByName(host)));
+        }
+        this.replicas = replicas;
+        if (config.getSnapshotDir() != null) {
+            this.snapshotDir = Path.of(config.getSnapshotDir()).toAbsolutePath().normalize();
+            Files.createDirectories(snapshotDir);
+        } else {
+            this.snapshotDir = null;
+        }
+        this.compactRate = config.getCompactRate();
+        this.port = config.getPort();
+        this.virtualThreads = config.isVirtualThreads();
+        this.maxConnections = config.getMaxConnections();
+        this.backlog = config.getBacklog();
+        this.connectionSlots = new Semaphore(maxConnections);
     }
 
 
     // clienHandler now handles each client connection
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port + "...");
+        // virtual threads park instead of holding an OS thread while a client is idle,
+        // so tens of thousands of mostly idle connections cost little more than their sockets
+        ExecutorService clientExecutor = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
+
+        // opened as a channel so every client socket has a SocketChannel, which READ
+        // needs to send file contents straight from the volume with transferTo
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port), backlog);
+            ServerSocket serverSocket = listener.socket();
+            this.serverSocket = serverSocket;
+            Log.info("Server started. Listening on port " + port + " ("
+                    + (virtualThreads ? "virtual" : "platform") + " threads, max " + maxConnections + " connections, "
+                    + fsManager.getShardCount() + (fsManager.getShardCount() == 1 ? " volume" : " volume shards") + ")...");
+            Metrics.get().registerGauge("connections.active", this::getActiveConnections);
+            Metrics.get().registerGauge("replication.seq", changes::getSeq);
+            if (replica != null) {
+                Log.info("Read-only replica of " + replicaOf + ".");
+                replica.start();
+            }
+            if (compactRate > 0) {
+                fsManager.startCompaction(compactRate);
+            }
+            Metrics.get().registerMBean(); // after the bind, this takes a while the first time
     
             while (true) {
-                Socket clientSocket = serverSocket.accept(); // accept a new client connection
-                System.out.println("Client connected: " + clientSocket);
+                // backpressure: once maxConnections clients are connected stop accepting,
+                // new clients wait in the OS backlog until someone disconnects
+                connectionSlots.acquireUninterruptibly();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept(); // accept a new client connection
+                } catch (IOException e) {
+                    connectionSlots.release();
+                    throw e;
+                }
+                Metrics.get().connectionAccepted();
+                if (Log.isEnabled(Log.DEBUG)) {
+                    Log.debug("Client connected: " + clientSocket);
+                }
     
-                // we just create a thread for each client here
-                Thread clientThread = new Thread(new ClientHandler(clientSocket, fsManager));
-                clientThread.start();
+                // each client gets its own thread, the slot is given back when it disconnects
+                ClientHandler handler = new ClientHandler(clientSocket, fsManager, changes, replicaOf, snapshotDir, uploads,
+                        replicas);
+                clientExecutor.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
             }
     
         } catch (IOException e) { // rare case of server socket failure, still handle it
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+            if (serverSocket == null || !serverSocket.isClosed()) {
+                Log.error("Could not start server on port " + port + ": " + e);
+            }
+        } finally {
+            clientExecutor.shutdownNow();
+            Metrics.get().removeGauge("connections.active");
+            Metrics.get().removeGauge("replication.seq");
         }
     }
-    
+
+    // stop accepting clients and close the volumes, start() returns once the socket is closed
+    public void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (replica != null) {
+            replica.stop();
+        }
+        uploads.abortAll();
+        fsManager.close();
+    }
+
+    // clients currently connected
+    public int getActiveConnections() {
+        return maxConnections - connectionSlots.availablePermits();
+    }
 
 }
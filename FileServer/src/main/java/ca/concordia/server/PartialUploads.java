@@ -0,0 +1,76 @@
+// PartialUploads keeps the uploads a dropped connection cut off, uncommitted, until the client
+// comes back for them (see ClientHandler.upload).
+
+// the file keeps its old contents meanwhile: the bytes that arrived sit in blocks of their own,
+// and an UPLOAD at the offset the upload got to carries on with the same stream, so the file only
+// changes once every byte is there. An upload not resumed within EXPIRY_MILLIS is dropped and its
+// blocks go back to the free list; after a restart they are reclaimed when the volume is opened.
+
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class PartialUploads {
+
+    private static final long EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    // end = file offset the next byte goes to
+    private record Partial(FileSystemManager.WriteStream stream, long end, long since) {
+    }
+
+    private final Map<String, Partial> partials = new HashMap<>();
+
+    // keep the upload of name, replacing one kept before
+    public synchronized void park(String name, FileSystemManager.WriteStream stream, long end) {
+        expire();
+        Partial old = partials.put(name, new Partial(stream, end, System.currentTimeMillis()));
+        if (old != null) {
+            old.stream().abort();
+        }
+    }
+
+    // take back the upload of name if it got to exactly offset bytes, null if there is none.
+    // any other upload of name is dropped, the client started over or went on from somewhere else
+    public synchronized FileSystemManager.WriteStream resume(String name, long offset) {
+        expire();
+        Partial partial = partials.remove(name);
+        if (partial == null) {
+            return null;
+        }
+        if (partial.end() != offset) {
+            partial.stream().abort();
+            return null;
+        }
+        return partial.stream();
+    }
+
+    // bytes the kept upload of name got to, -1 if there is none
+    public synchronized long getEnd(String name) {
+        expire();
+        Partial partial = partials.get(name);
+        return partial != null ? partial.end() : -1;
+    }
+
+    // drop every kept upload, before the volumes are closed
+    public synchronized void abortAll() {
+        for (Partial partial : partials.values()) {
+            partial.stream().abort();
+        }
+        partials.clear();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.since() > EXPIRY_MILLIS) {
+                partial.stream().abort();
+                it.remove();
+            }
+        }
+    }
+}
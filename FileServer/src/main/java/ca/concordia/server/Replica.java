@@ -0,0 +1,396 @@
+// Replica keeps this server a copy of another one (the primary), see ReplicationProtocol.
+
+// it connects to the primary with REPLICATE and the last CHECKPOINT it got, applies what comes
+// through the same ShardedFileSystem clients read from, and connects again whenever the
+// connection breaks. The last CHECKPOINT is kept in a small file next to the first volume, so
+// after a restart only what changed since is sent again. The replica has its own ChangeLog
+// like any server, so a replica can be the primary of another replica.
+
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.metrics.Log;
+import ca.concordia.metrics.Metrics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class Replica {
+
+    private static final int RETRY_MILLIS = 2000; // wait before connecting again
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 5 * ReplicationProtocol.HEARTBEAT_MILLIS; // no heartbeat this long = dead
+
+    private final ShardedFileSystem fsManager;
+    private final String host;
+    private final int port;
+    private final Path stateFile; // "<log id> <seq>" of the last CHECKPOINT applied
+
+    private volatile boolean running;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile Socket socket;
+    private Thread thread;
+    private volatile boolean connected;
+    private long logId;
+    private volatile long seq;
+
+    // the file being received: FILE frame seen, its DATA still coming
+    private FileSystemManager.WriteStream file;
+    private String filePath;
+    private long fileRemaining;
+    private boolean fileSkipped; // could not be written here, its DATA is read and dropped
+
+    private Set<String> received; // during a full copy, every path the primary sent
+
+    // primary is host:port
+    public Replica(ShardedFileSystem fsManager, String primary, Path stateFile) {
+        int colon = primary.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("The primary must look like host:port, got: " + primary);
+        }
+        this.fsManager = fsManager;
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.stateFile = stateFile;
+    }
+
+    public void start() throws IOException {
+        loadState();
+        running = true;
+        Metrics.get().registerGauge("replica.seq", () -> seq);
+        Metrics.get().registerGauge("replica.connected", () -> connected ? 1 : 0);
+        thread = Thread.ofVirtual().name("replica").start(this::run);
+    }
+
+    // never interrupts the thread: an interrupt while it writes to the volume or its journal
+    // would close their channels. Closing the socket is enough to end a connection
+    public void stop() {
+        running = false;
+        stopped.countDown();
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Metrics.get().removeGauge("replica.seq");
+        Metrics.get().removeGauge("replica.connected");
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Replication from " + host + ":" + port + " stopped: " + e.getMessage()
+                            + ", connecting again in " + RETRY_MILLIS + " ms.");
+                }
+            } finally {
+                connected = false;
+                abortFile();
+                received = null;
+            }
+            try {
+                if (stopped.await(RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // one connection to the primary, returns by throwing once it breaks (or once stopped)
+    private void follow() throws IOException {
+        try (Socket s = new Socket()) {
+            socket = s;
+            if (!running) {
+                return; // stop() came before the socket was there to close
+            }
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.write(("REPLICATE " + logId + " " + seq + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String answer = readLine(in);
+            if (!answer.startsWith("SUCCESS")) {
+                throw new IOException("the primary answered " + answer);
+            }
+            connected = true;
+            Log.info("Replicating from " + host + ":" + port + ": " + answer);
+            while (running) {
+                BinaryProtocol.Frame frame = BinaryProtocol.readFrame(in, ReplicationProtocol.CHUNK_SIZE + 65536);
+                if (frame == null) {
+                    throw new IOException("the primary closed the connection");
+                }
+                apply(frame);
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    private void apply(BinaryProtocol.Frame frame) throws IOException {
+        byte[] p = frame.payload;
+        if (file != null && frame.opcode != ReplicationProtocol.DATA && frame.opcode != ReplicationProtocol.ABORT) {
+            throw new IOException("file " + filePath + " cut off by frame " + frame.opcode);
+        }
+        switch (frame.opcode) {
+            case ReplicationProtocol.FULL:
+                // logId stays the old one until the CHECKPOINT, a copy cut off halfway starts over
+                received = new HashSet<>();
+                break;
+
+            case ReplicationProtocol.DIRECTORY:
+                String dir = new String(p, StandardCharsets.UTF_8);
+                seen(dir);
+                applyDirectory(dir);
+                break;
+
+            case ReplicationProtocol.FILE:
+                String path = new String(p, Long.BYTES, p.length - Long.BYTES, StandardCharsets.UTF_8);
+                seen(path);
+                startFile(path, ByteBuffer.wrap(p).getLong());
+                break;
+
+            case ReplicationProtocol.DATA:
+                if (file == null && !fileSkipped) {
+                    throw new IOException("data without a file");
+                }
+                fileRemaining -= p.length;
+                if (file != null) {
+                    try {
+                        file.write(p, 0, p.length);
+                    } catch (IOException e) {
+                        Log.error("Replica could not write " + filePath + ": " + e.getMessage());
+                        abortFile();
+                        fileSkipped = true;
+                    }
+                }
+                if (fileRemaining <= 0) {
+                    finishFile();
+                }
+                break;
+
+            case ReplicationProtocol.ABORT:
+                abortFile();
+                break;
+
+            case ReplicationProtocol.DELETE:
+                applyDelete(new String(p, StandardCharsets.UTF_8));
+                break;
+
+            case ReplicationProtocol.CHECKPOINT:
+                ByteBuffer checkpoint = ByteBuffer.wrap(p);
+                logId = checkpoint.getLong();
+                long upTo = checkpoint.getLong();
+                if (received != null) {
+                    deleteNotReceived();
+                    received = null;
+                    Log.info("Full copy from " + host + ":" + port + " received.");
+                }
+                if (upTo != seq) {
+                    seq = upTo;
+                    saveState();
+                }
+                break;
+
+            default:
+                throw new IOException("unknown frame " + frame.opcode);
+        }
+    }
+
+    private void seen(String path) {
+        if (received != null) {
+            received.add(path);
+        }
+    }
+
+    // APPLYING CHANGES, a change that cannot be applied here is logged and skipped: the next
+    // change of the same path replaces it anyway
+
+    private void applyDirectory(String path) {
+        try {
+            if (fsManager.fileExists(path)) {
+                fsManager.deleteFile(path);
+            }
+            ensureParents(path);
+            if (!fsManager.directoryExists(path)) {
+                fsManager.createDirectory(path);
+            }
+        } catch (Exception e) {
+            Log.error("Replica could not create directory " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void startFile(String path, long size) {
+        filePath = path;
+        fileRemaining = size;
+        fileSkipped = false;
+        try {
+            if (fsManager.directoryExists(path)) {
+                deleteTree(path);
+            }
+            ensureParents(path);
+            if (!fsManager.fileExists(path)) {
+                fsManager.createFile(path);
+            }
+            file = fsManager.openWrite(path, 0);
+        } catch (Exception e) {
+            Log.error("Replica could not write " + path + ": " + e.getMessage());
+            fileSkipped = true;
+        }
+        if (size == 0) {
+            finishFile();
+        }
+    }
+
+    private void finishFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.error("Replica could not write " + filePath + ": " + e.getMessage());
+            }
+        }
+        file = null;
+        fileSkipped = false;
+    }
+
+    private void abortFile() {
+        if (file != null) {
+            file.abort();
+        }
+        file = null;
+        fileSkipped = false;
+    }
+
+    private void applyDelete(String path) {
+        try {
+            if (fsManager.fileExists(path)) {
+                fsManager.deleteFile(path);
+            } else if (fsManager.directoryExists(path)) {
+                deleteTree(path);
+            }
+        } catch (Exception e) {
+            Log.error("Replica could not delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    // like mkdir -p for the directories path is in
+    private void ensureParents(String path) throws Exception {
+        for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+            String parent = path.substring(0, slash);
+            if (fsManager.fileExists(parent)) {
+                fsManager.deleteFile(parent);
+            }
+            if (!fsManager.directoryExists(parent)) {
+                fsManager.createDirectory(parent);
+            }
+        }
+    }
+
+    // a directory and everything in it
+    private void deleteTree(String path) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (String name : fsManager.listFiles()) {
+            if (name.startsWith(path + "/") && name.length() > path.length() + 1) {
+                names.add(name);
+            }
+        }
+        names.add(path + "/");
+        delete(names);
+    }
+
+    // after a full copy, whatever the primary does not have
+    private void deleteNotReceived() {
+        List<String> names = new ArrayList<>();
+        for (String name : fsManager.listFiles()) {
+            String path = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+            if (!received.contains(path)) {
+                names.add(name);
+            }
+        }
+        try {
+            delete(names);
+        } catch (Exception e) {
+            Log.error("Replica could not delete what the primary does not have: " + e.getMessage());
+        }
+    }
+
+    // files first, then directories from the deepest up so each is empty when its turn comes
+    private void delete(List<String> names) throws Exception {
+        names.sort(Comparator.comparing((String name) -> name.endsWith("/"))
+                .thenComparing(name -> -name.length()));
+        for (String name : names) {
+            if (name.endsWith("/")) {
+                fsManager.deleteDirectory(name.substring(0, name.length() - 1));
+            } else {
+                fsManager.deleteFile(name);
+            }
+        }
+    }
+
+    // STATE FILE
+    private void loadState() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        String[] parts = Files.readString(stateFile).trim().split("\\s+");
+        try {
+            logId = Long.parseLong(parts[0]);
+            seq = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            Log.warn("Ignoring broken replica state " + stateFile + ", starting with a full copy.");
+            logId = 0;
+            seq = 0;
+        }
+    }
+
+    // written next to it and moved over, a crash leaves either the old or the new state
+    private void saveState() throws IOException {
+        Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        Files.writeString(temp, logId + " " + seq + "\n");
+        Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("the primary closed the connection");
+            }
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+}
@@ -0,0 +1,40 @@
+// ReplicationProtocol describes the stream a primary sends a replica after the text command
+// REPLICATE <log id> <seq> (both 0 for a replica that has nothing yet). Only replicas connecting
+// from a host the primary was started with in --replicas are answered, others get an ERROR line.
+
+// the primary answers with one text line, "SUCCESS: Replicating after <seq>." if the replica
+// can go on from where it is or "SUCCESS: Full copy." if it has to start over, then only sends
+// frames laid out like BinaryProtocol's: [type: 1 byte][0: 4 bytes][payload length: 4 bytes][payload]
+// integers are big endian, paths are UTF-8 and without a leading or trailing '/'.
+
+// frames:
+//   FULL: [log id: 8 bytes], everything on the primary follows. Whatever the replica has that
+//         is not sent before the next CHECKPOINT is deleted there
+//   DIRECTORY: the path of a directory that exists
+//   FILE: [size: 8 bytes][path], a file and its contents: DATA frames with size bytes in total
+//         follow, unless an ABORT comes first
+//   DATA: the next bytes of the file being sent
+//   ABORT: the file being sent changed while it was read, drop what came of it (it is sent again)
+//   DELETE: the path of a file or directory that no longer exists (a directory with everything in it)
+//   CHECKPOINT: [log id: 8 bytes][seq: 8 bytes], the replica has every change up to seq. Also sent
+//               every HEARTBEAT_MILLIS while nothing changes, so a dead connection is noticed
+// the replica never sends anything back, it reconnects with the last CHECKPOINT if the stream breaks.
+
+package ca.concordia.server;
+
+public final class ReplicationProtocol {
+
+    public static final byte FULL = 1;
+    public static final byte DIRECTORY = 2;
+    public static final byte FILE = 3;
+    public static final byte DATA = 4;
+    public static final byte ABORT = 5;
+    public static final byte DELETE = 6;
+    public static final byte CHECKPOINT = 7;
+
+    public static final int HEARTBEAT_MILLIS = 1000;
+    public static final int CHUNK_SIZE = 64 * 1024; // most bytes of a file in one DATA frame
+
+    private ReplicationProtocol() {
+    }
+}
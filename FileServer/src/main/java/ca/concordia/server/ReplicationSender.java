@@ -0,0 +1,127 @@
+// ReplicationSender streams the changes of this server to one replica, on the connection the
+// replica sent REPLICATE on (see ReplicationProtocol), until the replica goes away.
+
+// changes are sent in batches of up to MAX_BATCH paths, each followed by a CHECKPOINT, as the
+// ChangeLog hands them out; a path is sent as it is at that moment (its contents, that it is a
+// directory, or that it is gone), so a batch always brings the replica up to date with
+// everything it names. A replica that cannot go on from its last CHECKPOINT gets a full copy:
+// every directory and file, read with the same streams DOWNLOAD uses, so nothing is frozen
+// while it runs and changes made meanwhile follow as normal changes.
+
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.metrics.Log;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class ReplicationSender {
+
+    private static final int MAX_BATCH = 1024; // paths sent before a CHECKPOINT
+
+    private final ShardedFileSystem fsManager;
+    private final ChangeLog changes;
+    private final DataOutputStream out;
+    private final byte[] chunk = new byte[ReplicationProtocol.CHUNK_SIZE];
+
+    public ReplicationSender(ShardedFileSystem fsManager, ChangeLog changes, DataOutputStream out) {
+        this.fsManager = fsManager;
+        this.changes = changes;
+        this.out = out;
+    }
+
+    // send from after seq of log id on (a full copy first if that is not possible), returns once
+    // the replica has gone away
+    public void run(long id, long seq) throws IOException {
+        try {
+            if (changes.canResume(id, seq)) {
+                println("SUCCESS: Replicating after " + seq + ".");
+            } else {
+                println("SUCCESS: Full copy.");
+                seq = changes.getSeq(); // anything changed from here on is sent again below
+                frame(ReplicationProtocol.FULL, ByteBuffer.allocate(Long.BYTES).putLong(changes.getId()).array());
+                for (String name : fsManager.listFiles()) {
+                    sendPath(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+                }
+                checkpoint(seq);
+                Log.info("Full copy sent to a replica, up to change " + seq + ".");
+            }
+            while (true) {
+                List<ChangeLog.Change> batch = changes.since(seq, MAX_BATCH, ReplicationProtocol.HEARTBEAT_MILLIS);
+                for (ChangeLog.Change change : batch) {
+                    sendPath(change.path());
+                    seq = change.seq();
+                }
+                checkpoint(seq);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the path as it is right now
+    private void sendPath(String path) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        boolean isFile;
+        try {
+            isFile = fsManager.fileExists(path);
+        } catch (Exception e) {
+            isFile = false;
+        }
+        if (isFile) {
+            sendFile(path, name);
+        } else if (fsManager.directoryExists(path)) {
+            frame(ReplicationProtocol.DIRECTORY, name);
+        } else {
+            frame(ReplicationProtocol.DELETE, name);
+        }
+    }
+
+    private void sendFile(String path, byte[] name) throws IOException {
+        FileSystemManager.ReadStream file;
+        try {
+            file = fsManager.openRead(path, 0);
+        } catch (Exception e) {
+            return; // deleted since we looked, which is a change of its own and sent later
+        }
+        try {
+            frame(ReplicationProtocol.FILE, ByteBuffer.allocate(Long.BYTES + name.length)
+                    .putLong(file.getSize()).put(name).array());
+            while (true) {
+                int n;
+                try {
+                    n = file.read(chunk, 0, chunk.length);
+                } catch (IOException e) {
+                    // changed while we read it, the change is sent later
+                    frame(ReplicationProtocol.ABORT, new byte[0]);
+                    return;
+                }
+                if (n < 0) {
+                    return;
+                }
+                BinaryProtocol.writeFrame(out, ReplicationProtocol.DATA, 0, chunk, 0, n);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void checkpoint(long seq) throws IOException {
+        frame(ReplicationProtocol.CHECKPOINT, ByteBuffer.allocate(2 * Long.BYTES)
+                .putLong(changes.getId()).putLong(seq).array());
+        out.flush();
+    }
+
+    private void frame(byte type, byte[] payload) throws IOException {
+        BinaryProtocol.writeFrame(out, type, 0, payload, 0, payload.length);
+    }
+
+    private void println(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,255 @@
+// ServerConfig holds the settings the server is started with.
+// values come from --key=value command line arguments, anything not given keeps its default
+
+package ca.concordia.server;
+
+import ca.concordia.filesystem.Compression;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ServerConfig {
+
+    private int port = 12345;
+    private String[] fileSystemNames = {"filesystem.dat"}; // one volume per shard, new shards go at the end
+
+    // geometry used only when a new volume is created, an existing volume keeps its own
+    private int blockSize = 4096;
+    private int blockCount = 16384; // 64 MiB of data with 4 KiB blocks
+    private int maxFiles = 4096;
+    private String ioMode = "auto"; // mmap, channel, or auto = mmap unless the volume is huge
+    private long cacheSize = 0; // block cache in front of the volume, 0 = none (mmap needs none)
+    private boolean cacheWriteBack = false; // write-back instead of write-through
+    private boolean dedupe = false; // store identical blocks once (chosen when the volume is created)
+    private boolean directories = false; // nested directories instead of flat names (chosen when the volume is created)
+    private Compression compression = Compression.OFF; // codec for files written from now on
+    private int compactRate = 0; // bytes per second the background compactor copies, 0 = off
+
+    // connection handling
+    private boolean virtualThreads = true; // one virtual thread per client instead of a platform thread
+    private int maxConnections = 50000; // accepting pauses while this many clients are connected
+    private int backlog = 1024; // connections the OS queues for us while accepting is paused
+    private String logLevel = "info"; // error, warn, info or debug (every command received)
+    private String replicaOf = null; // host:port of the primary to follow as a read-only replica
+    private String[] replicas = {}; // hosts allowed to follow this server (REPLICATE), none = nobody
+    private String snapshotDir = null; // where SNAPSHOT exports go, null = SNAPSHOT is disabled
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Arguments must look like --key=value, got: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "file":
+                    config.fileSystemNames = parseFiles(value);
+                    break;
+                case "block-size":
+                    config.blockSize = parseSize(value);
+                    break;
+                case "blocks":
+                    config.blockCount = Integer.parseInt(value);
+                    break;
+                case "max-files":
+                    config.maxFiles = Integer.parseInt(value);
+                    break;
+                case "io":
+                    if (!value.equals("auto") && !value.equals("mmap") && !value.equals("channel")) {
+                        throw new IllegalArgumentException("--io must be auto, mmap or channel");
+                    }
+                    config.ioMode = value;
+                    break;
+                case "cache":
+                    config.cacheSize = parseSize(value);
+                    break;
+                case "cache-mode":
+                    if (!value.equals("write-through") && !value.equals("write-back")) {
+                        throw new IllegalArgumentException("--cache-mode must be write-through or write-back");
+                    }
+                    config.cacheWriteBack = value.equals("write-back");
+                    break;
+                case "dedupe":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IllegalArgumentException("--dedupe must be on or off");
+                    }
+                    config.dedupe = value.equals("on");
+                    break;
+                case "directories":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IllegalArgumentException("--directories must be on or off");
+                    }
+                    config.directories = value.equals("on");
+                    break;
+                case "compression":
+                    config.compression = Compression.parse(value);
+                    break;
+                case "compact-rate":
+                    config.compactRate = parseSize(value);
+                    if (config.compactRate < 0) {
+                        throw new IllegalArgumentException("--compact-rate cannot be negative");
+                    }
+                    break;
+                case "threads":
+                    if (!value.equals("virtual") && !value.equals("platform")) {
+                        throw new IllegalArgumentException("--threads must be virtual or platform");
+                    }
+                    config.virtualThreads = value.equals("virtual");
+                    break;
+                case "max-connections":
+                    config.maxConnections = Integer.parseInt(value);
+                    break;
+                case "backlog":
+                    config.backlog = Integer.parseInt(value);
+                    break;
+                case "log-level":
+                    if (!value.matches("error|warn|info|debug")) {
+                        throw new IllegalArgumentException("--log-level must be error, warn, info or debug");
+                    }
+                    config.logLevel = value;
+                    break;
+                case "replica-of":
+                    if (!value.matches(".+:\\d+")) {
+                        throw new IllegalArgumentException("--replica-of must look like host:port");
+                    }
+                    config.replicaOf = value;
+                    break;
+                case "replicas":
+                    config.replicas = parseHosts(value);
+                    break;
+                case "snapshot-dir":
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("--snapshot-dir needs a directory");
+                    }
+                    config.snapshotDir = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        return config;
+    }
+
+    // one name or several separated by commas, e.g. /mnt/a/fs.dat,/mnt/b/fs.dat
+    static String[] parseFiles(String value) {
+        String[] names = value.split(",");
+        Set<Path> seen = new HashSet<>();
+        for (String name : names) {
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("--file has an empty volume name: " + value);
+            }
+            // two shards on one file would overwrite each other
+            if (!seen.add(Path.of(name).toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("--file names the volume " + name + " twice.");
+            }
+        }
+        return names;
+    }
+
+    // one host name or address or several separated by commas, e.g. 10.0.0.2,backup.example.com
+    static String[] parseHosts(String value) {
+        String[] hosts = value.split(",");
+        for (String host : hosts) {
+            if (host.isEmpty()) {
+                throw new IllegalArgumentException("--replicas has an empty host name: " + value);
+            }
+        }
+        return hosts;
+    }
+
+    // accepts plain bytes or a K/M suffix, e.g. 4096, 4K, 64K, 1M
+    static int parseSize(String value) {
+        String v = value.trim().toUpperCase();
+        int multiplier = 1;
+        if (v.endsWith("K")) {
+            multiplier = 1024;
+        } else if (v.endsWith("M")) {
+            multiplier = 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        return Math.multiplyExact(Integer.parseInt(v), multiplier);
+    }
+
+    // Getters
+    public int getPort() {
+        return port;
+    }
+
+    public String[] getFileSystemNames() {
+        return fileSystemNames;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public String getIoMode() {
+        return ioMode;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public boolean isCacheWriteBack() {
+        return cacheWriteBack;
+    }
+
+    public boolean isDedupe() {
+        return dedupe;
+    }
+
+    public boolean isDirectories() {
+        return directories;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getCompactRate() {
+        return compactRate;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public String getReplicaOf() {
+        return replicaOf;
+    }
+
+    public String[] getReplicas() {
+        return replicas;
+    }
+
+    public String getSnapshotDir() {
+        return snapshotDir;
+    }
+}
@@ -0,0 +1,136 @@
+// BatchTest applies batches with a failing operation in them: an atomic batch leaves the volume
+// exactly as it was, blocks included, and any other batch applies what it can and says what not.
+
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.datastructures.FreeBitmap;
+import ca.concordia.filesystem.datastructures.Superblock;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchTest {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BLOCKS = 1024;
+
+    @TempDir
+    Path dir;
+
+    private FileSystemManager fs;
+    private int free; // blocks free once a and gone exist
+
+    @BeforeEach
+    void openVolume() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        fs = open(volume);
+        fs.createFile("a");
+        fs.writeFile("a", random(3000, 1));
+        fs.createFile("gone");
+        fs.close();
+        free = freeBlocks(volume);
+        fs = open(volume);
+    }
+
+    @AfterEach
+    void closeVolume() throws IOException {
+        fs.close();
+    }
+
+    // the last operation fails when the batch is checked, after the writes were already stored
+    @Test
+    void atomicBatchIsRolledBack() throws Exception {
+        Batch batch = new Batch(true)
+                .create("b")
+                .write("b", random(2000, 2))
+                .write("a", random(5000, 3))
+                .delete("gone")
+                .delete("missing");
+        Exception e = assertThrows(Exception.class, () -> fs.apply(batch));
+        assertTrue(e.getMessage().contains("operation 5 (DELETE missing)"), e.getMessage());
+
+        assertEquals(List.of("a", "gone"), names());
+        assertArrayEquals(random(3000, 1), fs.readFile("a"));
+        assertAllFreeBlocksUsable(); // the blocks written for b and a went back
+    }
+
+    // a write that cannot be stored fails the batch before anything is checked
+    @Test
+    void atomicBatchWithAWriteTooLargeIsRolledBack() throws Exception {
+        Batch batch = new Batch(true)
+                .write("a", random(2000, 2))
+                .write("gone", new byte[BLOCKS * BLOCK_SIZE + 1]);
+        assertThrows(Exception.class, () -> fs.apply(batch));
+        assertArrayEquals(random(3000, 1), fs.readFile("a"));
+        assertEquals(0, fs.getFileSize("gone"));
+        assertAllFreeBlocksUsable();
+    }
+
+    @Test
+    void otherBatchesSkipWhatFails() throws Exception {
+        Batch batch = new Batch(false)
+                .create("b")
+                .write("b", random(2000, 2))
+                .delete("missing")
+                .delete("gone");
+        fs.apply(batch);
+
+        assertNull(batch.getError(0));
+        assertNull(batch.getError(1));
+        assertTrue(batch.getError(2).contains("missing"), batch.getError(2));
+        assertNull(batch.getError(3));
+        assertEquals(List.of("a", "b"), names());
+        assertArrayEquals(random(2000, 2), fs.readFile("b"));
+        assertFalse(names().contains("gone"));
+    }
+
+    // HELPERS
+    private static FileSystemManager open(Path volume) throws IOException {
+        return new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, 64);
+    }
+
+    // free blocks in the bitmap stored in a closed volume
+    private static int freeBlocks(Path volume) throws IOException {
+        try (RandomAccessFile disk = new RandomAccessFile(volume.toFile(), "r")) {
+            Superblock superblock = Superblock.read(disk);
+            disk.seek(superblock.getFreeListOffset());
+            int free = 0;
+            for (int i = 0; i < FreeBitmap.wordCount(superblock.getBlockCount()); i++) {
+                free += Long.bitCount(disk.readLong());
+            }
+            return free;
+        }
+    }
+
+    // a file as large as all the free blocks still fits, none of them was lost
+    private void assertAllFreeBlocksUsable() throws Exception {
+        fs.writeFile("gone", random(free * BLOCK_SIZE, 4));
+        assertEquals(free * BLOCK_SIZE, fs.getFileSize("gone"));
+    }
+
+    private List<String> names() {
+        String[] names = fs.listFiles();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
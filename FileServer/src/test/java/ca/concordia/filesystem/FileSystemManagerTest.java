@@ -0,0 +1,645 @@
+// FileSystemManagerTest checks that what a volume was told survives: a clean close and reopen,
+// a crash right after the operations committed (only the data blocks and the journal on disk,
+// none of the metadata copied into the volume yet), and blocks left marked used by a crash.
+
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.datastructures.FreeBitmap;
+import ca.concordia.filesystem.datastructures.Superblock;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSystemManagerTest {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BLOCKS = 4096;
+    private static final int FILES = 256;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripSurvivesReopen() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        Map<String, byte[]> expected = new HashMap<>();
+        FileSystemManager fs = open(volume);
+        try {
+            for (int i = 0; i < 20; i++) {
+                String name = "f" + i;
+                fs.createFile(name);
+                byte[] contents = random(i * 700, i);
+                if (contents.length > 0) {
+                    fs.writeFile(name, contents);
+                }
+                expected.put(name, contents);
+            }
+            // one rewritten smaller, one gone
+            fs.writeFile("f10", random(100, 99));
+            expected.put("f10", random(100, 99));
+            fs.deleteFile("f7");
+            expected.remove("f7");
+        } finally {
+            fs.close();
+        }
+        int free = freeBlocks(volume);
+
+        FileSystemManager reopened = open(volume);
+        try {
+            assertContents(reopened, expected);
+            assertFalse(Arrays.asList(reopened.listFiles()).contains("f7"));
+        } finally {
+            reopened.close();
+        }
+        assertEquals(free, freeBlocks(volume));
+    }
+
+    // the crash image: the data blocks as written, the metadata area as it was before any of the
+    // operations, and the journal as it was once they had returned. Opening it must replay them
+    @Test
+    void committedOperationsSurviveACrash() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        Path crashed = dir.resolve("crashed.dat");
+        Map<String, byte[]> expected = new HashMap<>();
+        FileSystemManager fs = open(volume);
+        try {
+            fs.createFile("old");
+            fs.writeFile("old", random(5000, 1));
+        } finally {
+            fs.close();
+        }
+        byte[] metadataBefore = metadataArea(volume);
+
+        fs = open(volume);
+        try {
+            // concurrent committers, so the records share flushes (group commit)
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int thread = t;
+                    FileSystemManager shared = fs;
+                    done.add(pool.submit(() -> {
+                        for (int i = 0; i < 5; i++) {
+                            String name = "t" + thread + "_" + i;
+                            shared.createFile(name);
+                            shared.writeFile(name, random(300 + 900 * i, thread * 10 + i));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : done) {
+                    f.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            for (int t = 0; t < 8; t++) {
+                for (int i = 0; i < 5; i++) {
+                    expected.put("t" + t + "_" + i, random(300 + 900 * i, t * 10 + i));
+                }
+            }
+            fs.deleteFile("old");
+
+            // copied while the volume is still open, as the disk would be at the moment of a crash
+            Files.copy(volume, crashed);
+            Files.copy(Path.of(volume + ".journal"), Path.of(crashed + ".journal"));
+        } finally {
+            fs.close();
+        }
+        int free = freeBlocks(volume);
+        try (FileChannel channel = FileChannel.open(crashed, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(metadataBefore), 0);
+        }
+
+        FileSystemManager recovered = open(crashed);
+        try {
+            assertContents(recovered, expected);
+            assertFalse(Arrays.asList(recovered.listFiles()).contains("old"));
+        } finally {
+            recovered.close();
+        }
+        assertEquals(free, freeBlocks(crashed));
+    }
+
+    // a crash can leave blocks marked used that no file points at (a write that never committed,
+    // a free that was not logged yet); opening the volume gives them back
+    @Test
+    void leakedBlocksAreReclaimedOnOpen() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        Map<String, byte[]> expected = new HashMap<>();
+        FileSystemManager fs = open(volume);
+        try {
+            for (int i = 0; i < 10; i++) {
+                fs.createFile("f" + i);
+                fs.writeFile("f" + i, random(4000, i));
+                expected.put("f" + i, random(4000, i));
+            }
+        } finally {
+            fs.close();
+        }
+        int free = freeBlocks(volume);
+
+        // every block marked used in the stored bitmap
+        try (RandomAccessFile disk = new RandomAccessFile(volume.toFile(), "rw")) {
+            Superblock superblock = Superblock.read(disk);
+            disk.seek(superblock.getFreeListOffset());
+            disk.write(new byte[FreeBitmap.wordCount(superblock.getBlockCount()) * Long.BYTES]);
+        }
+
+        fs = open(volume);
+        try {
+            assertContents(fs, expected);
+            // the blocks really are usable again
+            fs.createFile("big");
+            fs.writeFile("big", random((free - 1) * BLOCK_SIZE, 42));
+        } finally {
+            fs.close();
+        }
+        assertEquals(1, freeBlocks(volume)); // the reclaim was made durable too
+        fs = open(volume);
+        try {
+            assertArrayEquals(random((free - 1) * BLOCK_SIZE, 42), fs.readFile("big"));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // a rewrite needs room for a second copy: without it the write is refused and the old
+    // contents stay as they were, the live blocks are never overwritten
+    @Test
+    void rewriteWithoutRoomForACopyIsRefused() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        byte[] contents = random(3000 * BLOCK_SIZE, 10);
+        FileSystemManager fs = open(volume);
+        try {
+            fs.createFile("big");
+            fs.writeFile("big", contents);
+            Exception e = assertThrows(Exception.class, () -> fs.writeFile("big", random(3000 * BLOCK_SIZE, 11)));
+            assertTrue(e.getMessage().contains("No free blocks available"), e.getMessage());
+            assertArrayEquals(contents, fs.readFile("big"));
+        } finally {
+            fs.close();
+        }
+        FileSystemManager reopened = open(volume);
+        try {
+            assertArrayEquals(contents, reopened.readFile("big"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    // a stream opened at an offset keeps what the file has up to there and adds to it; streams
+    // move the file in chunks, so it spans several of them
+    @Test
+    void streamedWriteResumesFromAnOffset() throws Exception {
+        byte[] contents = random(300_000, 5);
+        int cut = 100_001;
+        FileSystemManager fs = open(dir.resolve("v.dat"));
+        try {
+            fs.createFile("big");
+            try (FileSystemManager.WriteStream first = fs.openWrite("big", 0)) {
+                first.write(contents, 0, cut);
+            }
+            assertEquals(cut, fs.getFileSize("big"));
+            try (FileSystemManager.WriteStream rest = fs.openWrite("big", fs.getFileSize("big"))) {
+                rest.write(contents, cut, contents.length - cut);
+            }
+            assertArrayEquals(contents, fs.readFile("big"));
+            try (FileSystemManager.ReadStream tail = fs.openRead("big", 250_000)) {
+                assertArrayEquals(Arrays.copyOfRange(contents, 250_000, contents.length), tail.readAllBytes());
+            }
+        } finally {
+            fs.close();
+        }
+    }
+
+    // bytes written at an offset replace just that range, a write running past the end grows the
+    // file, append adds to it, and read returns a range (shorter at the end of the file)
+    @Test
+    void positionalWritesSurviveReopen() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        byte[] expected = random(5000, 6);
+        FileSystemManager fs = open(volume);
+        try {
+            fs.createFile("f");
+            fs.writeFile("f", expected);
+            byte[] patch = random(1300, 7); // starts and ends inside a block
+            fs.write("f", 700, patch);
+            System.arraycopy(patch, 0, expected, 700, patch.length);
+            byte[] over = random(600, 8);
+            fs.write("f", 4800, over);
+            expected = concat(Arrays.copyOf(expected, 4800), over);
+            byte[] tail = random(3000, 9);
+            fs.append("f", tail);
+            expected = concat(expected, tail);
+
+            assertArrayEquals(expected, fs.readFile("f"));
+            assertArrayEquals(Arrays.copyOfRange(expected, 1000, 1100), fs.read("f", 1000, 100));
+            assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 10, expected.length),
+                    fs.read("f", expected.length - 10, 100));
+        } finally {
+            fs.close();
+        }
+        fs = open(volume);
+        try {
+            assertEquals(expected.length, fs.getFileSize("f"));
+            assertArrayEquals(expected, fs.readFile("f"));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // the blocks a write lands in are copied too, never overwritten in place: without room for
+    // the copies it is refused and the file keeps its contents
+    @Test
+    void positionalWriteWithoutRoomIsRefused() throws Exception {
+        FileSystemManager fs = open(dir.resolve("v.dat"));
+        try {
+            fs.createFile("big");
+            byte[] contents = random((fs.getFreeBlockCount() - 1) * BLOCK_SIZE, 12);
+            fs.writeFile("big", contents);
+            Exception e = assertThrows(Exception.class, () -> fs.write("big", 100, random(2 * BLOCK_SIZE, 13)));
+            assertTrue(e.getMessage().contains("No free blocks available"), e.getMessage());
+            assertArrayEquals(contents, fs.readFile("big"));
+            fs.append("big", random(10, 14)); // one block copied, it still fits
+        } finally {
+            fs.close();
+        }
+    }
+
+    // a snapshot keeps showing the volume as it was while the live files change under it, and
+    // its export opens as a volume of its own with those contents
+    @Test
+    void snapshotKeepsTheFrozenView() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        Path exported = dir.resolve("snap.dat");
+        FileSystemManager fs = open(volume);
+        try {
+            fs.createFile("kept");
+            fs.writeFile("kept", random(3000, 1));
+            fs.createFile("changed");
+            fs.writeFile("changed", random(2000, 2));
+            fs.createFile("deleted");
+            fs.writeFile("deleted", random(1000, 3));
+
+            FileSystemManager.Snapshot snapshot = fs.snapshot();
+            try {
+                fs.writeFile("changed", random(4000, 4));
+                fs.write("kept", 100, random(10, 5));
+                fs.deleteFile("deleted");
+                fs.createFile("new");
+
+                assertEquals(Set.of("kept", "changed", "deleted"), Set.of(snapshot.listFiles()));
+                assertArrayEquals(random(3000, 1), snapshot.readFile("kept"));
+                assertArrayEquals(random(2000, 2), snapshot.readFile("changed"));
+                assertArrayEquals(random(1000, 3), snapshot.readFile("deleted"));
+                snapshot.export(exported.toString());
+                // never over a file that is there already
+                Path other = Files.writeString(dir.resolve("other.dat"), "keep");
+                assertThrows(IOException.class, () -> snapshot.export(other.toString()));
+                assertEquals("keep", Files.readString(other));
+                assertFalse(Files.exists(dir.resolve("other.dat.tmp")));
+            } finally {
+                snapshot.release();
+            }
+            assertArrayEquals(random(4000, 4), fs.readFile("changed"));
+        } finally {
+            fs.close();
+        }
+
+        FileSystemManager copy = open(exported);
+        try {
+            assertEquals(3, copy.listFiles().length);
+            assertArrayEquals(random(3000, 1), copy.readFile("kept"));
+            assertArrayEquals(random(2000, 2), copy.readFile("changed"));
+            assertArrayEquals(random(1000, 3), copy.readFile("deleted"));
+        } finally {
+            copy.close();
+        }
+    }
+
+    // files with the same contents share their blocks: a block is only freed once the last file
+    // using it is gone, and a write to one copy leaves the other alone
+    @Test
+    void dedupedBlocksAreFreedWithTheirLastFile() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        byte[] contents = random(8 * BLOCK_SIZE, 1);
+        int freeBefore;
+        FileSystemManager fs = openDedupe(volume);
+        try {
+            fs.createFile("a");
+            fs.createFile("b");
+        } finally {
+            fs.close();
+        }
+        freeBefore = freeBlocks(volume);
+
+        fs = openDedupe(volume);
+        try {
+            fs.writeFile("a", contents);
+            fs.writeFile("b", contents);
+        } finally {
+            fs.close();
+        }
+        assertEquals(freeBefore - 8, freeBlocks(volume)); // stored once
+
+        fs = openDedupe(volume); // the reference counts are rebuilt on open
+        try {
+            assertTrue(fs.isDedupe());
+            fs.write("b", BLOCK_SIZE, random(10, 2));
+            assertArrayEquals(contents, fs.readFile("a"));
+            fs.deleteFile("a");
+            byte[] changed = contents.clone();
+            System.arraycopy(random(10, 2), 0, changed, BLOCK_SIZE, 10);
+            assertArrayEquals(changed, fs.readFile("b"));
+        } finally {
+            fs.close();
+        }
+        assertEquals(freeBefore - 8, freeBlocks(volume)); // the block b replaced went with a, the rest are b's
+
+        fs = openDedupe(volume);
+        try {
+            fs.deleteFile("b");
+        } finally {
+            fs.close();
+        }
+        assertEquals(freeBefore, freeBlocks(volume));
+    }
+
+    // compressible contents take fewer blocks than their size and read back the same, whole,
+    // from an offset and after an append; contents that do not shrink are stored as they are
+    @Test
+    void compressedFilesReadBackTheSame() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        byte[] text = "the same line over and over again\n".repeat(600).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = random(4000, 1);
+        FileSystemManager fs = open(volume);
+        try {
+            fs.createFile("text");
+            fs.createFile("noise");
+        } finally {
+            fs.close();
+        }
+        int freeBefore = freeBlocks(volume);
+
+        fs = open(volume);
+        try {
+            fs.setCompression(Compression.parse("deflate"));
+            fs.writeFile("text", text);
+            fs.writeFile("noise", noise);
+            assertEquals(text.length, fs.getFileSize("text"));
+            assertArrayEquals(text, fs.readFile("text"));
+            try (FileSystemManager.ReadStream in = fs.openRead("text", 5000)) {
+                assertArrayEquals(Arrays.copyOfRange(text, 5000, text.length), in.readAllBytes());
+            }
+        } finally {
+            fs.close();
+        }
+        int textBlocks = freeBefore - freeBlocks(volume) - (noise.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertTrue(textBlocks < text.length / BLOCK_SIZE / 4, textBlocks + " blocks for " + text.length + " bytes");
+
+        fs = open(volume); // compression off: what is stored packed still reads back
+        try {
+            assertArrayEquals(text, fs.readFile("text"));
+            assertArrayEquals(noise, fs.readFile("noise"));
+            fs.append("text", "one more\n".getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(concat(text, "one more\n".getBytes(StandardCharsets.UTF_8)), fs.readFile("text"));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // a write at an offset cannot patch a packed file: the first one stores it uncompressed, the
+    // ones after it only take the blocks they land in
+    @Test
+    void appendUnpacksACompressedFileOnce() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        byte[] text = "the same line over and over again\n".repeat(600).getBytes(StandardCharsets.UTF_8);
+        byte[] more = "one more\n".getBytes(StandardCharsets.UTF_8);
+        FileSystemManager fs = open(volume);
+        try {
+            fs.setCompression(Compression.parse("deflate"));
+            fs.createFile("text");
+            fs.writeFile("text", text);
+            fs.append("text", more);
+        } finally {
+            fs.close();
+        }
+        int free = freeBlocks(volume);
+
+        fs = open(volume);
+        try {
+            fs.setCompression(Compression.parse("deflate"));
+            fs.append("text", more);
+            assertArrayEquals(concat(concat(text, more), more), fs.readFile("text"));
+        } finally {
+            fs.close();
+        }
+        int rawBlocks = (text.length + 2 * more.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertEquals(BLOCKS - rawBlocks, freeBlocks(volume)); // stored as is
+        assertTrue(free - freeBlocks(volume) <= 1, "the second append took " + (free - freeBlocks(volume)) + " blocks");
+    }
+
+    // files are found by path through their directories, a directory lists its entries a page at
+    // a time and is only deleted once empty, and all of it survives a reopen
+    @Test
+    void directoriesSurviveReopen() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        FileSystemManager fs = new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, FILES, "auto", 0,
+                false, false, true);
+        try {
+            assertTrue(fs.isDirectoriesSupported());
+            fs.createDirectory("docs");
+            fs.createDirectory("docs/old");
+            for (int i = 0; i < 30; i++) {
+                fs.createFile(String.format("docs/n%02d", i));
+            }
+            fs.writeFile("docs/n05", random(2000, 1));
+            fs.createFile("docs/old/x");
+            fs.createFile("top");
+
+            FileSystemManager.Listing first = fs.list("docs", "n", null, 20);
+            assertEquals(20, first.getNames().length);
+            assertEquals("n00", first.getNames()[0]);
+            FileSystemManager.Listing second = fs.list("docs", "n", first.getNext(), 20);
+            assertEquals(10, second.getNames().length);
+            assertEquals("n29", second.getNames()[9]);
+            assertNull(second.getNext());
+            assertArrayEquals(new String[] {"old/"}, fs.list("docs", "o", null, 20).getNames());
+
+            assertThrows(Exception.class, () -> fs.deleteDirectory("docs/old"));
+            fs.deleteFile("docs/old/x");
+            fs.deleteDirectory("docs/old");
+        } finally {
+            fs.close();
+        }
+
+        FileSystemManager reopened = open(volume); // the volume keeps its own format
+        try {
+            assertTrue(reopened.isDirectoriesSupported());
+            List<String> names = Arrays.asList(reopened.listFiles());
+            assertEquals(32, names.size());
+            assertTrue(names.containsAll(List.of("docs/", "docs/n00", "docs/n29", "top")), names.toString());
+            assertArrayEquals(random(2000, 1), reopened.readFile("docs/n05"));
+            assertEquals(0, reopened.list("docs", "o", null, 20).getNames().length);
+        } finally {
+            reopened.close();
+        }
+
+        // directories are opt-in, a volume formatted without them stays flat
+        FileSystemManager flat = open(dir.resolve("flat.dat"));
+        try {
+            assertFalse(flat.isDirectoriesSupported());
+            assertThrows(Exception.class, () -> flat.createDirectory("docs"));
+        } finally {
+            flat.close();
+        }
+    }
+
+    // compaction moves files into the holes in front of them without changing what they hold,
+    // a stream open on a file that moves reads on from the new blocks, and a second pass finds
+    // nothing left to move
+    @Test
+    void compactionMovesFilesForward() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        FileSystemManager fs = open(volume);
+        try {
+            for (String name : List.of("a", "b", "c", "d")) {
+                fs.createFile(name);
+                fs.writeFile(name, random(10 * BLOCK_SIZE, name.charAt(0)));
+            }
+            fs.deleteFile("b"); // a hole of 10 blocks
+            fs.createFile("e");
+            fs.writeFile("e", random(25 * BLOCK_SIZE, 'e'));
+
+            try (FileSystemManager.ReadStream d = fs.openRead("d", 0)) {
+                byte[] head = d.readNBytes(1000);
+                int moved = fs.compact(new IoBudget(1L << 30), () -> false);
+                assertTrue(moved > 0);
+                assertArrayEquals(random(10 * BLOCK_SIZE, 'd'), concat(head, d.readAllBytes()));
+            }
+            assertEquals(0, fs.compact(new IoBudget(1L << 30), () -> false));
+            for (String name : List.of("a", "c", "d")) {
+                assertArrayEquals(random(10 * BLOCK_SIZE, name.charAt(0)), fs.readFile(name), name);
+            }
+            assertArrayEquals(random(25 * BLOCK_SIZE, 'e'), fs.readFile("e"));
+        } finally {
+            fs.close();
+        }
+        fs = open(volume);
+        try {
+            assertArrayEquals(random(25 * BLOCK_SIZE, 'e'), fs.readFile("e"));
+            assertEquals(0, fs.compact(new IoBudget(1L << 30), () -> false)); // the moves were committed
+        } finally {
+            fs.close();
+        }
+    }
+
+    // the free tail becomes a hole in the volume file, which keeps its length; a mapped volume
+    // leaves its file alone
+    @Test
+    void freeTailIsReleasedOnlyWhenNotMapped() throws Exception {
+        Path volume = dir.resolve("v.dat");
+        FileSystemManager fs = new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, FILES, "mmap", 0, false, false);
+        try {
+            fs.createFile("a");
+            fs.writeFile("a", random(10 * BLOCK_SIZE, 'a'));
+            assertEquals(0, fs.releaseFreeTail());
+        } finally {
+            fs.close();
+        }
+        long length = Files.size(volume);
+        fs = new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, FILES, "channel", 0, false, false);
+        try {
+            assertTrue(fs.releaseFreeTail() > 0);
+            assertEquals(0, fs.releaseFreeTail()); // given back already
+            assertEquals(length, Files.size(volume));
+            assertArrayEquals(random(10 * BLOCK_SIZE, 'a'), fs.readFile("a"));
+            fs.createFile("b");
+            fs.writeFile("b", random(BLOCKS / 2 * BLOCK_SIZE, 'b')); // into the hole
+            assertArrayEquals(random(BLOCKS / 2 * BLOCK_SIZE, 'b'), fs.readFile("b"));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // HELPERS
+    private static FileSystemManager open(Path volume) throws IOException {
+        return new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, FILES);
+    }
+
+    private static FileSystemManager openDedupe(Path volume) throws IOException {
+        return new FileSystemManager(volume.toString(), BLOCK_SIZE, BLOCKS, FILES, "auto", 0, false, true);
+    }
+
+    private static void assertContents(FileSystemManager fs, Map<String, byte[]> expected) throws Exception {
+        List<String> names = Arrays.asList(fs.listFiles());
+        for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+            assertTrue(names.contains(file.getKey()), file.getKey() + " is missing");
+            if (file.getValue().length > 0) {
+                assertArrayEquals(file.getValue(), fs.readFile(file.getKey()), file.getKey());
+            }
+        }
+    }
+
+    // free blocks in the bitmap stored in a closed volume
+    private static int freeBlocks(Path volume) throws IOException {
+        try (RandomAccessFile disk = new RandomAccessFile(volume.toFile(), "r")) {
+            Superblock superblock = Superblock.read(disk);
+            disk.seek(superblock.getFreeListOffset());
+            int free = 0;
+            for (int i = 0; i < FreeBitmap.wordCount(superblock.getBlockCount()); i++) {
+                free += Long.bitCount(disk.readLong());
+            }
+            return free;
+        }
+    }
+
+    // everything in front of the data blocks: superblock, inodes, bitmap, next-block table
+    private static byte[] metadataArea(Path volume) throws IOException {
+        try (RandomAccessFile disk = new RandomAccessFile(volume.toFile(), "r")) {
+            Superblock superblock = Superblock.read(disk);
+            byte[] area = new byte[(int) superblock.getDataOffset()];
+            disk.seek(0);
+            disk.readFully(area);
+            return area;
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
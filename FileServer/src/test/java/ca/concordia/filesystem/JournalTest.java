@@ -0,0 +1,184 @@
+// JournalTest crashes a volume on purpose: records are appended and made durable on one volume,
+// then its journal is copied next to a blank volume as if the machine had stopped before any
+// region reached the disk. Replaying there must redo exactly the complete records.
+
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.concordia.filesystem.io.BlockDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+    private static final long VOLUME_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private final List<FileChannel> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeVolumes() throws IOException {
+        for (FileChannel channel : opened) {
+            channel.close();
+        }
+    }
+
+    @Test
+    void replayRedoesDurableRecords() throws Exception {
+        Journal journal = new Journal(dir.resolve("a.journal"), volume("a"));
+        journal.awaitDurable(journal.append(List.of(region(0, "hello"), region(4096, "world"))));
+        journal.awaitDurable(journal.append(List.of(region(100, "again"))));
+
+        BlockDevice blank = volume("b");
+        Journal replayed = crashCopy("a.journal", "b.journal", blank, -1);
+        assertEquals(2, replayed.replay());
+        assertEquals("hello", read(blank, 0, 5));
+        assertEquals("world", read(blank, 4096, 5));
+        assertEquals("again", read(blank, 100, 5));
+        assertEquals(0, Files.size(dir.resolve("b.journal"))); // checkpointed after the replay
+
+        // nothing left to redo the second time
+        assertEquals(0, new Journal(dir.resolve("b.journal"), blank).replay());
+    }
+
+    @Test
+    void tornLastRecordIsIgnored() throws Exception {
+        Journal journal = new Journal(dir.resolve("a.journal"), volume("a"));
+        journal.awaitDurable(journal.append(List.of(region(0, "first"))));
+        journal.awaitDurable(journal.append(List.of(region(512, "second"))));
+        journal.awaitDurable(journal.append(List.of(region(1024, "third"))));
+
+        // the crash came while the last record was being written: its end is missing
+        BlockDevice blank = volume("b");
+        Journal replayed = crashCopy("a.journal", "b.journal", blank, Files.size(dir.resolve("a.journal")) - 3);
+        assertEquals(2, replayed.replay());
+        assertEquals("first", read(blank, 0, 5));
+        assertEquals("second", read(blank, 512, 6));
+        assertEquals("\0\0\0\0\0", read(blank, 1024, 5));
+    }
+
+    @Test
+    void recordWithBadChecksumEndsReplay() throws Exception {
+        Journal journal = new Journal(dir.resolve("a.journal"), volume("a"));
+        journal.awaitDurable(journal.append(List.of(region(0, "first"))));
+        journal.awaitDurable(journal.append(List.of(region(512, "second"))));
+        long secondEnd = Files.size(dir.resolve("a.journal"));
+        journal.awaitDurable(journal.append(List.of(region(1024, "third"))));
+
+        // one byte of the second record's data flipped: it and everything after it are not redone
+        Path copy = dir.resolve("b.journal");
+        Files.copy(dir.resolve("a.journal"), copy);
+        try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = secondEnd - Integer.BYTES - 3; // inside "second", just before the checksum
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0x5a)).rewind();
+            channel.write(b, position);
+        }
+        BlockDevice blank = volume("b");
+        assertEquals(1, new Journal(copy, blank).replay());
+        assertEquals("first", read(blank, 0, 5));
+        assertEquals("\0\0\0\0\0\0", read(blank, 512, 6));
+        assertEquals("\0\0\0\0\0", read(blank, 1024, 5));
+    }
+
+    // many threads committing at once share flushes, and every one of them gets a durable record
+    @Test
+    void groupCommitMakesEveryRecordDurable() throws Exception {
+        int threads = 16;
+        int commits = 100;
+        BlockDevice volume = volume("a");
+        Journal journal = new Journal(dir.resolve("a.journal"), volume);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < commits; i++) {
+                        long offset = (long) (thread * commits + i) * 8;
+                        journal.awaitDurable(journal.append(List.of(region(offset, tag(thread, i)))));
+                        // durable means applied to the volume as well
+                        assertEquals(tag(thread, i), read(volume, offset, 8));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        BlockDevice blank = volume("b");
+        assertEquals(threads * commits, crashCopy("a.journal", "b.journal", blank, -1).replay());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < commits; i++) {
+                assertEquals(tag(t, i), read(blank, (long) (t * commits + i) * 8, 8));
+            }
+        }
+    }
+
+    @Test
+    void closeCheckpointsTheJournal() throws Exception {
+        BlockDevice volume = volume("a");
+        Journal journal = new Journal(dir.resolve("a.journal"), volume);
+        journal.append(List.of(region(0, "queued"))); // never waited for, close commits it
+        journal.close();
+        assertEquals(0, Files.size(dir.resolve("a.journal")));
+        assertEquals("queued", read(volume, 0, 6));
+    }
+
+    // HELPERS
+    // a zeroed volume of VOLUME_SIZE bytes, closed after the test
+    private BlockDevice volume(String name) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(name + ".dat"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        opened.add(channel);
+        channel.write(ByteBuffer.allocate(1), VOLUME_SIZE - 1);
+        return BlockDevice.open(channel, VOLUME_SIZE, "channel");
+    }
+
+    // the journal as a crash left it (cut to length bytes unless length is -1), next to another volume
+    private Journal crashCopy(String from, String to, BlockDevice volume, long length) throws IOException {
+        Path copy = dir.resolve(to);
+        Files.copy(dir.resolve(from), copy);
+        if (length >= 0) {
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+        }
+        return new Journal(copy, volume);
+    }
+
+    private static MetadataTx.Region region(long offset, String text) {
+        return new MetadataTx.Region(offset, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String read(BlockDevice volume, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        volume.read(buf, offset);
+        return new String(buf.array(), StandardCharsets.UTF_8);
+    }
+
+    private static String tag(int thread, int i) {
+        return String.format("%02d:%05d", thread, i);
+    }
+}
@@ -0,0 +1,133 @@
+// ShardedFileSystemTest adds a shard to a volume and checks the files are moved to it whole,
+// also after a move was cut off halfway, and that atomic batches over shards stay bounded.
+
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.datastructures.HashRing;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardedFileSystemTest {
+
+    private static final long WAIT_MILLIS = 20_000; // for the rebalancer to finish
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void filesMoveToANewShardInChunks() throws Exception {
+        String name = nameOn(1, 2, "f");
+        byte[] big = random(1_000_000, 1); // many chunks
+        FileSystemManager first = open("v0.dat", 512, 8192);
+        first.createFile(name);
+        first.writeFile(name, big);
+        first.createFile("empty");
+        first.close();
+
+        ShardedFileSystem fs = new ShardedFileSystem(List.of(open("v0.dat", 512, 8192), open("v1.dat", 512, 8192)));
+        try {
+            awaitMoved(fs, name, 1);
+            assertArrayEquals(big, fs.readFile(name));
+            assertTrue(fs.fileExists("empty"));
+            assertEquals(0, fs.getFileSize("empty"));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // the copy on the new shard was created but not written when the server stopped: it is
+    // dropped at the next start instead of hiding the file, which is moved again
+    @Test
+    void moveCutOffByAStopIsDoneAgain() throws Exception {
+        String name = nameOn(1, 2, "f");
+        byte[] contents = random(200_000, 2);
+        FileSystemManager first = open("v0.dat", 512, 8192);
+        first.createFile(name);
+        first.writeFile(name, contents);
+        first.close();
+        FileSystemManager second = open("v1.dat", 512, 8192);
+        second.createFile(name);
+        second.close();
+        Files.writeString(Path.of(dir.resolve("v0.dat").toAbsolutePath() + ".moving"), "0 1 " + name);
+
+        ShardedFileSystem fs = new ShardedFileSystem(List.of(open("v0.dat", 512, 8192), open("v1.dat", 512, 8192)));
+        try {
+            assertArrayEquals(contents, fs.readFile(name)); // found where it was, right away
+            awaitMoved(fs, name, 1);
+            assertArrayEquals(contents, fs.readFile(name));
+        } finally {
+            fs.close();
+        }
+        assertEquals(0, Files.size(Path.of(dir.resolve("v0.dat").toAbsolutePath() + ".moving")));
+    }
+
+    @Test
+    void atomicBatchOverShardsIsRefusedIfItsBackupIsTooLarge() throws Exception {
+        ShardedFileSystem fs = new ShardedFileSystem(List.of(open("v0.dat", 4096, 16384), open("v1.dat", 4096, 16384)));
+        try {
+            String big = nameOn(1, 2, "b");
+            String other = nameOn(0, 2, "o");
+            fs.createFile(big);
+            fs.writeFile(big, new byte[17 * 1024 * 1024]);
+            Exception e = assertThrows(Exception.class,
+                    () -> fs.apply(new Batch(true).create(other).write(big, new byte[] {1})));
+            assertTrue(e.getMessage().contains("atomic batch over several shards"), e.getMessage());
+            assertFalse(fs.fileExists(other)); // refused before anything was applied
+            assertEquals(17 * 1024 * 1024, fs.getFileSize(big));
+
+            fs.apply(new Batch(false).create(other).write(big, new byte[] {1}));
+            assertTrue(fs.fileExists(other));
+            assertEquals(1, fs.getFileSize(big));
+        } finally {
+            fs.close();
+        }
+    }
+
+    // HELPERS
+    private FileSystemManager open(String name, int blockSize, int blocks) throws IOException {
+        return new FileSystemManager(dir.resolve(name).toString(), blockSize, blocks, 200, "auto", 0, false, false);
+    }
+
+    // a name the ring places on shard of shards
+    private static String nameOn(int shard, int shards, String prefix) {
+        HashRing ring = new HashRing(shards);
+        for (int i = 0; ; i++) {
+            if (ring.shardFor(prefix + i) == shard) {
+                return prefix + i;
+            }
+        }
+    }
+
+    // wait until the file is on its shard and nowhere else
+    private static void awaitMoved(ShardedFileSystem fs, String name, int shard) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (true) {
+            boolean moved = true;
+            for (int i = 0; i < fs.getShardCount(); i++) {
+                moved &= fs.getShard(i).fileExists(name) == (i == shard);
+            }
+            if (moved) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, name + " was not moved to shard " + shard);
+            Thread.sleep(20);
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+// DirectoryTreeTest fills a tree far past one page so leaves and internal pages split, empties
+// it again so they merge, and checks the entries (and the stored pages) all along.
+
+package ca.concordia.filesystem.datastructures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class DirectoryTreeTest {
+
+    private static final int ENTRIES = 20000; // about a hundred full leaves, so internal pages split too
+    private static final int DIRECTORIES = 4;
+
+    @Test
+    void splitsAndMergesKeepEveryEntry() throws Exception {
+        DirectoryTree tree = new DirectoryTree(DirectoryTree.pagesFor(ENTRIES));
+        List<Integer> order = shuffled(ENTRIES, 1);
+        for (int i : order) {
+            tree.insert(parentOf(i), nameOf(i), i, page -> { });
+        }
+        assertTrue(usedPages(tree) <= DirectoryTree.pagesFor(ENTRIES));
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i, tree.find(parentOf(i), nameOf(i)));
+        }
+        assertListed(tree, i -> true);
+
+        // remove all but every tenth entry, in another order, so most pages merge or go away
+        for (int i : shuffled(ENTRIES, 2)) {
+            if (i % 10 != 0) {
+                assertTrue(tree.remove(parentOf(i), nameOf(i), page -> { }));
+            }
+        }
+        assertFalse(tree.remove(parentOf(1), nameOf(1), page -> { }));
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i % 10 == 0 ? i : -1, tree.find(parentOf(i), nameOf(i)));
+        }
+        assertListed(tree, i -> i % 10 == 0);
+        assertTrue(usedPages(tree) <= DirectoryTree.pagesFor(ENTRIES / 10));
+
+        for (int i = 0; i < ENTRIES; i += 10) {
+            assertTrue(tree.remove(parentOf(i), nameOf(i), page -> { }));
+        }
+        for (int parent = 0; parent < DIRECTORIES; parent++) {
+            assertTrue(tree.isEmpty(parent));
+        }
+        assertEquals(2, usedPages(tree)); // the header and an empty root leaf
+    }
+
+    @Test
+    void loadsTheStoredPages() throws Exception {
+        DirectoryTree tree = new DirectoryTree(DirectoryTree.pagesFor(ENTRIES));
+        for (int i : shuffled(ENTRIES, 3)) {
+            tree.insert(parentOf(i), nameOf(i), i, page -> { });
+        }
+        for (int i = 0; i < ENTRIES; i += 3) {
+            tree.remove(parentOf(i), nameOf(i), page -> { });
+        }
+
+        // what a volume holds is only the bytes in use of each page, the rest is whatever was there
+        DirectoryTree loaded = new DirectoryTree(tree.getPageCount());
+        loaded.load((page, into) -> {
+            byte[] stored = tree.getPage(page);
+            if (stored != null) {
+                System.arraycopy(stored, 0, into, 0, tree.getUsedLength(page));
+            }
+        });
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i % 3 == 0 ? -1 : i, loaded.find(parentOf(i), nameOf(i)));
+        }
+        assertListed(loaded, i -> i % 3 != 0);
+        assertEquals(usedPages(tree), usedPages(loaded));
+    }
+
+    @Test
+    void pagesChangedAreReported() {
+        DirectoryTree tree = new DirectoryTree(DirectoryTree.pagesFor(ENTRIES));
+        List<Integer> dirty = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            tree.insert(parentOf(i), nameOf(i), i, dirty::add);
+        }
+        // every page in use was written at some point, header included
+        for (int p = 0; p < tree.getPageCount(); p++) {
+            if (tree.getPage(p) != null && p != 0) {
+                assertTrue(dirty.contains(p), "page " + p + " was never reported");
+            }
+        }
+        assertTrue(dirty.contains(0)); // the root moved when the tree grew
+    }
+
+    private interface Kept {
+        boolean test(int i);
+    }
+
+    // every directory lists exactly the kept entries, in name order
+    private static void assertListed(DirectoryTree tree, Kept kept) {
+        for (int parent = 0; parent < DIRECTORIES; parent++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = parent; i < ENTRIES; i += DIRECTORIES) {
+                if (kept.test(i)) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> listed = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            tree.scan(parent, "", (name, inode) -> {
+                names.add(name);
+                listed.add(inode);
+                return true;
+            });
+            assertEquals(expected, listed);
+            List<String> sorted = new ArrayList<>(names);
+            Collections.sort(sorted);
+            assertEquals(sorted, names);
+        }
+    }
+
+    private static int usedPages(DirectoryTree tree) {
+        int used = 0;
+        for (int p = 0; p < tree.getPageCount(); p++) {
+            if (tree.getPage(p) != null) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    private static int parentOf(int i) {
+        return i % DIRECTORIES;
+    }
+
+    // zero padded so name order is number order
+    private static String nameOf(int i) {
+        return String.format("f%06d", i);
+    }
+
+    private static List<Integer> shuffled(int n, long seed) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(seed));
+        return order;
+    }
+}
@@ -0,0 +1,208 @@
+// ReplicationTest runs a primary (ClientHandler on a local socket) and a Replica of it in one
+// process: the replica catches up with a full copy, follows changes, resumes from its state file
+// after a restart, and starts over with a full copy when the primary's change log is new. A host
+// that is not one of the primary's replicas is refused.
+
+package ca.concordia.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReplicationTest {
+
+    private static final long WAIT_MILLIS = 20_000; // for the replica to catch up
+
+    @TempDir
+    Path dir;
+
+    private ShardedFileSystem primary;
+    private ShardedFileSystem copy;
+    private final AtomicReference<ChangeLog> changes = new AtomicReference<>(new ChangeLog());
+    private ServerSocket listener;
+    private volatile Set<InetAddress> replicas = Set.of(InetAddress.getLoopbackAddress());
+    private Path state;
+
+    @BeforeEach
+    void startPrimary() throws IOException {
+        primary = open("primary.dat");
+        primary.setChangeListener(path -> changes.get().record(path));
+        copy = open("replica.dat");
+        state = dir.resolve("replica.dat.replica");
+
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = listener.accept();
+                } catch (IOException e) {
+                    return; // closed after the test
+                }
+                ClientHandler handler = new ClientHandler(socket, primary, changes.get(), null, null, new PartialUploads(),
+                        replicas);
+                Thread.ofVirtual().start(handler);
+            }
+        });
+    }
+
+    @AfterEach
+    void stopPrimary() throws IOException {
+        listener.close();
+        copy.close();
+        primary.close();
+    }
+
+    @Test
+    void replicaCatchesUpAndResumes() throws Exception {
+        primary.createDirectory("docs");
+        primary.createFile("docs/a");
+        primary.writeFile("docs/a", random(3000, 1));
+        primary.createFile("big");
+        primary.writeFile("big", random(3 * ReplicationProtocol.CHUNK_SIZE + 17, 2)); // several DATA frames
+        primary.createFile("empty");
+
+        Replica replica = startReplica();
+        try {
+            awaitSame();
+        } finally {
+            replica.stop();
+        }
+
+        // the state file says how far it got, and the primary can go on from there
+        String[] saved = Files.readString(state).trim().split(" ");
+        assertEquals(changes.get().getId(), Long.parseLong(saved[0]));
+        assertTrue(changes.get().canResume(Long.parseLong(saved[0]), Long.parseLong(saved[1])));
+
+        // changed while the replica was down
+        primary.writeFile("docs/a", random(5000, 3));
+        primary.deleteFile("big");
+        primary.createFile("docs/b");
+        primary.writeFile("docs/b", random(10, 4));
+        // only on the replica: a full copy would delete it, resuming leaves it alone
+        copy.createFile("local");
+
+        replica = startReplica();
+        try {
+            awaitSame("local");
+            assertTrue(copy.fileExists("local"));
+        } finally {
+            replica.stop();
+        }
+    }
+
+    @Test
+    void newChangeLogMeansFullCopy() throws Exception {
+        primary.createFile("a");
+        primary.writeFile("a", random(100, 1));
+        Replica replica = startReplica();
+        try {
+            awaitSame();
+        } finally {
+            replica.stop();
+        }
+
+        // as if the primary had restarted: its change log has a new id, the replica cannot resume
+        changes.set(new ChangeLog());
+        primary.writeFile("a", random(200, 2));
+        copy.createFile("stale");
+
+        replica = startReplica();
+        try {
+            awaitSame();
+            assertFalse(copy.fileExists("stale"));
+        } finally {
+            replica.stop();
+        }
+        assertEquals(changes.get().getId(), Long.parseLong(Files.readString(state).trim().split(" ")[0]));
+    }
+
+    @Test
+    void replicateIsRefusedToOtherHosts() throws Exception {
+        primary.createFile("a");
+        replicas = Set.of(); // as without --replicas
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+            socket.getOutputStream().write("REPLICATE 0 0\n".getBytes(StandardCharsets.UTF_8));
+            String answer = new String(socket.getInputStream().readNBytes(6), StandardCharsets.UTF_8);
+            assertEquals("ERROR:", answer);
+        }
+    }
+
+    // HELPERS
+    private ShardedFileSystem open(String name) throws IOException {
+        FileSystemManager volume = new FileSystemManager(dir.resolve(name).toString(), 512, 4096, 256,
+                "auto", 0, false, false, true);
+        return new ShardedFileSystem(List.of(volume));
+    }
+
+    private Replica startReplica() throws IOException {
+        Replica replica = new Replica(copy, "127.0.0.1:" + listener.getLocalPort(), state);
+        replica.start();
+        return replica;
+    }
+
+    // wait until the replica has the primary's names and contents, apart from those only it has
+    private void awaitSame(String... replicaOnly) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!same(replicaOnly)) {
+            if (System.currentTimeMillis() > deadline) {
+                assertEquals(Arrays.asList(primary.listFiles()), Arrays.asList(copy.listFiles()));
+                throw new AssertionError("the replica did not catch up");
+            }
+            Thread.sleep(50);
+        }
+        for (String name : primary.listFiles()) {
+            if (!name.endsWith("/") && primary.getFileSize(name) > 0) {
+                assertArrayEquals(primary.readFile(name), copy.readFile(name), name);
+            }
+        }
+    }
+
+    private boolean same(String... replicaOnly) throws Exception {
+        List<String> expected = Arrays.asList(primary.listFiles());
+        List<String> actual = new ArrayList<>(Arrays.asList(copy.listFiles()));
+        actual.removeAll(Arrays.asList(replicaOnly));
+        if (!expected.equals(actual)) {
+            return false;
+        }
+        for (String name : expected) {
+            if (name.endsWith("/")) {
+                continue;
+            }
+            long size = primary.getFileSize(name);
+            // a file the replica is still copying has its size only once all of it is in
+            if (copy.getFileSize(name) != size
+                    || (size > 0 && !Arrays.equals(primary.readFile(name), copy.readFile(name)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,125 @@
+// UploadTest cuts an UPLOAD off halfway (ClientHandler on a local socket): the file keeps its old
+// contents until the upload is resumed from where UPLOADED says it got to and completed.
+
+package ca.concordia.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.ShardedFileSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UploadTest {
+
+    private static final long WAIT_MILLIS = 20_000; // for the server to notice the dropped connection
+
+    @TempDir
+    Path dir;
+
+    private ShardedFileSystem fs;
+    private final PartialUploads uploads = new PartialUploads();
+    private ServerSocket listener;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        FileSystemManager volume = new FileSystemManager(dir.resolve("v.dat").toString(), 512, 4096, 64);
+        fs = new ShardedFileSystem(List.of(volume));
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = listener.accept();
+                } catch (IOException e) {
+                    return; // closed after the test
+                }
+                Thread.ofVirtual().start(new ClientHandler(socket, fs, new ChangeLog(), null, null, uploads, Set.of()));
+            }
+        });
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        listener.close();
+        uploads.abortAll();
+        fs.close();
+    }
+
+    @Test
+    void cutOffUploadIsOnlyCommittedOnceResumed() throws Exception {
+        byte[] old = random(3000, 1);
+        byte[] contents = random(200_000, 2);
+        int cut = 100_000;
+        fs.createFile("f");
+        fs.writeFile("f", old);
+
+        try (Socket socket = connect()) {
+            assertTrue(command(socket, "UPLOAD f 0 " + contents.length).startsWith("READY"));
+            socket.getOutputStream().write(contents, 0, cut);
+            socket.getOutputStream().flush();
+        }
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (uploads.getEnd("f") < cut) {
+            assertTrue(System.currentTimeMillis() < deadline, "the cut off upload was not kept");
+            Thread.sleep(20);
+        }
+        assertArrayEquals(old, fs.readFile("f")); // not replaced by a prefix of the new contents
+
+        try (Socket socket = connect()) {
+            assertEquals("UPLOADED: " + cut, command(socket, "UPLOADED f"));
+            assertTrue(command(socket, "UPLOAD f " + cut + " " + (contents.length - cut)).startsWith("READY"));
+            socket.getOutputStream().write(contents, cut, contents.length - cut);
+            socket.getOutputStream().flush();
+            assertTrue(readLine(socket.getInputStream()).startsWith("SUCCESS"));
+            assertTrue(command(socket, "UPLOADED f").startsWith("ERROR"));
+        }
+        assertArrayEquals(contents, fs.readFile("f"));
+    }
+
+    // HELPERS
+    private Socket connect() throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+    }
+
+    // send one command line and read the one line answer
+    private static String command(Socket socket, String line) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return readLine(socket.getInputStream());
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed.");
+            }
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}